@@ -348,6 +348,14 @@ public class A4Preferences {
       @Override public Object renderValueShort(Integer value) { return value.toString() + " k"; }
    };
 
+   /** The number of commands to execute at the same time when executing all commands. */
+   public static final IntChoicePref SubThreads = new IntChoicePref("SubThreads", "Parallel commands",
+         Arrays.asList(1,2,3,4,6,8,12,16), 1);
+
+   /** The number of solver processes to launch and warm up ahead of time. */
+   public static final IntChoicePref SubWorkers = new IntChoicePref("SubWorkers", "Warm solver processes",
+         Arrays.asList(0,1,2,3,4), 1);
+
    /** The first file in Alloy Analyzer's "open recent" list. */
    public static final StringPref Model0 = new StringPref("Model0");
 
@@ -139,6 +139,27 @@ public class A4Reporter {
       if (parent != null) parent.resultUNSAT(command, solvingTime, solution);
    }
 
+   /** This method is called by the translator after it solves each step of a command whose scope grows (such as "for 3..10 A")
+    * or is escalated (see A4Options.escalation); resultSAT() or resultUNSAT() is still called once for the final result.
+    *
+    * @param command - this is the Command that was solved in this step
+    * @param solvingTime - this is the number of milliseconds this step took (including its translation)
+    * @param solution - the satisfying or unsatisfying A4Solution object of this step
+    */
+   public void step (Object command, long solvingTime, Object solution) {
+      if (parent != null) parent.step(command, solvingTime, solution);
+   }
+
+   /** This method is called by A4Solution.enumerate() when it finishes enumerating solutions.
+    *
+    * @param command - this is the original command used to generate the solutions
+    * @param count - this is the number of solutions that were delivered
+    * @param time - this is the number of milliseconds the enumeration took
+    */
+   public void enumerated (Object command, int count, long time) {
+      if (parent != null) parent.enumerated(command, count, time);
+   }
+
    /** This method is called by the A4SolutionWriter when it is writing a particular sig, field, or skolem. */
    public void write (Object expr) {
       if (parent != null) parent.write(expr);
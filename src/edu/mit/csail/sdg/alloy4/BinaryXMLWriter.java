@@ -0,0 +1,215 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Mutable; this writes an XML document in a compact binary encoding that XMLPullParser can read back.
+ *
+ * <p> The encoding starts with the 4 bytes 'A' '4' 'B' VERSION, followed by a list of tokens, followed by a 0 byte:
+ * <br> START (1) followed by the element type, the number of attributes, then the name and value of each attribute
+ * <br> END (2) ends the innermost element
+ * <br> ATOM (3) followed by a label is a shorthand for the element &lt;atom label=".."/&gt;
+ *
+ * <p> Every number is an unsigned varint (7 bits per byte, least significant group first, high bit set on every byte but the last).
+ * Every string is interned: it is written as a number N, where N&gt;0 refers to the Nth distinct string written so far,
+ * and N==0 introduces a new string (written as the number of UTF-8 bytes, followed by the bytes).
+ * So each atom label is spelled out only once, and every tuple costs a few bytes per atom.
+ *
+ * <p> Instance files meant for the user stay in XML text; the binary encoding is used for the instances
+ * that the solver process hands to the GUI, and such files are named with the EXTENSION suffix.
+ *
+ * <p><b>Thread Safety:</b> Can be called only by one thread at a time.
+ */
+
+public final class BinaryXMLWriter {
+
+   /** The version number written after the magic bytes. */
+   public static final int VERSION = 1;
+
+   /** The file extension for instance files written in this encoding (rather than in XML text). */
+   public static final String EXTENSION = ".a4b";
+
+   /** The token for the start of an element. */
+   static final int START = 1;
+
+   /** The token for the end of an element. */
+   static final int END = 2;
+
+   /** The token for an &lt;atom label=".."/&gt; element. */
+   static final int ATOM = 3;
+
+   /** The output stream; null once it has been closed. */
+   private OutputStream out;
+
+   /** Maps each string written so far to its number (starting from 1). */
+   private final Map<String,Integer> strings = new HashMap<String,Integer>();
+
+   /** The number of elements that have started but not ended. */
+   private int depth = 0;
+
+   /** Constructs a writer that writes the magic bytes then sends the encoding into the given stream (which will be closed by close()). */
+   public BinaryXMLWriter(OutputStream out) throws IOException {
+      this.out = (out instanceof BufferedOutputStream) ? out : new BufferedOutputStream(out, 65536);
+      this.out.write('A');
+      this.out.write('4');
+      this.out.write('B');
+      this.out.write(VERSION);
+   }
+
+   /** Constructs a writer that writes into the given file (overwriting it if it exists). */
+   public BinaryXMLWriter(File file) throws IOException {
+      this(new FileOutputStream(file));
+   }
+
+   /** Write a number. */
+   private void number(int value) throws IOException {
+      while((value & ~0x7F) != 0) { out.write((value & 0x7F) | 0x80); value = value >>> 7; }
+      out.write(value);
+   }
+
+   /** Write a string. */
+   private void string(String value) throws IOException {
+      Integer n = strings.get(value);
+      if (n!=null) { number(n); return; }
+      strings.put(value, strings.size()+1);
+      byte[] bytes = value.getBytes("UTF-8");
+      number(0);
+      number(bytes.length);
+      out.write(bytes);
+   }
+
+   /** Write the start of an element; the attributes are given as (name, value) pairs, and any pair whose value is null is skipped. */
+   public void start(String type, String... attributes) throws IOException {
+      if (out==null) throw new IOException("The binary XML writer is already closed.");
+      int n = 0;
+      for(int i=1; i<attributes.length; i=i+2) if (attributes[i]!=null) n++;
+      out.write(START);
+      string(type);
+      number(n);
+      for(int i=1; i<attributes.length; i=i+2) if (attributes[i]!=null) { string(attributes[i-1]); string(attributes[i]); }
+      depth++;
+   }
+
+   /** Write the end of the innermost element. */
+   public void end() throws IOException {
+      if (depth==0) throw new IOException("There is no element to end.");
+      out.write(END);
+      depth--;
+   }
+
+   /** Write the element &lt;atom label=".."/&gt; */
+   public void atom(String label) throws IOException {
+      if (out==null) throw new IOException("The binary XML writer is already closed.");
+      out.write(ATOM);
+      string(label);
+   }
+
+   /** Finish the document and close the underlying stream (this method is idempotent).
+    * @throws IOException if some elements have not ended, or if an I/O error occurred
+    */
+   public void close() throws IOException {
+      if (out==null) return;
+      OutputStream stream = out;
+      out = null;
+      try {
+         if (depth!=0) throw new IOException("Some elements have not ended.");
+         stream.write(0);
+         stream.flush();
+      } finally {
+         stream.close();
+      }
+   }
+
+   /** Returns true if the given file starts with the magic bytes of the binary encoding. */
+   public static boolean isBinary(File file) throws IOException {
+      XMLPullParser xml = new XMLPullParser(file);
+      try { return xml.isBinary(); } finally { xml.close(); }
+   }
+
+   /** Read an XML document (in either encoding) and write it into the given file in the binary encoding. */
+   public static void toBinary(File from, File to) throws IOException {
+      XMLPullParser xml = new XMLPullParser(from);
+      BinaryXMLWriter out = null;
+      try {
+         out = new BinaryXMLWriter(to);
+         String pending = null; // the label of an <atom label=".."> whose start has not been written yet
+         for(int event = xml.next(); event!=XMLPullParser.DONE; event = xml.next()) {
+            if (event==XMLPullParser.END && pending!=null) { out.atom(pending); pending=null; continue; }
+            if (pending!=null) { out.start("atom", "label", pending); pending=null; }
+            if (event==XMLPullParser.END) { out.end(); continue; }
+            if (xml.is("atom") && xml.getAttributeCount()==1 && xml.getAttribute("label", null)!=null) { pending=xml.getAttribute("label"); continue; }
+            String[] attributes = new String[xml.getAttributeCount()*2];
+            for(int i=0; i<attributes.length; i=i+2) { attributes[i]=xml.getAttributeName(i/2); attributes[i+1]=xml.getAttributeValue(i/2); }
+            out.start(xml.getType(), attributes);
+         }
+         out.close();
+      } finally {
+         xml.close();
+         if (out!=null) { try { out.close(); } catch(IOException ex) { } }
+      }
+   }
+
+   /** Read an XML document (in either encoding) and write it into the given file in the usual XML text encoding. */
+   public static void toXML(File from, File to) throws IOException {
+      XMLPullParser xml = new XMLPullParser(from);
+      PrintWriter out = null;
+      try {
+         out = new PrintWriter(to, "UTF-8");
+         boolean open = false; // true if the latest start tag has not been closed by ">" yet
+         for(int event = xml.next(); event!=XMLPullParser.DONE; event = xml.next()) {
+            int indent = (xml.depth()-1)*2;
+            if (event==XMLPullParser.END) {
+               if (open) { out.print("/>\n"); open=false; continue; }
+               for(int i=0; i<indent; i++) out.print(' ');
+               Util.encodeXMLs(out, "</", xml.getType(), ">\n");
+               continue;
+            }
+            if (open) out.print(">\n");
+            for(int i=0; i<indent; i++) out.print(' ');
+            Util.encodeXMLs(out, "<", xml.getType());
+            for(int i=0; i<xml.getAttributeCount(); i++) Util.encodeXMLs(out, " ", xml.getAttributeName(i), "=\"", xml.getAttributeValue(i), "\"");
+            open = true;
+         }
+         if (!Util.close(out)) throw new IOException("Error writing the XML file.");
+      } finally {
+         xml.close();
+         Util.close(out);
+      }
+   }
+
+   /** This converts an instance file between the XML text encoding and the binary encoding.
+    * <p> Usage: java edu.mit.csail.sdg.alloy4.BinaryXMLWriter [-xml | -binary] inputFile outputFile
+    * <p> Without -xml or -binary, a binary input is converted to XML and an XML input is converted to binary.
+    */
+   public static void main(String[] args) throws IOException {
+      String mode = (args.length==3) ? args[0] : "";
+      if ((args.length!=2 && args.length!=3) || (args.length==3 && !mode.equals("-xml") && !mode.equals("-binary"))) {
+         System.err.println("Usage: java edu.mit.csail.sdg.alloy4.BinaryXMLWriter [-xml | -binary] inputFile outputFile");
+         System.exit(1);
+      }
+      File from = new File(args[args.length-2]), to = new File(args[args.length-1]);
+      if (mode.length()==0) mode = isBinary(from) ? "-xml" : "-binary";
+      if (mode.equals("-xml")) toXML(from, to); else toBinary(from, to);
+   }
+}
@@ -0,0 +1,136 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Mutable; this computes a 64-bit hash of a set of atoms and relations that does not change if atoms of the same color are permuted.
+ *
+ * <p> The caller adds each atom with a color (atoms with the same color are interchangeable, such as the atoms of one sig),
+ * then adds each relation (identified by its label) and its tuples, in any order. The hash is computed by partition refinement:
+ * each round recolors every atom by combining its color with the colors of the tuples it occurs in (and its position in them),
+ * until a round no longer splits any color class; then the relations are hashed using the final colors.
+ *
+ * <p> So isomorphic structures always have the same hash, but the converse does not always hold:
+ * refinement cannot tell apart some regular structures (for example, one 6-cycle versus two 3-cycles),
+ * and such shapes are common in Alloy instances (such as any bijection). So an equal hash must not be taken as proof of isomorphism.
+ *
+ * <p><b>Thread Safety:</b> Can be called only by one thread at a time.
+ */
+
+public final class CanonicalHash {
+
+   /** This is one relation. */
+   private static final class Rel {
+      /** The hash of the label. */
+      private final long label;
+      /** The arity. */
+      private final int arity;
+      /** The atoms of the tuples, one tuple after another; only the first "size" entries are used. */
+      private int[] atoms = new int[16];
+      /** The number of entries used in "atoms". */
+      private int size = 0;
+      /** Constructs an empty relation. */
+      private Rel(long label, int arity) { this.label = label; this.arity = arity; }
+   }
+
+   /** The initial color of each atom; only the first "atoms" entries are used. */
+   private long[] colors = new long[16];
+
+   /** The number of atoms. */
+   private int atoms = 0;
+
+   /** The list of relations. */
+   private final List<Rel> rels = new ArrayList<Rel>();
+
+   /** Constructs an empty CanonicalHash. */
+   public CanonicalHash() { }
+
+   /** Mix the given value into the given hash. */
+   public static long mix(long hash, long value) {
+      hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+      return hash ^ (hash >>> 29);
+   }
+
+   /** Add a new atom with the given color, and return its number (atoms are numbered 0, 1, 2...) */
+   public int atom(long color) {
+      if (atoms==colors.length) colors = Arrays.copyOf(colors, atoms*2);
+      colors[atoms] = mix(color, 1);
+      return atoms++;
+   }
+
+   /** Start a new relation; the tuples added after this call (and before the next call to relation()) belong to it. */
+   public void relation(String label, int arity) {
+      rels.add(new Rel(mix(label.hashCode(), arity), arity));
+   }
+
+   /** Add a tuple to the latest relation; each element must be a number returned by atom().
+    * @throws IllegalArgumentException if no relation has been started, or if the tuple's arity is different from the relation's
+    * @throws IllegalArgumentException if some element is not a valid atom number
+    */
+   public void tuple(int... tuple) {
+      if (rels.size()==0) throw new IllegalArgumentException("No relation has been started.");
+      Rel r = rels.get(rels.size()-1);
+      if (tuple.length!=r.arity) throw new IllegalArgumentException("The tuple's arity does not match the relation's arity.");
+      for(int atom: tuple) if (atom<0 || atom>=atoms) throw new IllegalArgumentException("The atom number "+atom+" is invalid.");
+      if (r.size+tuple.length > r.atoms.length) r.atoms = Arrays.copyOf(r.atoms, Math.max(r.size+tuple.length, r.atoms.length*2));
+      System.arraycopy(tuple, 0, r.atoms, r.size, tuple.length);
+      r.size = r.size + tuple.length;
+   }
+
+   /** Returns the hash of the tuple starting at the given offset in the given relation, using the given colors. */
+   private static long hash(Rel r, int offset, long[] colors) {
+      long ans = r.label;
+      for(int i=0; i<r.arity; i++) ans = mix(ans, colors[r.atoms[offset+i]]);
+      return ans;
+   }
+
+   /** Returns the number of distinct values in the given array. */
+   private static int distinct(long[] array) {
+      long[] sorted = array.clone();
+      Arrays.sort(sorted);
+      int ans = 0;
+      for(int i=0; i<sorted.length; i++) if (i==0 || sorted[i]!=sorted[i-1]) ans++;
+      return ans;
+   }
+
+   /** Returns the hash of the atoms and relations added so far. */
+   public long hash() {
+      long[] c = Arrays.copyOf(colors, atoms);
+      // Refine the colors until the number of color classes stops growing
+      for(int classes = distinct(c), round = 0; round < atoms; round++) {
+         long[] sum = new long[atoms];
+         for(Rel r: rels) for(int i=0; i<r.size; i=i+r.arity) {
+            long tuple = hash(r, i, c);
+            for(int j=0; j<r.arity; j++) sum[r.atoms[i+j]] += mix(tuple, j); // sums do not depend on the order of the tuples
+         }
+         for(int i=0; i<atoms; i++) c[i] = mix(c[i], sum[i]); // an atom's new color includes its old color, so each round refines the previous one
+         int n = distinct(c);
+         if (n==classes) break; else classes=n;
+      }
+      // Hash the multiset of atom colors, and the multiset of relations (each one hashed as the multiset of its tuples)
+      long ans = atoms, sum = 0, all = 0;
+      for(int i=0; i<atoms; i++) sum += mix(c[i], 2);
+      for(Rel r: rels) {
+         long tuples = 0;
+         for(int i=0; i<r.size; i=i+r.arity) tuples += mix(hash(r, i, c), 3);
+         all += mix(mix(mix(r.label, r.size), tuples), 4);
+      }
+      return mix(mix(ans, sum), all);
+   }
+}
@@ -376,6 +376,18 @@ public final class Util {
       file.seek(0);
    }
 
+   /** Returns the length of the longest prefix of the given String that needs no XML encoding
+    * (so the caller can copy that prefix as-is, and only encode the remaining characters one at a time).
+    */
+   private static int plainXML(String str) {
+      int n=str.length();
+      for(int i=0; i<n; i++) {
+         char c=str.charAt(i);
+         if (c<32 || c>126 || c=='<' || c=='>' || c=='&' || c=='\'' || c=='\"') return i;
+      }
+      return n;
+   }
+
    /** Write a String into a PrintWriter, and encode special characters using XML-specific encoding.
     *
     * <p>
@@ -388,8 +400,10 @@ public final class Util {
     * @param str - the String to write out
     */
    public static void encodeXML(PrintWriter out, String str) {
-      int n=str.length();
-      for(int i=0; i<n; i++) {
+      int n=str.length(), i=plainXML(str);
+      if (i==n) { out.write(str); return; }
+      if (i>0) out.write(str, 0, i);
+      for(; i<n; i++) {
          char c=str.charAt(i);
          if (c=='<') { out.write("&lt;"); continue; }
          if (c=='>') { out.write("&gt;"); continue; }
@@ -417,8 +431,9 @@ public final class Util {
     * @param str - the String to write out
     */
    public static void encodeXML(StringBuilder out, String str) {
-      int n=str.length();
-      for(int i=0; i<n; i++) {
+      int n=str.length(), i=plainXML(str);
+      out.append(str, 0, i);
+      for(; i<n; i++) {
          char c=str.charAt(i);
          if (c=='<') { out.append("&lt;"); continue; }
          if (c=='>') { out.append("&gt;"); continue; }
@@ -442,7 +457,7 @@ public final class Util {
     * (where HHHH is the 4 digit lowercase hexadecimal representation of the character value).
     */
    public static String encode(String str) {
-      if (str.length() == 0) return str;
+      if (plainXML(str) == str.length()) return str;
       StringBuilder sb = new StringBuilder();
       encodeXML(sb, str);
       return sb.toString();
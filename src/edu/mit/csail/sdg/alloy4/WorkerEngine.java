@@ -15,31 +15,34 @@
 
 package edu.mit.csail.sdg.alloy4;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.List;
 
 /** This class allows you to execute tasks in a subprocess, and receive its outputs via callback.
  *
  * <p> By executing the task in a subprocess, we can always terminate a runaway task explicitly by calling stop(),
  * and we can control how much memory and stack space to give to the subprocess.
  *
- * <p> Only one task may execute concurrently at any given time; if you try to issue a new task
- * when the previous task hasn't finished, then you will get an IOException.
+ * <p> Each task is dispatched to an idle subprocess that was launched with the same memory, stack, JNI path, and CLASSPATH;
+ * if there is none, then a new subprocess is launched. Several tasks may execute concurrently, each in its own subprocess.
+ * When a task finishes successfully, its subprocess becomes idle and is reused for a later task;
+ * if the subprocess crashed, the crash will be reported to the parent process via callback.
  *
- * <p> As long as the subprocess hasn't terminated either due to crashing or due to user calling stop(),
- * then the same subprocess is reused to execute each subsequent task; however, if the subprocess crashed,
- * the crash will be reported to the parent process via callback, and if we try to execute another task,
- * then a new subprocess will be spawned automatically.
+ * <p> To avoid the cold-start latency of a new JVM, setPool() can ask for a number of subprocesses to be launched ahead of time;
+ * each of them first executes a warm-up task (whose outputs are discarded), so that its classes are loaded and its JIT compiler is warm
+ * by the time it receives a real task.
  */
 
 public final class WorkerEngine {
@@ -53,7 +56,7 @@ public final class WorkerEngine {
    /** This defines an interface for receiving results from a subprocess. */
    public interface WorkerCallback {
       /** The task would send zero or more non-null Objects to this handler
-       * (the objects will be serialized by the sub JVM and deserialized in the parent JVM). */
+       * (the objects will be encoded by the sub JVM and decoded in the parent JVM; see WorkerProtocol). */
       public void callback(Object msg);
       /** If the task completed successfully, this method will be called. */
       public void done();
@@ -85,52 +88,138 @@ public final class WorkerEngine {
       };
    }
 
-   /** If nonnull, it is the latest sub JVM. */
-   private static Process latest_sub = null;
+   /** This is one sub JVM. */
+   private static final class Worker {
+      /** The sub JVM. */
+      private final Process sub;
+      /** The stream that receives the frames from the sub JVM. */
+      private final InputStream in;
+      /** The stream that sends the frames to the sub JVM. */
+      private final OutputStream out;
+      /** The memory, stack, JNI path, and CLASSPATH that the sub JVM was launched with. */
+      private final String config;
+      /** True if this sub JVM has been terminated; once it is true, no more results will reach any callback. */
+      private boolean dead = false;
+      /** Constructs a new Worker object. */
+      private Worker(Process sub, String config) {
+         this.sub = sub;
+         this.config = config;
+         this.in = new BufferedInputStream(sub.getInputStream());
+         this.out = new BufferedOutputStream(sub.getOutputStream());
+      }
+   }
+
+   /** The sub JVMs that are ready to accept a task. */
+   private static final List<Worker> idle = new ArrayList<Worker>();
+
+   /** The sub JVMs that are still executing the warm-up task. */
+   private static final List<Worker> warming = new ArrayList<Worker>();
 
-   /** If nonnull, it is the latest worker thread talking to the sub JVM.
-    * (If latest_sub==null, then we guarantee latest_manager is also null) */
-   private static Thread latest_manager = null;
+   /** The sub JVMs that are executing a task. */
+   private static final List<Worker> busy = new ArrayList<Worker>();
+
+   /** If nonnull, it is the sub JVM that received the latest task from run(). */
+   private static Worker latest = null;
+
+   /** The number of sub JVMs (idle, warming up, or busy) we try to keep. */
+   private static int poolSize = 0;
+
+   /** If nonnull, every sub JVM launched ahead of time executes this task before it is considered ready. */
+   private static WorkerTask warmup = null;
 
    /** Constructor is private since this class does not need to be instantiated. */
    private WorkerEngine() { }
 
-   /** This terminates the subprocess, and prevent any further results from reaching the parent's callback handler. */
+   /** This terminates the given sub JVM, and prevent any further results from reaching the parent's callback handler. */
+   private static void kill(Worker w) {
+      synchronized(WorkerEngine.class) {
+         try { w.sub.destroy(); } finally { w.dead=true; idle.remove(w); warming.remove(w); busy.remove(w); if (latest==w) latest=null; }
+      }
+   }
+
+   /** This terminates every subprocess that is executing a task, and prevent any further results from reaching the parent's callback handler. */
    public static void stop() {
       synchronized(WorkerEngine.class) {
-         try { if (latest_sub!=null) latest_sub.destroy(); } finally { latest_manager=null; latest_sub=null; }
+         for(Worker w: new ArrayList<Worker>(busy)) kill(w);
       }
    }
 
-   /** This returns true iff the subprocess is still busy processing the last task. */
+   /** This returns true iff some subprocess is still busy processing a task. */
    public static boolean isBusy() {
-      synchronized(WorkerEngine.class) { return latest_manager!=null && latest_manager.isAlive(); }
+      synchronized(WorkerEngine.class) { return busy.size()>0; }
+   }
+
+   /** This sets the number of subprocesses to launch ahead of time, and the task that each of them executes before it is considered ready.
+    * @param size - the number of subprocesses to keep, counting the busy ones (0 means subprocesses are only launched when a task needs one)
+    * @param warmupTask - if nonnull, every subprocess launched ahead of time executes this task first (and its outputs are discarded)
+    */
+   public static void setPool(int size, WorkerTask warmupTask) {
+      synchronized(WorkerEngine.class) { poolSize = (size>0 ? size : 0); warmup = warmupTask; }
+   }
+
+   /** This launches subprocesses ahead of time until there are as many idle, warming-up, or busy subprocesses as the pool size
+    * (a busy subprocess counts, since it becomes idle again once its task is done),
+    * after terminating every idle subprocess that was launched with different settings.
+    * @param newmem - the amount of memory (in megabytes) we want the subprocesses to have
+    * @param newstack - the amount of stack (in kilobytes) we want the subprocesses to have
+    * @param jniPath - if nonnull and nonempty, then it specifies the subprocesses' default JNI library location
+    * @param classPath - if nonnull and nonempty, then it specifies the subprocesses' default CLASSPATH,
+    *                    else we'll use System.getProperty("java.class.path")
+    * @throws IOException - if an error occurred in launching a sub JVM
+    */
+   public static void warm(int newmem, int newstack, String jniPath, String classPath) throws IOException {
+      if (classPath==null || classPath.length()==0) classPath = System.getProperty("java.class.path");
+      synchronized(WorkerEngine.class) {
+         String config = newmem + " " + newstack + " " + jniPath + " " + classPath;
+         prune(config);
+         while(idle.size() + warming.size() + busy.size() < poolSize) {
+            final Worker w = new Worker(launch(newmem, newstack, jniPath, classPath), config);
+            if (warmup==null) { idle.add(w); continue; }
+            warming.add(w);
+            start(w, warmup, new WorkerCallback() {
+               public void callback(Object msg) { }
+               public void done() { if (warming.remove(w)) { idle.add(w); trim(); } }
+               public void fail() { }
+            });
+         }
+      }
+   }
+
+   /** This terminates every idle or warming-up subprocess that has exited or was launched with different settings than the given settings. */
+   private static void prune(String config) {
+      synchronized(WorkerEngine.class) {
+         List<Worker> list = new ArrayList<Worker>(idle);
+         list.addAll(warming);
+         for(Worker w: list) if (!w.config.equals(config) || !isAlive(w.sub)) kill(w);
+      }
+   }
+
+   /** Returns true if the given process has not exited. */
+   private static boolean isAlive(Process sub) {
+      try { sub.exitValue(); return false; } catch(IllegalThreadStateException ex) { return true; }
    }
 
    /** This executes a task using the current thread.
     * @param task - the task that we want to execute
     * @param callback - the handler that will receive outputs from the task
-    * @throws IOException - if a previous task is still busy executing
+    * @throws IOException - if a subprocess is still busy executing a task
     */
    public static void runLocally(final WorkerTask task, final WorkerCallback callback) throws Exception {
       synchronized(WorkerEngine.class) {
-         if (latest_manager!=null && latest_manager.isAlive()) throw new IOException("Subprocess still performing the last task.");
+         if (busy.size()>0) throw new IOException("Subprocess still performing the last task.");
          try { task.run(callback); callback.done(); } catch(Throwable ex) { callback.callback(ex); callback.fail(); }
       }
    }
 
-   /** This issues a new task to the subprocess;
-    * if subprocess hasn't been constructed yet or has terminated abnormally, this method will launch a new subprocess.
+   /** This issues a new task to an idle subprocess launched with the given settings;
+    * if there is no such subprocess, this method will launch a new subprocess.
     * @param task - the task that we want the subprocess to execute
     * @param newmem - the amount of memory (in megabytes) we want the subprocess to have
-    *                 (if the subproces has not terminated, then this parameter is ignored)
     * @param newstack - the amount of stack (in kilobytes) we want the subprocess to have
-    *                   (if the subproces has not terminated, then this parameter is ignored)
     * @param jniPath - if nonnull and nonempty, then it specifies the subprocess's default JNI library location
     * @param classPath - if nonnull and nonempty, then it specifies the subprocess's default CLASSPATH,
     *                    else we'll use System.getProperty("java.class.path")
     * @param callback - the handler that will receive outputs from the task
-    * @throws IOException - if a previous task is still busy executing
     * @throws IOException - if an error occurred in launching a sub JVM or talking to it
     */
    public static void run
@@ -138,72 +227,107 @@ public final class WorkerEngine {
    throws IOException {
       if (classPath==null || classPath.length()==0) classPath = System.getProperty("java.class.path");
       synchronized(WorkerEngine.class) {
-         final Process sub;
-         if (latest_manager!=null && latest_manager.isAlive()) throw new IOException("Subprocess still performing the last task.");
-         try {
-            if (latest_sub!=null) latest_sub.exitValue(); latest_manager=null; latest_sub=null;
-         } catch(IllegalThreadStateException ex) { }
-         if (latest_sub==null) {
-            String java = "java", javahome = System.getProperty("java.home");
-            if (javahome!=null && javahome.length()>0) {
-               // First try "[JAVAHOME]/bin/java"
-               File f = new File(javahome + File.separatorChar + "bin" + File.separatorChar + "java");
-               // Then try "[JAVAHOME]/java"
-               if (!f.isFile()) f = new File(javahome + File.separatorChar + "java");
-               // All else, try "java" (and let the Operating System search the program path...)
-               if (f.isFile()) java = f.getAbsolutePath();
+         String config = newmem + " " + newstack + " " + jniPath + " " + classPath;
+         prune(config);
+         Worker w = idle.size()>0 ? idle.remove(idle.size()-1) : new Worker(launch(newmem, newstack, jniPath, classPath), config);
+         busy.add(w);
+         latest = w;
+         start(w, task, callback);
+         warm(newmem, newstack, jniPath, classPath);
+      }
+   }
+
+   /** This issues a new task to the subprocess that received the latest task from run(),
+    * so that the task can use whatever state the latest task left behind in that subprocess;
+    * if that subprocess has terminated, this method behaves like run().
+    * @throws IOException - if that subprocess is still busy executing the latest task
+    * @throws IOException - if an error occurred in launching a sub JVM or talking to it
+    */
+   public static void runOnLatest
+   (final WorkerTask task, int newmem, int newstack, String jniPath, String classPath, final WorkerCallback callback)
+   throws IOException {
+      synchronized(WorkerEngine.class) {
+         Worker w = latest;
+         if (w==null || w.dead || !isAlive(w.sub)) { run(task, newmem, newstack, jniPath, classPath, callback); return; }
+         if (busy.contains(w)) throw new IOException("Subprocess still performing the last task.");
+         idle.remove(w);
+         busy.add(w);
+         start(w, task, callback);
+      }
+   }
+
+   /** This launches a new sub JVM with the given settings. */
+   private static Process launch(int newmem, int newstack, String jniPath, String classPath) throws IOException {
+      String java = "java", javahome = System.getProperty("java.home");
+      if (javahome!=null && javahome.length()>0) {
+         // First try "[JAVAHOME]/bin/java"
+         File f = new File(javahome + File.separatorChar + "bin" + File.separatorChar + "java");
+         // Then try "[JAVAHOME]/java"
+         if (!f.isFile()) f = new File(javahome + File.separatorChar + "java");
+         // All else, try "java" (and let the Operating System search the program path...)
+         if (f.isFile()) java = f.getAbsolutePath();
+      }
+      String debug = "yes".equals(System.getProperty("debug")) ? "yes" : "no";
+      if (jniPath!=null && jniPath.length()>0)
+         return Runtime.getRuntime().exec(new String[] {
+               java,
+               "-Xmx" + newmem + "m",
+               "-Xss" + newstack + "k",
+               "-Djava.library.path=" + jniPath,
+               "-Ddebug=" + debug,
+               "-cp", classPath, WorkerEngine.class.getName(),
+               Version.buildDate(), ""+Version.buildNumber()
+         });
+      else
+         return Runtime.getRuntime().exec(new String[] {
+               java,
+               "-Xmx" + newmem + "m",
+               "-Xss" + newstack + "k",
+               "-Ddebug=" + debug,
+               "-cp", classPath, WorkerEngine.class.getName(),
+               Version.buildDate(), ""+Version.buildNumber()
+         });
+   }
+
+   /** This starts a thread that sends the given task to the given sub JVM, then forwards its outputs to the callback;
+    * when the task finishes (including when it throws an Err, which is sent to the callback before done()), the sub JVM becomes idle,
+    * and when it fails otherwise, the sub JVM is terminated.
+    * (Every method of the callback is called while holding the lock on WorkerEngine.class)
+    */
+   private static void start(final Worker w, final WorkerTask task, final WorkerCallback callback) {
+      Thread manager = new Thread(new Runnable() {
+         public void run() {
+            try {
+               WorkerProtocol.write(w.out, task);
+               w.out.flush();
+            } catch(Throwable ex) {
+               synchronized(WorkerEngine.class) { if (w.dead) return; kill(w); callback.fail(); return; }
             }
-            String debug = "yes".equals(System.getProperty("debug")) ? "yes" : "no";
-            if (jniPath!=null && jniPath.length()>0)
-               sub = Runtime.getRuntime().exec(new String[] {
-                     java,
-                     "-Xmx" + newmem + "m",
-                     "-Xss" + newstack + "k",
-                     "-Djava.library.path=" + jniPath,
-                     "-Ddebug=" + debug,
-                     "-cp", classPath, WorkerEngine.class.getName(),
-                     Version.buildDate(), ""+Version.buildNumber()
-               });
-            else
-               sub = Runtime.getRuntime().exec(new String[] {
-                     java,
-                     "-Xmx" + newmem + "m",
-                     "-Xss" + newstack + "k",
-                     "-Ddebug=" + debug,
-                     "-cp", classPath, WorkerEngine.class.getName(),
-                     Version.buildDate(), ""+Version.buildNumber()
-               });
-            latest_sub = sub;
-         } else {
-            sub = latest_sub;
-         }
-         latest_manager = new Thread(new Runnable() {
-            public void run() {
-               ObjectInputStream sub2main = null;
-               ObjectOutputStream main2sub = null;
+            while(true) {
+               synchronized(WorkerEngine.class) { if (w.dead) return; }
+               Object x;
                try {
-                  main2sub = new ObjectOutputStream(wrap(sub.getOutputStream())); main2sub.writeObject(task); main2sub.close();
-                  sub2main = new ObjectInputStream(wrap(sub.getInputStream()));
+                  x = WorkerProtocol.read(w.in);
                } catch(Throwable ex) {
-                  sub.destroy(); Util.close(main2sub); Util.close(sub2main);
-                  synchronized(WorkerEngine.class) { if (latest_sub != sub) return; callback.fail(); return; }
+                  synchronized(WorkerEngine.class) { if (w.dead) return; kill(w); callback.fail(); return; }
                }
-               while(true) {
-                  synchronized(WorkerEngine.class) { if (latest_sub != sub) return; }
-                  Object x;
-                  try {
-                     x = sub2main.readObject();
-                  } catch(Throwable ex) {
-                     sub.destroy(); Util.close(sub2main);
-                     synchronized(WorkerEngine.class) { if (latest_sub != sub) return; callback.fail(); return; }
-                  }
-                  synchronized(WorkerEngine.class) {
-                     if (latest_sub != sub) return; if (x==null) {callback.done(); return;} else callback.callback(x);
-                  }
+               synchronized(WorkerEngine.class) {
+                  if (w.dead) return;
+                  if (x!=null) { callback.callback(x); continue; }
+                  if (busy.remove(w)) { idle.add(w); trim(); }
+                  callback.done();
+                  return;
                }
             }
-         });
-         latest_manager.start();
+         }
+      });
+      manager.start();
+   }
+
+   /** This terminates the oldest idle sub JVMs (except the latest one) until there are no more than max(1, pool size) idle sub JVMs. */
+   private static void trim() {
+      synchronized(WorkerEngine.class) {
+         for(int i=0; i<idle.size() && idle.size()>Math.max(1, poolSize); i++) if (idle.get(i)!=latest) { kill(idle.get(i)); i--; }
       }
    }
 
@@ -224,12 +348,22 @@ public final class WorkerEngine {
          public void uncaughtException(Thread t, Throwable e) { halt("UncaughtException: "+e, 1); }
       });
       // Redirect System.in, System.out, System.err to no-op (so that if a task tries to read/write to System.in/out/err,
-      // those reads and writes won't mess up the ObjectInputStream/ObjectOutputStream)
+      // those reads and writes won't mess up the frames we exchange with the parent process)
       System.setIn(wrap((InputStream)null));
       System.setOut(new PrintStream(wrap((OutputStream)null)));
       System.setErr(new PrintStream(wrap((OutputStream)null)));
-      final FileInputStream in = new FileInputStream(FileDescriptor.in);
-      final FileOutputStream out = new FileOutputStream(FileDescriptor.out);
+      final InputStream in = new BufferedInputStream(new FileInputStream(FileDescriptor.in));
+      final WorkerProtocol.Sender out = new WorkerProtocol.Sender(new FileOutputStream(FileDescriptor.out));
+      // Progress messages are sent in batches; this thread makes sure none of them waits for more than a moment
+      Thread flusher = new Thread(new Runnable() {
+         public void run() {
+            while(true) {
+               try { Thread.sleep(WorkerProtocol.Sender.DELAY); out.flushIfDue(); } catch(Throwable ex) { halt("Flush: "+ex, 1); }
+            }
+         }
+      });
+      flusher.setDaemon(true);
+      flusher.start();
       // Preload these 3 libraries; on MS Windows with JDK 1.6 this seems to prevent freezes
       try { System.loadLibrary("minisat");       } catch(Throwable ex) { }
       try { System.loadLibrary("minisatprover"); } catch(Throwable ex) { }
@@ -240,9 +374,7 @@ public final class WorkerEngine {
          final WorkerTask task;
          try {
             System.gc(); // while we're waiting for the next task, we might as well encourage garbage collection
-            ObjectInputStream oin = new ObjectInputStream(wrap(in));
-            task = (WorkerTask) oin.readObject();
-            oin.close();
+            task = (WorkerTask) WorkerProtocol.read(in);
          } catch(Throwable ex) {
             halt("Can't read task: "+ex, 1);
             return;
@@ -259,32 +391,28 @@ public final class WorkerEngine {
          }
          t = new Thread(new Runnable() {
             public void run() {
-               ObjectOutputStream x = null;
                Throwable e = null;
                try {
-                  x = new ObjectOutputStream(wrap(out));
-                  final ObjectOutputStream xx = x;
                   WorkerCallback y = new WorkerCallback() {
-                     public void callback(Object x) { try {xx.writeObject(x);} catch(IOException ex) {halt("Callback: "+ex, 1);} }
+                     public void callback(Object x) { try {out.send(x);} catch(IOException ex) {halt("Callback: "+ex, 1);} }
                      public void done() { }
                      public void fail() { }
                   };
                   task.run(y);
-                  x.writeObject(null);
-                  x.flush();
+                  out.send(null);
                } catch(Throwable ex) {
                   e=ex;
                }
                for(Throwable t=e; t!=null; t=t.getCause()) if (t instanceof OutOfMemoryError || t instanceof StackOverflowError) {
-                  try { System.gc(); x.writeObject(t); x.flush(); } catch(Throwable ex2) { } finally { halt("Error: "+e, 2); }
+                  try { System.gc(); out.send(t); out.flush(); } catch(Throwable ex2) { } finally { halt("Error: "+e, 2); }
                }
                if (e instanceof Err) {
-                  try { System.gc(); x.writeObject(e); x.writeObject(null); x.flush(); } catch(Throwable t) { halt("Error: "+e, 1); }
+                  // An Err (such as a syntax error) does not harm this sub JVM, so we report it, end the task as usual, and wait for the next task
+                  try { System.gc(); out.send(e); out.send(null); return; } catch(Throwable t) { halt("Error: "+e, 1); }
                }
                if (e!=null) {
-                  try { System.gc(); x.writeObject(e); x.flush(); } catch(Throwable t) { } finally { halt("Error: "+e, 1); }
+                  try { System.gc(); out.send(e); out.flush(); } catch(Throwable t) { } finally { halt("Error: "+e, 1); }
                }
-               Util.close(x); // avoid memory leaks
             }
          });
          t.start();
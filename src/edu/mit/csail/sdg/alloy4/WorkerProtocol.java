@@ -0,0 +1,229 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/** This implements the message protocol between WorkerEngine and its sub JVMs.
+ *
+ * <p> Every message is sent as a frame: a type byte, followed by the length of the payload, followed by the payload.
+ * <br> TASK (1) carries a WorkerTask from the parent to the sub JVM, using Java serialization
+ * <br> DONE (2) says the current task has finished successfully
+ * <br> ARRAY (3) carries an array whose elements are each a String, Integer, Long, Boolean, or null
+ * <br> STRING (4) carries a String
+ * <br> OBJECT (5) carries any other object, using Java serialization
+ *
+ * <p> Every number is an unsigned varint (7 bits per byte, least significant group first, high bit set on every byte but the last),
+ * every signed number is zigzag-encoded first, and every string is written as the number of UTF-8 bytes, followed by the bytes.
+ * In an ARRAY, each element is a tag byte (NULL, STR, INT, LONG, FALSE, TRUE) followed by its value (if any).
+ * Since almost every progress message is a short array of strings and numbers, most messages cost a few dozen bytes,
+ * instead of the several hundred bytes of class descriptors that a new ObjectOutputStream writes.
+ *
+ * <p><b>Thread Safety:</b> Safe.
+ */
+
+final class WorkerProtocol {
+
+   /** This class cannot be instantiated. */
+   private WorkerProtocol() { }
+
+   /** The frame that carries a WorkerTask. */
+   static final int TASK = 1;
+
+   /** The frame that says the current task has finished successfully. */
+   static final int DONE = 2;
+
+   /** The frame that carries an array of simple values. */
+   static final int ARRAY = 3;
+
+   /** The frame that carries a String. */
+   static final int STRING = 4;
+
+   /** The frame that carries any other object. */
+   static final int OBJECT = 5;
+
+   /** The tags for the elements of an ARRAY frame. */
+   private static final int NULL = 0, STR = 1, INT = 2, LONG = 3, FALSE = 4, TRUE = 5;
+
+   /** Write a number. */
+   private static void number(OutputStream out, long value) throws IOException {
+      while((value & ~0x7FL) != 0) { out.write((int)((value & 0x7F) | 0x80)); value = value >>> 7; }
+      out.write((int)value);
+   }
+
+   /** Read a number. */
+   private static long number(InputStream in) throws IOException {
+      long ans = 0;
+      for(int shift=0; shift<64; shift=shift+7) {
+         int b = in.read();
+         if (b<0) throw new EOFException("Unexpected end of the message.");
+         ans = ans | ((long)(b & 0x7F) << shift);
+         if ((b & 0x80) == 0) return ans;
+      }
+      throw new IOException("Malformed number in the message.");
+   }
+
+   /** Write a string. */
+   private static void string(OutputStream out, String value) throws IOException {
+      byte[] bytes = value.getBytes("UTF-8");
+      number(out, bytes.length);
+      out.write(bytes);
+   }
+
+   /** Read a string. */
+   private static String string(InputStream in) throws IOException {
+      return new String(bytes(in, (int)number(in)), "UTF-8");
+   }
+
+   /** Read the given number of bytes. */
+   private static byte[] bytes(InputStream in, int n) throws IOException {
+      if (n<0) throw new IOException("Malformed length in the message.");
+      byte[] ans = new byte[n];
+      for(int i=0; i<n;) { int r = in.read(ans, i, n-i); if (r<0) throw new EOFException("Unexpected end of the message."); i=i+r; }
+      return ans;
+   }
+
+   /** Returns true if the given message is an array whose every element can be sent in an ARRAY frame. */
+   private static boolean isSimple(Object msg) {
+      if (!(msg instanceof Object[])) return false;
+      for(Object x: (Object[])msg)
+         if (x!=null && !(x instanceof String) && !(x instanceof Integer) && !(x instanceof Long) && !(x instanceof Boolean)) return false;
+      return true;
+   }
+
+   /** Write the frame for the given message (where null means DONE) into the given stream. */
+   static void write(OutputStream out, Object msg) throws IOException {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      int type;
+      if (msg==null) {
+         type = DONE;
+      } else if (msg instanceof String) {
+         type = STRING;
+         string(payload, (String)msg);
+      } else if (isSimple(msg)) {
+         type = ARRAY;
+         Object[] array = (Object[])msg;
+         number(payload, array.length);
+         for(Object x: array) {
+            if (x==null) payload.write(NULL);
+            else if (x instanceof String) { payload.write(STR); string(payload, (String)x); }
+            else if (x instanceof Integer) { int i = (Integer)x; payload.write(INT); number(payload, ((i << 1) ^ (i >> 31)) & 0xFFFFFFFFL); }
+            else if (x instanceof Long) { long i = (Long)x; payload.write(LONG); number(payload, (i << 1) ^ (i >> 63)); }
+            else payload.write(((Boolean)x) ? TRUE : FALSE);
+         }
+      } else {
+         type = (msg instanceof WorkerEngine.WorkerTask) ? TASK : OBJECT;
+         ObjectOutputStream oos = new ObjectOutputStream(payload);
+         oos.writeObject(msg);
+         oos.close();
+      }
+      out.write(type);
+      number(out, payload.size());
+      payload.writeTo(out);
+   }
+
+   /** Read one frame from the given stream, and return its message (where DONE gives null).
+    * @throws EOFException if the stream has ended
+    * @throws IOException if the frame is malformed, or an I/O error occurred
+    */
+   static Object read(InputStream in) throws IOException, ClassNotFoundException {
+      int type = in.read();
+      if (type<0) throw new EOFException("The other process has closed the connection.");
+      long n = number(in);
+      if (n>Integer.MAX_VALUE) throw new IOException("Malformed length in the message.");
+      InputStream payload = new ByteArrayInputStream(bytes(in, (int)n));
+      switch(type) {
+         case DONE: return null;
+         case STRING: return string(payload);
+         case ARRAY: {
+            long count = number(payload);
+            if (count>n) throw new IOException("Malformed array in the message.");
+            Object[] array = new Object[(int)count];
+            for(int i=0; i<array.length; i++) {
+               int tag = payload.read();
+               if (tag==NULL) array[i] = null;
+               else if (tag==STR) array[i] = string(payload);
+               else if (tag==INT) { long x = number(payload); array[i] = (int)((x >>> 1) ^ -(x & 1)); }
+               else if (tag==LONG) { long x = number(payload); array[i] = (x >>> 1) ^ -(x & 1); }
+               else if (tag==FALSE) array[i] = Boolean.FALSE;
+               else if (tag==TRUE) array[i] = Boolean.TRUE;
+               else throw new IOException("Malformed array element in the message.");
+            }
+            return array;
+         }
+         case TASK: case OBJECT: {
+            ObjectInputStream ois = new ObjectInputStream(payload);
+            try { return ois.readObject(); } finally { ois.close(); }
+         }
+      }
+      throw new IOException("Unknown message type "+type+".");
+   }
+
+   /** Mutable; this collects the frames sent by a sub JVM, and writes them to the pipe in batches,
+    * so that a burst of small progress messages does not cost one pipe write each.
+    *
+    * <p> A frame waits in the buffer until DONE is sent, or the buffer is full, or flushIfDue() finds it has waited DELAY milliseconds.
+    *
+    * <p><b>Thread Safety:</b> Safe.
+    */
+   static final class Sender {
+
+      /** The maximum number of milliseconds a frame should wait in the buffer (as long as someone calls flushIfDue() regularly). */
+      static final long DELAY = 50;
+
+      /** Once the buffer has this many bytes, it is written out right away. */
+      private static final int LIMIT = 65536;
+
+      /** The stream to write the frames into. */
+      private final OutputStream out;
+
+      /** The frames that have not been written out yet. */
+      private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+      /** If the buffer is nonempty, this is the time when its oldest frame was added. */
+      private long oldest = 0;
+
+      /** Constructs a Sender that writes into the given stream. */
+      Sender(OutputStream out) { this.out = out; }
+
+      /** Add the frame for the given message (where null means DONE) to the buffer. */
+      synchronized void send(Object msg) throws IOException {
+         if (buffer.size()==0) oldest = System.currentTimeMillis();
+         write(buffer, msg);
+         if (msg==null || buffer.size()>=LIMIT) flush();
+      }
+
+      /** Write out every frame in the buffer. */
+      synchronized void flush() throws IOException {
+         if (buffer.size()==0) return;
+         buffer.writeTo(out);
+         out.flush();
+         buffer.reset();
+      }
+
+      /** Write out every frame in the buffer if the oldest one has waited DELAY milliseconds or more. */
+      synchronized void flushIfDue() throws IOException {
+         if (buffer.size()>0 && System.currentTimeMillis()-oldest>=DELAY) flush();
+      }
+   }
+}
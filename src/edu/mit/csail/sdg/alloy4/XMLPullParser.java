@@ -0,0 +1,612 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4;
+
+import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Mutable; this reads an XML document one element at a time, without building a tree of XMLNode objects.
+ *
+ * <p> Each call to next() returns START when it reaches the start tag of an element (whose type and attributes
+ * can then be queried), END when it reaches the end of an element (an empty element "&lt;x/&gt;" gives a START followed by an END),
+ * and DONE once the root element has ended. Text content, comments, processing instructions, and CDATA sections are skipped.
+ *
+ * <p> It accepts the same documents as XMLNode, and it reports malformed documents with the same messages,
+ * but it only remembers the attributes of the current element and the types of the enclosing elements,
+ * so a document of any size can be read in a small constant amount of memory.
+ *
+ * <p> When constructed from a File or an InputStream, it also accepts the binary encoding written by BinaryXMLWriter
+ * (which is recognized by its first 4 bytes); the events are the same either way.
+ * A binary file is memory-mapped rather than read through a stream, so opening it costs neither a copy nor a heap buffer.
+ *
+ * <p><b>Thread Safety:</b> Can be called only by one thread at a time.
+ */
+
+public final class XMLPullParser {
+
+   /** The value returned by next() at the start of an element. */
+   public static final int START = 1;
+
+   /** The value returned by next() at the end of an element. */
+   public static final int END = 2;
+
+   /** The value returned by next() once the root element has ended. */
+   public static final int DONE = 3;
+
+   /** The reader for the input XML file; null once it has been closed, or if the input is in the binary encoding. */
+   private Reader reader;
+
+   /** The input stream for the binary encoding; null once it has been closed, or if the input is not in the binary encoding (or is memory-mapped). */
+   private InputStream bin;
+
+   /** The memory-mapped binary file (positioned at the next byte); null once it has been closed, or if the input is not a memory-mapped binary file. */
+   private ByteBuffer map;
+
+   /** True if the input is in the binary encoding. */
+   private boolean binary = false;
+
+   /** The number of bytes read so far from the binary encoding. */
+   private long offset = 0;
+
+   /** The list of strings read so far from the binary encoding. */
+   private final List<String> strings = new ArrayList<String>();
+
+   /** The buffer of characters read from the input. */
+   private final char[] buf = new char[8192];
+
+   /** The position of the next character in buf. */
+   private int pos = 0;
+
+   /** The number of valid characters in buf. */
+   private int lim = 0;
+
+   /** The current x position in the file. */
+   private int x = 1;
+
+   /** The current y position in the file. */
+   private int y = 1;
+
+   /** The type of the current element; "" before the first call to next(). */
+   private String type = "";
+
+   /** The number of attributes of the current element. */
+   private int count = 0;
+
+   /** The names of the attributes of the current element. */
+   private String[] keys = new String[8];
+
+   /** The values of the attributes of the current element. */
+   private String[] values = new String[8];
+
+   /** The types of the elements that have started but not ended; only the first "depth" entries are used. */
+   private String[] stack = new String[16];
+
+   /** The number of elements that have started but not ended, including the current element if we are at its start. */
+   private int depth = 0;
+
+   /** True if the current element is an empty element "&lt;x/&gt;" whose END has not been returned yet. */
+   private boolean empty = false;
+
+   /** The latest value returned by next(), or 0 if next() has not been called yet. */
+   private int event = 0;
+
+   /** This is the reusable buffer for parsing names and values. */
+   private final StringBuilder sb = new StringBuilder();
+
+   /** This remembers recently seen names and values, so that repeated names and values (such as atom labels) share one String. */
+   private final String[] cache = new String[1024];
+
+   /** Constructs a parser that reads the given XML document; the reader is closed when DONE is reached, when an error occurs, or when close() is called. */
+   public XMLPullParser(Reader reader) {
+      this.reader = reader;
+   }
+
+   /** Constructs a parser that reads the given XML file (either in UTF-8 encoding or in the binary encoding);
+    * the file is closed when DONE is reached, when an error occurs, or when close() is called.
+    */
+   public XMLPullParser(File file) throws IOException {
+      FileInputStream stream = new FileInputStream(file);
+      try {
+         FileChannel channel = stream.getChannel();
+         long size = channel.size();
+         if (size>=4 && size<=Integer.MAX_VALUE) {
+            ByteBuffer head = ByteBuffer.allocate(4);
+            while(head.hasRemaining() && channel.read(head)>=0) { }
+            if (head.get(0)=='A' && head.get(1)=='4' && head.get(2)=='B' && !head.hasRemaining()) {
+               int version = head.get(3) & 0xFF;
+               if (version!=BinaryXMLWriter.VERSION) throw new IOException("This binary XML file has an unknown version number ("+version+").");
+               map = channel.map(FileChannel.MapMode.READ_ONLY, 4, size-4); // the mapping stays valid after the channel is closed
+               offset = 4;
+               binary = true;
+               Util.close(stream);
+               return;
+            }
+            channel.position(0);
+         }
+      } catch(IOException ex) {
+         Util.close(stream);
+         throw ex;
+      }
+      open(stream);
+   }
+
+   /** Constructs a parser that reads the given XML document (either in UTF-8 encoding or in the binary encoding);
+    * the stream is closed when DONE is reached, when an error occurs, or when close() is called.
+    */
+   public XMLPullParser(InputStream stream) throws IOException {
+      open(stream);
+   }
+
+   /** Prepare to read from the given stream, after checking whether it starts with the magic bytes of the binary encoding. */
+   private void open(InputStream stream) throws IOException {
+      try {
+         InputStream in = new BufferedInputStream(stream, 65536);
+         in.mark(4);
+         if (in.read()=='A' && in.read()=='4' && in.read()=='B') {
+            int version = in.read();
+            if (version!=BinaryXMLWriter.VERSION) throw new IOException("This binary XML file has an unknown version number ("+version+").");
+            offset = 4;
+            binary = true;
+            bin = in;
+         } else {
+            in.reset();
+            reader = new InputStreamReader(in, "UTF-8");
+         }
+      } catch(IOException ex) {
+         Util.close(stream);
+         throw ex;
+      }
+   }
+
+   /** Close the underlying reader (this method is idempotent). */
+   public void close() {
+      if (reader!=null) { Util.close(reader); reader=null; }
+      if (bin!=null) { Util.close(bin); bin=null; }
+      map = null;
+   }
+
+   /** Returns true if the input is in the binary encoding written by BinaryXMLWriter. */
+   public boolean isBinary() { return binary; }
+
+   /** Throws an IOException with the given msg, and associate with it the current line and column location (or the current byte offset). */
+   private void malform(String msg) throws IOException {
+      close();
+      if (binary) throw new IOException("Error at byte "+offset+": "+msg);
+      throw new IOException("Error at line "+y+" column "+x+": "+msg);
+   }
+
+   /** Refill the buffer if it is empty; returns false if end-of-file is reached. */
+   private boolean fill() throws IOException {
+      if (pos<lim) return true;
+      if (reader==null) return false;
+      int n = reader.read(buf, 0, buf.length);
+      while(n==0) n = reader.read(buf, 0, buf.length);
+      if (n<0) return false;
+      pos = 0;
+      lim = n;
+      return true;
+   }
+
+   /** Read the next character.
+    * @throws IOException if end-of-file is reached.
+    * @throws IOException if an I/O error occurred.
+    */
+   private int read() throws IOException {
+      if (pos>=lim && !fill()) malform("Unexpected end of file.");
+      char ch = buf[pos++];
+      if (ch=='\n') { x=1; y++; } else { x++; }
+      return ch;
+   }
+
+   /** Push back the character that was just returned by read(). */
+   private void unread() {
+      pos--;
+      if (buf[pos]=='\n') y--; else x--;
+   }
+
+   /** Peek without consuming the next character, or return -1 if end-of-file is reached.
+    * @throws IOException if an I/O error occurred.
+    */
+   private int peek() throws IOException {
+      return (pos<lim || fill()) ? buf[pos] : -1;
+   }
+
+   /** Consume up to and including the consecutive characters "char1" and "char2".
+    * @throws IOException if we reached end-of-file without seeing the pattern.
+    * @throws IOException if an I/O error occurred.
+    */
+   private void skipUntil(int char1, int char2) throws IOException {
+      while(true) {
+         int ch = read();
+         if (ch==char1 && peek()==char2) { read(); return; }
+      }
+   }
+
+   /** If the next N characters match the given string (where N == length of string), then consume them, else throw IOException.
+    * @throws IOException if the next N characters do not match the given string.
+    * @throws IOException if an I/O error occurred.
+    */
+   private void expect(String string) throws IOException {
+      int saveX=x, saveY=y;
+      for(int i=0; i<string.length(); i++) {
+         if (read()!=string.charAt(i)) { x=saveX; y=saveY; malform("Expects the string \""+string+"\""); }
+      }
+   }
+
+   /** Skip whitespace if any, then return the first non-whitespace character after that.
+    * @throws IOException if after skipping 0 or more white space character we reach end-of-file.
+    * @throws IOException if an I/O error occurred.
+    */
+   private int skipSpace() throws IOException {
+      while(true) {
+         int ch=read();
+         if (ch!=' ' && ch!='\t' && ch!='\r' && ch!='\n') return ch;
+      }
+   }
+
+   /** Skip as much nondata as possible, then return the first character after that (or -1 if we end up at end-of-file).
+    * <p> Specifically, skipNondata(false) consumes (Misc | doctypedecl)* from XML specification
+    * <p> Likewise,     skipNondata(true)  consumes (intSubset)*          from XML specification
+    * <p> (See the XMLNode class for the grammar rules that this method follows.)
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private int skipNondata(boolean inner) throws IOException {
+      while(true) {
+         int ch = peek();
+         if (ch<0) return -1;
+         read();
+         if (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n') continue;
+         if (ch == '<') {
+            ch = read();
+            if (ch == '?') { skipUntil('?', '>'); continue; }
+            if (ch != '!') { unread(); return '<'; }
+            if (peek() == '-') {
+               read();
+               if (read()!='-') malform("Expects start of <!--...-->");
+               skipUntil('-', '-');
+               if (read()!='>') malform("Expects end of <!--...-->");
+               continue;
+            }
+            if (skipNondata(true)!='>') malform("Expects end of <!...>");
+         }
+         else if (!inner || ch == ']' || ch=='>') { return ch; }
+         else if (ch == '[') { if (skipNondata(true)!=']') malform("Expects end of [...]"); }
+         else if (ch == '\'' || ch == '\"') { while(read()!=ch) { } }
+      }
+   }
+
+   /** Returns the content of sb as a String, reusing an equal String if we have seen one recently. */
+   private String cached() {
+      int n = sb.length(), hash = n;
+      for(int i=0; i<n; i++) hash = hash*31 + sb.charAt(i);
+      int slot = (hash ^ (hash>>>12)) & (cache.length-1);
+      String ans = cache[slot];
+      if (ans!=null && ans.length()==n) {
+         int i = 0;
+         while(i<n && ans.charAt(i)==sb.charAt(i)) i++;
+         if (i==n) return ans;
+      }
+      return cache[slot] = sb.toString();
+   }
+
+   /** Parse an element name or attribute name.
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private String parseName() throws IOException {
+      sb.setLength(0);
+      while(true) {
+         int ch = read();
+         if (ch==' ' || ch=='\t' || ch=='\r' || ch=='\n' || ch=='=' || ch=='/' || ch=='<' || ch=='>' || ch=='[' || ch==']') {
+            unread();
+            return cached();
+         }
+         sb.append((char)ch);
+      }
+   }
+
+   /** Parse a value up to delim (which is always either ' or "), assuming the initial ' or " has already been consumed.
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private String parseValue(int delim) throws IOException {
+      sb.setLength(0);
+      while(true) {
+         int ch=read();
+         if (ch==delim) return cached();
+         if (ch=='&') {
+            StringBuilder sb2 = new StringBuilder();
+            while((ch=read()) != ';') sb2.append((char)ch);
+            if (sb2.length()>2 && sb2.charAt(0)=='#' && sb2.charAt(1)=='x') {
+               try { ch=Integer.parseInt(sb2.substring(2), 16); } catch(NumberFormatException ex) { ch=(-1); }
+            } else if (sb2.length()>1 && sb2.charAt(0)=='#'){
+               try { ch=Integer.parseInt(sb2.substring(1)); } catch(NumberFormatException ex) { ch=(-1); }
+            } else {
+               String name = sb2.toString();
+               if (name.equals("amp")) ch='&';
+               else if (name.equals("quot")) ch='"';
+               else if (name.equals("apos")) ch='\'';
+               else if (name.equals("lt")) ch='<';
+               else if (name.equals("gt")) ch='>';
+               else ch=(-1);
+            }
+            if (ch<0) malform("The entity \"&"+sb2.toString()+";\" is unknown.");
+         }
+         sb.append((char)ch);
+      }
+   }
+
+   /** Parse the start tag of an element, assuming the initial "less than" sign has already been consumed.
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private void parseStart() throws IOException {
+      type = parseName();
+      count = 0;
+      while(true) {
+         boolean space = false;
+         int ch = read();
+         if (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n') { space=true; ch=skipSpace(); }
+         if (ch == '=') malform("Unexpected '='");
+         if (ch == '/') {
+            if (read()!='>') malform("Expects '/>'");
+            empty = true;
+            break;
+         }
+         if (ch == '>') break;
+         if (!space) malform("Whitespace needed before a (key,value) pair.");
+         unread();
+         String key = parseName();
+         if (key.length()==0) malform("Attribute name cannot be empty.");
+         if (skipSpace()!='=') malform("Expects = after the attribute name.");
+         ch = skipSpace();
+         if (ch != '\'' && ch != '\"') malform("Expects \' or \" as the start of the attribute value.");
+         String value = parseValue(ch);
+         if (count==keys.length) { keys=Arrays.copyOf(keys, count*2); values=Arrays.copyOf(values, count*2); }
+         keys[count] = key;
+         values[count] = value;
+         count++;
+      }
+      if (depth==stack.length) stack=Arrays.copyOf(stack, depth*2);
+      stack[depth++] = type;
+   }
+
+   /** Parse the end tag of the innermost element, assuming the initial "less than" sign and "forward slash" have already been consumed.
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private void parseEnd() throws IOException {
+      type = stack[depth-1];
+      if (!type.equals(parseName())) malform("Start tag and end tag must have matching types.");
+      if (skipSpace()!='>') malform("Expects '</"+type+">'");
+   }
+
+   /** Skip the content of the innermost element up to the next start tag or end tag; returns true if it is an end tag.
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private boolean skipContent() throws IOException {
+      while(true) {
+         while(read()!='<') { }
+         int ch=read();
+         if (ch=='/') return true;
+         if (ch=='?') { skipUntil('?', '>'); continue; }
+         if (ch=='!') {
+            ch=read();
+            if (ch=='-') {
+               if (read()!='-')  malform("Expects start of <!--...-->");
+               skipUntil('-', '-');
+               if (read()!='>')  malform("Expects end of <!--...-->");
+               continue;
+            }
+            if (ch!='[') malform("Expects <![CDATA[...]]>");
+            expect("CDATA[");
+            for(int ah=0, bh=0; ;) {
+               ch=read();
+               if (ah==']' && bh==']' && ch=='>') break;
+               ah=bh; bh=ch;
+            }
+            continue;
+         }
+         unread();
+         return false;
+      }
+   }
+
+   /** Read the next byte of the binary encoding.
+    * @throws IOException if end-of-file is reached.
+    * @throws IOException if an I/O error occurred.
+    */
+   private int readByte() throws IOException {
+      int ans = (map!=null ? (map.hasRemaining() ? (map.get() & 0xFF) : -1) : (bin==null ? -1 : bin.read()));
+      if (ans<0) malform("Unexpected end of file.");
+      offset++;
+      return ans;
+   }
+
+   /** Read the next number of the binary encoding.
+    * @throws IOException if the binary input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private int readNumber() throws IOException {
+      int ans = 0;
+      for(int shift=0; ; shift=shift+7) {
+         int b = readByte();
+         if (shift>28 || (shift==28 && (b & 0x78)!=0)) malform("The number is too large.");
+         ans = ans | ((b & 0x7F) << shift);
+         if ((b & 0x80)==0) return ans;
+      }
+   }
+
+   /** Read the next string of the binary encoding.
+    * @throws IOException if the binary input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private String readString() throws IOException {
+      int n = readNumber();
+      if (n>0) {
+         if (n>strings.size()) malform("The string number "+n+" is undefined.");
+         return strings.get(n-1);
+      }
+      byte[] bytes = new byte[readNumber()];
+      if (map!=null) {
+         if (bytes.length>map.remaining()) malform("Unexpected end of file.");
+         map.get(bytes);
+         offset = offset + bytes.length;
+      }
+      else for(int i=0; i<bytes.length;) {
+         int r = bin.read(bytes, i, bytes.length-i);
+         if (r<0) malform("Unexpected end of file.");
+         i = i + r;
+         offset = offset + r;
+      }
+      String ans = new String(bytes, "UTF-8");
+      strings.add(ans);
+      return ans;
+   }
+
+   /** Advance to the next event of the binary encoding.
+    * @throws IOException if the binary input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private int nextBinary() throws IOException {
+      int token = readByte();
+      if (depth==0 && event!=0 && token!=0) malform("Expects end of file.");
+      if (token==0) {
+         if (event==0) malform("Expects start of root element.");
+         if (depth>0) malform("Unexpected end of file.");
+         if (map!=null ? map.hasRemaining() : bin.read()>=0) malform("Expects end of file.");
+         close();
+         type = "";
+         return event=DONE;
+      }
+      if (token==BinaryXMLWriter.END) {
+         if (depth==0) malform("Expects start of root element.");
+         type = stack[--depth];
+         return event=END;
+      }
+      if (token==BinaryXMLWriter.ATOM) {
+         type = "atom";
+         keys[0] = "label";
+         values[0] = readString();
+         count = 1;
+         empty = true;
+      } else if (token==BinaryXMLWriter.START) {
+         type = readString();
+         int n = readNumber();
+         for(int i=0; i<n; i++) {
+            if (count==keys.length) { keys=Arrays.copyOf(keys, count*2); values=Arrays.copyOf(values, count*2); }
+            keys[count] = readString();
+            values[count] = readString();
+            count++;
+         }
+      } else {
+         malform("Unknown token "+token+".");
+      }
+      if (depth==stack.length) stack=Arrays.copyOf(stack, depth*2);
+      stack[depth++] = type;
+      return event=START;
+   }
+
+   /** Advance to the next start tag or end tag, and return START or END; if the root element has already ended, return DONE.
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   public int next() throws IOException {
+      if (event==DONE) return DONE;
+      count = 0;
+      if (empty) {
+         empty = false;
+         depth--;
+         return event=END;
+      }
+      if (binary) return nextBinary();
+      if (depth==0 && event==0) {
+         // document ::= Misc* doctypedecl? Misc* element Misc*
+         if (skipNondata(false)!='<') malform("Expects start of root element.");
+         parseStart();
+         return event=START;
+      }
+      if (depth==0) {
+         if (skipNondata(false)!=(-1)) malform("Expects end of file.");
+         close();
+         type = "";
+         return event=DONE;
+      }
+      if (skipContent()) {
+         parseEnd();
+         depth--;
+         return event=END;
+      }
+      parseStart();
+      return event=START;
+   }
+
+   /** If we are at the start of an element, then skip everything up to and including the end of that element.
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   public void skip() throws IOException {
+      if (event!=START) return;
+      for(int d=depth; next()!=END || depth>=d;) { }
+   }
+
+   /** Returns the number of elements that have started but not ended (so the root element is at depth 1, and DONE is at depth 0). */
+   public int depth() { return event==END ? depth+1 : depth; }
+
+   /** Returns the type of the current element. */
+   public String getType() { return type; }
+
+   /** Returns true if the type of the current element is equal to the given type. */
+   public boolean is(String type) { return this.type.equals(type); }
+
+   /** Returns the number of attributes of the current element. */
+   public int getAttributeCount() { return count; }
+
+   /** Returns the name of the i-th attribute of the current element. */
+   public String getAttributeName(int i) {
+      if (i<0 || i>=count) throw new IndexOutOfBoundsException();
+      return keys[i];
+   }
+
+   /** Returns the value of the i-th attribute of the current element. */
+   public String getAttributeValue(int i) {
+      if (i<0 || i>=count) throw new IndexOutOfBoundsException();
+      return values[i];
+   }
+
+   /** Returns the value associated with the given attribute name of the current element; if the attribute doesn't exist, return "". */
+   public String getAttribute(String name) {
+      return getAttribute(name, "");
+   }
+
+   /** Returns the value associated with the given attribute name of the current element; if the attribute doesn't exist, return the defaultValue. */
+   public String getAttribute(String name, String defaultValue) {
+      for(int i=count-1; i>=0; i--) if (keys[i].equals(name)) return values[i];
+      return defaultValue;
+   }
+}
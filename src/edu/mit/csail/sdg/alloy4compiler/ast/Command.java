@@ -141,6 +141,11 @@ public final class Command extends Browsable {
         return new Command(pos, label, check, overall, bitwidth, maxseq, expects, scope, additionalExactScopes, newFormula, parent);
     }
 
+    /** Constructs a new Command object where it is the same as the current object, except with a different overall scope and bitwidth. */
+    public Command change(int overall, int bitwidth) {
+        return new Command(pos, label, check, overall, bitwidth, maxseq, expects, scope, additionalExactScopes, formula, parent);
+    }
+
     /** Constructs a new Command object where it is the same as the current object, except with a different scope. */
     public Command change(ConstList<CommandScope> scope) {
         return new Command(pos, label, check, overall, bitwidth, maxseq, expects, scope, additionalExactScopes, formula, parent);
@@ -82,6 +82,7 @@ import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.PrimSig;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.SubsetSig;
 import edu.mit.csail.sdg.alloy4compiler.ast.Type;
+import edu.mit.csail.sdg.alloy4compiler.ast.VisitQuery;
 import edu.mit.csail.sdg.alloy4compiler.ast.VisitReturn;
 
 /** Mutable; this class represents an Alloy module; equals() uses object identity. */
@@ -136,6 +137,21 @@ public final class CompModule extends Browsable implements Module {
     */
    private int status = 0;
 
+   /** If nonnull, every declaration the parser adds to this module is also logged here, so that ParseCache can replay it later. */
+   List<Object[]> parseLog = null;
+
+   /** The declarations the parser added to this module (in the same format as parseLog), or null if unknown. */
+   List<Object[]> declarations = null;
+
+   /** The text this module was parsed from, or null if unknown. */
+   String source = null;
+
+   /** If this is a resolved world that can be updated by resolveIncrementally(), this is every module it was resolved from, else null.
+    * <p> A world whose resolution produced warnings is never updated incrementally, since the warnings of the declarations
+    * that are not typechecked again would not be reported again.
+    */
+   private List<CompModule> parsedModules = null;
+
    /** The position of the "MODULE" line at the top of the file; Pos.UNKNOWN if the line has not been parsed from the file yet. */
    private Pos modulePos = Pos.UNKNOWN;
 
@@ -808,8 +824,58 @@ public final class CompModule extends Browsable implements Module {
    /** Returns an unmodifiable copy of the current list of OPEN statements. */
    public ConstList<Open> getOpens() { return ConstList.make(opens.values()); }
 
+   /** If we are logging the parse, then append this call to the log, and return the new size of the log (else return -1).
+    * <p> Lists are copied, since the parser reuses and modifies some of them after the call.
+    */
+   private int log(String method, Object... args) {
+      if (parseLog==null) return -1;
+      for(int i=0; i<args.length; i++) if (args[i] instanceof List) args[i] = new ArrayList<Object>((List<?>)args[i]);
+      Object[] call = new Object[args.length+1];
+      call[0] = method;
+      System.arraycopy(args, 0, call, 1, args.length);
+      parseLog.add(call);
+      return parseLog.size();
+   }
+
+   /** Remove the calls logged since the given log size (a declaration that adds other declarations only logs itself). */
+   private void unlog(int size) {
+      if (parseLog!=null && size>=0) while(parseLog.size()>size) parseLog.remove(parseLog.size()-1);
+   }
+
+   /** Replay a log generated by the parser; this adds the same declarations as parsing the same file again. */
+   @SuppressWarnings("unchecked")
+   void replay(List<Object[]> log) throws Err {
+      for(Object[] x: log) {
+         String m = (String) (x[0]);
+         for(int i=1; i<x.length; i++) if (x[i] instanceof List) x = copy(x, i);
+         if (m.equals("addModelName")) addModelName((Pos)x[1], (String)x[2], (List<ExprVar>)x[3]);
+         else if (m.equals("addSeq")) addSeq((Pos)x[1]);
+         else if (m.equals("addOpen")) addOpen((Pos)x[1], (Pos)x[2], (ExprVar)x[3], (List<ExprVar>)x[4], (ExprVar)x[5]);
+         else if (m.equals("addSig")) addSig((String)x[1], (ExprVar)x[2], (List<ExprVar>)x[3], (List<Decl>)x[4], (Expr)x[5], (Attr[])x[6]);
+         else if (m.equals("addEnum")) addEnum((Pos)x[1], (Pos)x[2], (ExprVar)x[3], (List<ExprVar>)x[4], (Pos)x[5]);
+         else if (m.equals("addMacro")) addMacro((Pos)x[1], (Pos)x[2], (String)x[3], (List<ExprVar>)x[4], (Expr)x[5]);
+         else if (m.equals("addFunc")) addFunc((Pos)x[1], (Pos)x[2], (String)x[3], (Expr)x[4], (List<Decl>)x[5], (Expr)x[6], (Expr)x[7]);
+         else if (m.equals("addAssertion")) addAssertion((Pos)x[1], (String)x[2], (Expr)x[3]);
+         else if (m.equals("addFact")) addFact((Pos)x[1], (String)x[2], (Expr)x[3]);
+         else if (m.equals("addCommand") && x[3] instanceof String)
+            addCommand((Boolean)x[1], (Pos)x[2], (String)x[3], (Boolean)x[4], (Integer)x[5], (Integer)x[6], (Integer)x[7], (Integer)x[8], (List<CommandScope>)x[9], (ExprVar)x[10]);
+         else if (m.equals("addCommand"))
+            addCommand((Boolean)x[1], (Pos)x[2], (Expr)x[3], (Boolean)x[4], (Integer)x[5], (Integer)x[6], (Integer)x[7], (Integer)x[8], (List<CommandScope>)x[9], (ExprVar)x[10]);
+         else if (m.equals("doneParsing")) doneParsing();
+         else throw new ErrorFatal("Unknown parser call \""+m+"\" in the parse cache.");
+      }
+   }
+
+   /** Returns a copy of the given logged call where the i-th argument (which must be a List) is replaced by a fresh copy of it. */
+   private static Object[] copy(Object[] call, int i) {
+      Object[] ans = call.clone();
+      ans[i] = new ArrayList<Object>((List<?>)call[i]);
+      return ans;
+   }
+
    /** Add the "MODULE" declaration. */
    void addModelName(Pos pos, String moduleName, List<ExprVar> list) throws Err {
+      int logged = log("addModelName", pos, moduleName, list);
       if (status>0) throw new ErrorSyntax(pos,
             "The \"module\" declaration must occur at the top,\n" + "and can occur at most once.");
       this.moduleName = moduleName;
@@ -829,10 +895,12 @@ public final class CompModule extends Browsable implements Module {
          nextIsExact=false;
       }
       this.status=1; // This line must be at the end, since "addSig" will otherwise bump the status value to 3
+      unlog(logged);
    }
 
    /** Add util/sequniv to the list of declarations. */
    void addSeq(Pos pos) throws Err {
+      int logged = log("addSeq", pos);
       int oldStatus = status;
       status = 0;
       try {
@@ -840,10 +908,12 @@ public final class CompModule extends Browsable implements Module {
       } finally {
          status = oldStatus;
       }
+      unlog(logged);
    }
 
    /** Add an OPEN declaration. */
    void addOpen(Pos pos, Pos isPrivate, ExprVar name, List<ExprVar> args, ExprVar alias) throws Err {
+      log("addOpen", pos, isPrivate, name, args, alias);
       if (status>2) throw new ErrorSyntax(pos, "The \"open\" declaration must occur before any\n" + "sig/pred/fun/fact/assert/check/run command.");
       String as = (alias==null ? "" : alias.label);
       if (name.label.length()==0) throw new ErrorSyntax(name.span(), "The filename cannot be empty.");
@@ -881,6 +951,7 @@ public final class CompModule extends Browsable implements Module {
 
    /** Do any post-parsing processig. */
    void doneParsing() {
+      log("doneParsing");
       status = 3;
       LinkedHashMap<String,Open> copy = new LinkedHashMap<String,Open>(opens);
       opens.clear();
@@ -979,6 +1050,7 @@ public final class CompModule extends Browsable implements Module {
    }
    
    Sig addSig(String name, ExprVar par, List<ExprVar> parents, List<Decl> fields, Expr fact, Attr... attributes) throws Err {
+      log("addSig", name, par, parents, fields, fact, attributes.clone());
       Sig obj;
       Pos pos = Pos.UNKNOWN.merge(WHERE.find(attributes));
       status = 3;
@@ -1009,6 +1081,7 @@ public final class CompModule extends Browsable implements Module {
 
    /** Add an enumeration. */
    void addEnum(Pos pos, Pos priv, ExprVar name, List<ExprVar> atoms, Pos closingBracket) throws Err {
+      int logged = log("addEnum", pos, priv, name, atoms, closingBracket);
       ExprVar EXTENDS = ExprVar.make(null, "extends");
       ExprVar THIS = ExprVar.make(null, "this/"+name);
       List<ExprVar> THESE = Arrays.asList(THIS);
@@ -1022,6 +1095,7 @@ public final class CompModule extends Browsable implements Module {
       } finally {
          status = oldStatus;
       }
+      unlog(logged);
    }
 
    /** The given Sig will now point to a nonnull Sig. */
@@ -1072,6 +1146,7 @@ public final class CompModule extends Browsable implements Module {
 
    /** Add a MACRO declaration. */
    void addMacro(Pos p, Pos isPrivate, String n, List<ExprVar> decls, Expr v) throws Err {
+      log("addMacro", p, isPrivate, n, decls, v);
       if (!Version.experimental) throw new ErrorSyntax(p, "LET declaration is allowed only inside a toplevel paragraph.");
       ConstList<ExprVar> ds = ConstList.make(decls);
       status=3;
@@ -1086,6 +1161,7 @@ public final class CompModule extends Browsable implements Module {
 
    /** Add a FUN or PRED declaration. */
    void addFunc(Pos p, Pos isPrivate, String n, Expr f, List<Decl> decls, Expr t, Expr v) throws Err {
+      log("addFunc", p, isPrivate, n, f, decls, t, v);
       if (decls==null) decls=new ArrayList<Decl>(); else decls=new ArrayList<Decl>(decls);
       if (f!=null) decls.add(0, new Decl(null, null, null, Util.asList(ExprVar.make(f.span(), "this")), f));
       for(Decl d:decls) {
@@ -1108,11 +1184,14 @@ public final class CompModule extends Browsable implements Module {
       list.add(ans);
    }
 
-   /** Each FunAST will now point to a bodyless Func object. */
-   private JoinableList<Err> resolveFuncDecls(A4Reporter rep, JoinableList<Err> errors, List<ErrorWarning> warns) throws Err {
+   /** Each FunAST will now point to a bodyless Func object.
+    * @param only - if nonnull, then only the FunAST in this set are resolved
+    */
+   private JoinableList<Err> resolveFuncDecls(A4Reporter rep, JoinableList<Err> errors, List<ErrorWarning> warns, Set<Func> only) throws Err {
       for(ArrayList<Func> list: funcs.values()) {
          for(int listi=0; listi<list.size(); listi++) {
             Func f = list.get(listi);
+            if (only!=null && !only.contains(f)) continue;
             String fullname = (path.length()==0 ? "this/" : (path+"/")) + f.label;
             // Each PARAMETER can refer to earlier parameter in the same function, and any SIG or FIELD visible from here.
             // Each RETURNTYPE can refer to the parameters of the same function, and any SIG or FIELD visible from here.
@@ -1148,13 +1227,16 @@ public final class CompModule extends Browsable implements Module {
       return errors;
    }
 
-   /** Each Func's body will now be typechecked Expr object. */
-   private JoinableList<Err> resolveFuncBody(A4Reporter rep, JoinableList<Err> errors, List<ErrorWarning> warns) throws Err {
+   /** Each Func's body will now be typechecked Expr object.
+    * @param only - if nonnull, then only the Func in this map are resolved, and each is given the corresponding untypechecked body
+    */
+   private JoinableList<Err> resolveFuncBody(A4Reporter rep, JoinableList<Err> errors, List<ErrorWarning> warns, Map<Func,Expr> only) throws Err {
       for(ArrayList<Func> entry: funcs.values()) for(Func ff: entry) {
+         if (only!=null && !only.containsKey(ff)) continue;
          Context cx = new Context(this, warns);
          cx.rootfunbody = ff;
          for(Decl d: ff.decls) for(ExprHasName n: d.names) cx.put(n.label, n);
-         Expr newBody = cx.check(ff.getBody());
+         Expr newBody = cx.check(only!=null ? only.get(ff) : ff.getBody());
          if (ff.isPred) 
              newBody = newBody.resolve_as_formula(warns); 
          else
@@ -1188,6 +1270,7 @@ public final class CompModule extends Browsable implements Module {
 
    /** Add an ASSERT declaration. */
    String addAssertion(Pos pos, String name, Expr value) throws Err {
+      log("addAssertion", pos, name, value);
       status=3;
       if (name==null || name.length()==0) name="assert$"+(1+asserts.size());
       dup(pos, name, false);
@@ -1226,13 +1309,14 @@ public final class CompModule extends Browsable implements Module {
 
    /** Add a FACT declaration. */
    void addFact(Pos pos, String name, Expr value) throws Err {
+      log("addFact", pos, name, value);
       status=3;
       if (name==null || name.length()==0) name="fact$"+(1+facts.size());
       facts.add(new Pair<String,Expr>(name, ExprUnary.Op.NOOP.make(value.span().merge(pos), value)));
    }
 
-   /** Each fact name now points to a typechecked Expr rather than an untypechecked Exp; we'll also add the sig appended facts. */
-   private JoinableList<Err> resolveFacts(CompModule res, A4Reporter rep, JoinableList<Err> errors, List<ErrorWarning> warns) throws Err {
+   /** Each fact name now points to a typechecked Expr rather than an untypechecked Exp; we'll also add the sig appended facts (if sigFacts is true). */
+   private JoinableList<Err> resolveFacts(CompModule res, A4Reporter rep, JoinableList<Err> errors, List<ErrorWarning> warns, boolean sigFacts) throws Err {
       Context cx = new Context(this, warns);
       for(int i=0; i<facts.size(); i++) {
          String name = facts.get(i).a;
@@ -1244,7 +1328,7 @@ public final class CompModule extends Browsable implements Module {
             rep.typecheck("Fact " + name + ": " + expr.type()+"\n");
          } else errors = errors.make(expr.errors);
       }
-      for(Sig s: sigs.values()) {
+      if (sigFacts) for(Sig s: sigs.values()) {
          Expr f = res.old2appendedfacts.get(res.new2old.get(s));
          if (f == null) continue;
          if (f instanceof ExprConstant && ((ExprConstant)f).op==ExprConstant.Op.TRUE) continue;
@@ -1280,6 +1364,7 @@ public final class CompModule extends Browsable implements Module {
    /** Add a COMMAND declaration. */
    @SuppressWarnings("unused")
    void addCommand(boolean followUp, Pos p, String n, boolean c, int o, int b, int seq, int exp, List<CommandScope> s, ExprVar label) throws Err {
+      log("addCommand", followUp, p, n, c, o, b, seq, exp, s, label);
       if (followUp && !Version.experimental) throw new ErrorSyntax(p, "Syntax error encountering => symbol.");
       if (label!=null) p=Pos.UNKNOWN.merge(p).merge(label.pos);
       status=3;
@@ -1294,6 +1379,7 @@ public final class CompModule extends Browsable implements Module {
    /** Add a COMMAND declaration. */
    @SuppressWarnings("unused")
    void addCommand(boolean followUp, Pos p, Expr e, boolean c, int o, int b, int seq, int exp, List<CommandScope> s, ExprVar label) throws Err {
+      int logged = log("addCommand", followUp, p, e, c, o, b, seq, exp, s, label);
       if (followUp && !Version.experimental) throw new ErrorSyntax(p, "Syntax error encountering => symbol.");
       if (label!=null) p=Pos.UNKNOWN.merge(p).merge(label.pos);
       status=3;
@@ -1304,6 +1390,7 @@ public final class CompModule extends Browsable implements Module {
       Command parent = followUp ? commands.get(commands.size()-1) : null;
       Command newcommand = new Command(e.span().merge(p), labelName, c, o, b, seq, exp, s, null, ExprVar.make(null, n), parent);
       if (parent!=null) commands.set(commands.size()-1, newcommand); else commands.add(newcommand);
+      unlog(logged);
    }
 
    /** Resolve a particular command. */
@@ -1472,7 +1559,8 @@ public final class CompModule extends Browsable implements Module {
    /** This method resolves the entire world; NOTE: if it throws an exception, it may leave the world in an inconsistent state! */
    static CompModule resolveAll(final A4Reporter rep, final CompModule root) throws Err {
       final List<ErrorWarning> warns = new ArrayList<ErrorWarning>();
-      for(CompModule m: root.getAllReachableModules()) root.allModules.add(m);
+      final List<CompModule> parsed = new ArrayList<CompModule>();
+      for(CompModule m: root.getAllReachableModules()) { root.allModules.add(m); parsed.add(m); }
       resolveParams(rep, root.allModules);
       resolveModules(rep, root.allModules);
       for(CompModule m: root.allModules) for(Sig s: m.sigs.values()) root.sig2module.put(s, m);
@@ -1488,7 +1576,7 @@ public final class CompModule extends Browsable implements Module {
       for(Sig oldS: root.new2old.keySet()) resolveFieldDecl(root, rep, oldS, warns, false);
       // Typecheck the function declarations
       JoinableList<Err> errors = new JoinableList<Err>();
-      for(CompModule x: root.allModules) errors = x.resolveFuncDecls(rep, errors, warns);
+      for(CompModule x: root.allModules) errors = x.resolveFuncDecls(rep, errors, warns, null);
       if (!errors.isEmpty()) throw errors.pick();
       // Typecheck the defined fields
       for(Sig oldS: root.new2old.keySet()) resolveFieldDecl(root, rep, oldS, warns, true);
@@ -1497,9 +1585,9 @@ public final class CompModule extends Browsable implements Module {
       rejectNameClash(root.allModules);
       // Typecheck the function bodies, assertions, and facts (which can refer to function declarations)
       for(CompModule x: root.allModules) {
-         errors = x.resolveFuncBody(rep, errors, warns);
+         errors = x.resolveFuncBody(rep, errors, warns, null);
          errors = x.resolveAssertions(rep, errors, warns);
-         errors = x.resolveFacts(root, rep, errors, warns);
+         errors = x.resolveFacts(root, rep, errors, warns, true);
          // also, we can collect up all the exact sigs and add them to the root module's list of exact sigs
          for(String n: x.exactParams) { Sig sig = x.params.get(n); if (sig!=null) root.exactSigs.add(sig); }
       }
@@ -1509,9 +1597,165 @@ public final class CompModule extends Browsable implements Module {
       if (!errors.isEmpty()) throw errors.pick();
       for(ErrorWarning w:warns) rep.warning(w);
       for(Sig s: root.exactSigs) rep.debug("Forced to be exact: "+s+"\n");
+      if (!(Version.experimental && root.seenDollar) && warns.isEmpty()) root.parsedModules = parsed;
       return root;
    }
 
+   /** This method tries to bring a resolved world up to date with a freshly parsed (but not yet resolved) world,
+    * by typechecking only the funcs, assertions, facts, and commands whose text changed, plus every func, assertion, and fact that calls a changed func.
+    *
+    * <p> If the change cannot be handled this way (for example, if a sig, field, macro, or open statement changed),
+    * then this method returns null without modifying the old world; the caller should resolve the new world from scratch.
+    *
+    * <p> Otherwise the old world is updated in place and returned.
+    * If it throws an exception, the old world is left in an inconsistent state and will never be updated incrementally again.
+    *
+    * @param old - a world returned by resolveAll() or by an earlier call to this method
+    * @param root - the root module of the new parse
+    */
+   static CompModule resolveIncrementally(final A4Reporter rep, final CompModule old, final CompModule root) throws Err {
+      final List<CompModule> oldModules = old.parsedModules;
+      final SafeList<CompModule> newModules = root.getAllReachableModules();
+      if (oldModules==null || old.seenDollar!=root.seenDollar || old.resolution!=root.resolution || oldModules.size()!=newModules.size()) return null;
+      // Pair up the modules, then find every changed declaration; only funcs, assertions, facts, and commands are allowed to change
+      final List<CompModule> changed = new ArrayList<CompModule>();
+      final Map<Func,Func> replaced = new LinkedHashMap<Func,Func>(); // Maps each old resolved Func to its new unresolved Func
+      for(int i=0; i<oldModules.size(); i++) {
+         CompModule a = oldModules.get(i), b = newModules.get(i);
+         if (!a.path.equals(b.path) || !a.modulePos.filename.equals(b.modulePos.filename) || !a.funcs.keySet().equals(b.funcs.keySet())) return null;
+         if (a.declarations==null || b.declarations==null || a.declarations.size()!=b.declarations.size()) return null;
+         if (a.declarations==b.declarations) continue;
+         Map<String,Integer> counts = new HashMap<String,Integer>();
+         boolean diff = false;
+         for(int j=0; j<a.declarations.size(); j++) {
+            Object[] x = a.declarations.get(j), y = b.declarations.get(j);
+            String method = (String) (y[0]);
+            if (!method.equals(x[0])) return null;
+            int k = 0;
+            if (method.equals("addFunc")) { Integer c = counts.get(y[3]); if (c!=null) k = c; counts.put((String)(y[3]), k+1); }
+            if (x==y || sameDeclaration(a.source, x, b.source, y)) continue;
+            if (method.equals("addFunc")) replaced.put(a.funcs.get(y[3]).get(k), b.funcs.get(y[3]).get(k));
+            else if (!method.equals("addAssertion") && !method.equals("addFact") && !method.equals("addCommand")) return null;
+            diff = true;
+         }
+         if (!diff) continue;
+         // A module that was merged with an identical module cannot be updated on its own
+         if (!old.allModules.contains(a)) return null;
+         // The funcs generated by "run {...}" commands are numbered by their position, so we always replace them
+         for(Map.Entry<String,ArrayList<Func>> e: a.funcs.entrySet()) if (e.getKey().startsWith("run$")) {
+            List<Func> list = b.funcs.get(e.getKey());
+            if (list.size()!=e.getValue().size()) return null;
+            for(int k=0; k<list.size(); k++) replaced.put(e.getValue().get(k), list.get(k));
+         }
+         changed.add(a);
+      }
+      if (changed.isEmpty()) {
+         for(int i=0; i<oldModules.size(); i++) { oldModules.get(i).declarations = newModules.get(i).declarations; oldModules.get(i).source = newModules.get(i).source; }
+         for(Sig s: old.exactSigs) rep.debug("Forced to be exact: "+s+"\n");
+         return old;
+      }
+      // Find the funcs, assertions, and facts that call a replaced func; if a sig or field calls one, then give up
+      final VisitQuery<Object> calls = new VisitQuery<Object>() {
+         @Override public final Object visit(ExprCall x) throws Err { return replaced.containsKey(x.fun) ? x : super.visit(x); }
+      };
+      for(CompModule a: old.allModules) for(Sig s: a.sigs.values()) {
+         for(Expr f: s.getFacts()) if (f.accept(calls)!=null) return null;
+         for(Field f: s.getFields()) if (f.decl().expr.accept(calls)!=null) return null;
+      }
+      final Map<Func,Expr> bodies = new LinkedHashMap<Func,Expr>(); // Maps each dependent Func to its new unresolved body
+      final Map<CompModule,CompModule> modules = new LinkedHashMap<CompModule,CompModule>(); // Maps each module whose assertions and facts must be resolved again to its new parse
+      for(int i=0; i<oldModules.size(); i++) {
+         CompModule a = oldModules.get(i), b = newModules.get(i);
+         if (!old.allModules.contains(a)) continue;
+         for(Map.Entry<String,ArrayList<Func>> e: a.funcs.entrySet()) for(int k=0; k<e.getValue().size(); k++) {
+            Func f = e.getValue().get(k);
+            if (!replaced.containsKey(f) && f.getBody().accept(calls)!=null) bodies.put(f, b.funcs.get(e.getKey()).get(k).getBody());
+         }
+         boolean redo = changed.contains(a);
+         for(Expr e: a.asserts.values()) if (!redo && e.accept(calls)!=null) redo = true;
+         for(Pair<String,Expr> e: a.facts) if (!redo && e.b.accept(calls)!=null) redo = true;
+         if (redo) modules.put(a, b);
+      }
+      // From now on, the old world is modified; if anything goes wrong, it can no longer be updated incrementally
+      old.parsedModules = null;
+      final List<ErrorWarning> warns = new ArrayList<ErrorWarning>();
+      JoinableList<Err> errors = new JoinableList<Err>();
+      final List<Pair<ArrayList<Func>,Integer>> installed = new ArrayList<Pair<ArrayList<Func>,Integer>>();
+      for(CompModule a: old.allModules) {
+         Set<Func> decls = new LinkedHashSet<Func>();
+         for(ArrayList<Func> list: a.funcs.values()) for(int k=0; k<list.size(); k++) {
+            Func f = replaced.get(list.get(k));
+            if (f!=null) { list.set(k, f); decls.add(f); installed.add(new Pair<ArrayList<Func>,Integer>(list, k)); }
+         }
+         if (!decls.isEmpty()) errors = a.resolveFuncDecls(rep, errors, warns, decls);
+      }
+      if (!errors.isEmpty()) throw errors.pick();
+      for(Pair<ArrayList<Func>,Integer> p: installed) { Func f = p.a.get(p.b); bodies.put(f, f.getBody()); }
+      for(CompModule a: old.allModules) {
+         errors = a.resolveFuncBody(rep, errors, warns, bodies);
+         CompModule b = modules.get(a);
+         if (b==null) continue;
+         a.asserts.clear();
+         a.asserts.putAll(b.asserts);
+         errors = a.resolveAssertions(rep, errors, warns);
+         a.facts.clear();
+         a.facts.addAll(b.facts);
+         errors = a.resolveFacts(old, rep, errors, warns, false);
+      }
+      if (!errors.isEmpty()) throw errors.pick();
+      old.commands.clear();
+      old.commands.addAll(root.commands);
+      old.resolveCommands(old.getAllReachableFacts());
+      for(ErrorWarning w:warns) rep.warning(w);
+      for(Sig s: old.exactSigs) rep.debug("Forced to be exact: "+s+"\n");
+      for(int i=0; i<oldModules.size(); i++) { oldModules.get(i).declarations = newModules.get(i).declarations; oldModules.get(i).source = newModules.get(i).source; }
+      if (warns.isEmpty()) old.parsedModules = oldModules;
+      return old;
+   }
+
+   /** Returns true if two logged parser calls are certainly the same declaration at the same position:
+    * that is, they have the same arguments, and the same source text on every line they span.
+    */
+   private static boolean sameDeclaration(String source1, Object[] call1, String source2, Object[] call2) {
+      if (source1==null || source2==null || call1.length!=call2.length) return false;
+      Pos p1 = Pos.UNKNOWN, p2 = Pos.UNKNOWN;
+      for(int i=0; i<call1.length; i++) {
+         Object a = call1[i], b = call2[i];
+         if (a==null || b==null || a instanceof String || a instanceof Number || a instanceof Boolean) {
+            if (a==null ? b!=null : !a.equals(b)) return false;
+            continue;
+         }
+         Pos q1 = span(a), q2 = span(b);
+         if (q1==null || q2==null) return false;
+         p1 = p1.merge(q1);
+         p2 = p2.merge(q2);
+      }
+      if (!p1.equals(p2)) return false;
+      if (p1==Pos.UNKNOWN) return true;
+      String[] lines1 = source1.split("\n", -1), lines2 = source2.split("\n", -1);
+      if (p1.y<1 || p1.y2>lines1.length || p1.y2>lines2.length) return false;
+      for(int y=p1.y-1; y<p1.y2; y++) if (!lines1[y].equals(lines2[y])) return false;
+      return true;
+   }
+
+   /** Returns the span of a logged parser call argument, or null if it has an unexpected type. */
+   private static Pos span(Object x) {
+      if (x instanceof Pos) return (Pos)x;
+      if (x instanceof Expr) return ((Expr)x).span();
+      if (x instanceof Decl) return ((Decl)x).span();
+      if (x instanceof CommandScope) return ((CommandScope)x).pos;
+      if (x instanceof Attr) return ((Attr)x).pos;
+      Object[] list = (x instanceof List) ? ((List<?>)x).toArray() : (x instanceof Attr[] ? (Object[])x : null);
+      if (list==null) return null;
+      Pos ans = Pos.UNKNOWN;
+      for(Object y: list) {
+         if (y==null) continue;
+         Pos p = span(y);
+         if (p==null) return null; else ans = ans.merge(p);
+      }
+      return ans;
+   }
+
    //============================================================================================================================//
 
    /** Add a global expression; if the name already exists, it is removed first. */
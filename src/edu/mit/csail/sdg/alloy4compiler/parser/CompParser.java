@@ -2253,11 +2253,18 @@ public class CompParser extends java_cup.runtime.lr_parser {
         if (content==null) content = Util.readAll(filename);
         if (loaded!=null) loaded.put(filename,content);
         content = Util.convertLineBreak(content);
+        if (ParseCache.replay(u, seenDollar, filename, lineOffset, content)) return u;
+        List<Object> dollar = new ArrayList<Object>();
         isr = new StringReader(content);
-        CompFilter s = new CompFilter(u, seenDollar, filename, lineOffset, new BufferedReader(isr));
+        CompFilter s = new CompFilter(u, dollar, filename, lineOffset, new BufferedReader(isr));
         CompParser p = new CompParser(s);
         p.alloymodule=u;
+        u.parseLog=new ArrayList<Object[]>();
         try {p.parse();} catch(Throwable ex) {if (ex instanceof Err) throw (Err)ex; throw new ErrorFatal("Parser Exception", ex);}
+        if (dollar.size()>0 && seenDollar.size()==0) seenDollar.add(null);
+        ParseCache.put(filename, lineOffset, content, dollar.size()>0, u.parseLog);
+        if (lineOffset==0) { u.declarations=u.parseLog; u.source=content; }
+        u.parseLog=null;
         return u;
     } finally {
         Util.close(isr);
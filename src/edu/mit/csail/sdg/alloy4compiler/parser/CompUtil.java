@@ -299,6 +299,25 @@ public final class CompUtil {
      * <p> And if loaded!=null, it will contain all the files needed for this parse, and furthermore, other entries will be deleted.
      */
     public static CompModule parseEverything_fromFile (A4Reporter rep, Map<String,String> loaded, String filename, int initialResolutionMode) throws Err {
+        return parseEverything_fromFile(rep, loaded, filename, initialResolutionMode, null);
+    }
+
+    /** Read everything from "file" and parse it; if it mentions submodules, open them and parse them too.
+     *
+     * <p> If "previous" is the result of an earlier parse, and only the text of some funcs, assertions, facts, or commands have changed since then,
+     * then only those (and the funcs, assertions, and facts that call a changed func) are typechecked again, and "previous" is updated and returned.
+     * Either way, "previous" must not be used after this call.
+     *
+     * @param rep - if nonnull, we will report compilation progress messages to it
+     * @param loaded - a cache of files that have been pre-fetched (can be null if there were no prefetching)
+     * @param filename - the main module we are parsing
+     * @param initialResolutionMode - use 1 for the historical behavior, and 2 for Alloy 4.2's new "universal implicit this" name resolution behavior
+     * @param previous - the result of an earlier parse (can be null)
+     * @return the root CompModule which contains pointers to all submodules
+     * @throws Err if an error occurred
+     * <p> And if loaded!=null, it will contain all the files needed for this parse, and furthermore, other entries will be deleted.
+     */
+    public static CompModule parseEverything_fromFile (A4Reporter rep, Map<String,String> loaded, String filename, int initialResolutionMode, Module previous) throws Err {
         try {
             filename = Util.canon(filename);
             Set<String> thispath = new LinkedHashSet<String>();
@@ -312,6 +331,14 @@ public final class CompUtil {
                 root.addGhostSig();
             }
             root.seenDollar = seenDollar.size()>0;
+            if (previous instanceof CompModule) {
+                try {
+                    CompModule ans = CompModule.resolveIncrementally(rep==null ? A4Reporter.NOP : rep, (CompModule)previous, root);
+                    if (ans!=null) return ans;
+                } catch(Err ex) {
+                    // Typecheck everything from scratch, so that the error (if any) is the same as without "previous"
+                }
+            }
             return CompModule.resolveAll(rep==null ? A4Reporter.NOP : rep, root);
         } catch(FileNotFoundException ex) {
             throw new ErrorSyntax("File cannot be found.\n"+ex.getMessage(), ex);
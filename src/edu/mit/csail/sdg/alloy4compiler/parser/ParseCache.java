@@ -0,0 +1,87 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.parser;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import edu.mit.csail.sdg.alloy4.Err;
+
+/** This caches the result of parsing each file, so that unchanged files (such as the util library) are not lexed and parsed again.
+ *
+ * <p> The parser does not build a separate syntax tree; instead, it adds each declaration to a CompModule as soon as it is parsed.
+ * So for each file, we remember the list of declarations the parser added (see CompModule.parseLog);
+ * the next time the same file is opened with the same content, we replay that list into a fresh CompModule.
+ * The expressions in the list are immutable, so they can be shared by any number of modules.
+ *
+ * <p><b>Thread Safety:</b> Safe.
+ */
+
+final class ParseCache {
+
+    /** This class cannot be instantiated. */
+    private ParseCache() { }
+
+    /** The maximum number of files to remember. */
+    private static final int MAX = 256;
+
+    /** This is one cached parse. */
+    private static final class Parsed {
+        /** The line offset that was used when parsing. */
+        private final int lineOffset;
+        /** The content that was parsed. */
+        private final String content;
+        /** True if the lexer saw a name containing a dollar sign. */
+        private final boolean seenDollar;
+        /** The declarations that the parser added. */
+        private final List<Object[]> log;
+        /** Constructs a new Parsed. */
+        private Parsed(int lineOffset, String content, boolean seenDollar, List<Object[]> log) {
+            this.lineOffset = lineOffset;
+            this.content = content;
+            this.seenDollar = seenDollar;
+            this.log = Collections.unmodifiableList(log);
+        }
+    }
+
+    /** This maps each filename to its latest cached parse, in least-recently-used order. */
+    private static final Map<String,Parsed> cache = new LinkedHashMap<String,Parsed>(16, 0.75f, true) {
+        /** This ensures the class can be serialized reliably. */
+        private static final long serialVersionUID = 0;
+        /** {@inheritDoc} */
+        @Override protected boolean removeEldestEntry(Map.Entry<String,Parsed> eldest) { return size() > MAX; }
+    };
+
+    /** If the given file with the given content has been parsed before, then replay its declarations into the given module and return true.
+     * @param seenDollar - if the lexer saw a name containing a dollar sign, we add null to this list (if it is empty), just like the lexer does
+     */
+    static boolean replay(CompModule module, List<Object> seenDollar, String filename, int lineOffset, String content) throws Err {
+        Parsed e;
+        synchronized(cache) { e = cache.get(filename); }
+        if (e==null || e.lineOffset!=lineOffset || !e.content.equals(content)) return false;
+        module.replay(e.log);
+        if (lineOffset==0) { module.declarations=e.log; module.source=e.content; }
+        if (e.seenDollar && seenDollar.size()==0) seenDollar.add(null);
+        return true;
+    }
+
+    /** Remember the declarations that the parser added after successfully parsing the given file with the given content. */
+    static void put(String filename, int lineOffset, String content, boolean seenDollar, List<Object[]> log) {
+        Parsed e = new Parsed(lineOffset, content, seenDollar, log);
+        synchronized(cache) { cache.put(filename, e); }
+    }
+}
@@ -18,8 +18,11 @@ package edu.mit.csail.sdg.alloy4compiler.sim;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Immutable; represents an atom.
  *
@@ -33,31 +36,74 @@ import java.util.WeakHashMap;
 
 public final class SimAtom {
 
-    /** This map is used to canonicalize the atoms. */
-    private static final WeakHashMap<SimAtom,WeakReference<SimAtom>> map = new WeakHashMap<SimAtom,WeakReference<SimAtom>>();
+    /** This map is used to canonicalize the atoms; it maps each label to a weak reference to its canonical atom. */
+    private static final ConcurrentHashMap<String,Ref> map = new ConcurrentHashMap<String,Ref>();
+
+    /** When a canonical atom is garbage collected, its reference is added to this queue, so that we can remove it from the map. */
+    private static final ReferenceQueue<SimAtom> queue = new ReferenceQueue<SimAtom>();
+
+    /** The number of distinct indexes handed out so far. */
+    private static final AtomicInteger count = new AtomicInteger(0);
+
+    /** The indexes of the canonical atoms that have been garbage collected, which are reused before we hand out a new one.
+     * <p> This is safe since a SimBitset only lives as long as the tupleset it was built from, and that tupleset keeps its atoms alive.
+     */
+    private static final ConcurrentLinkedQueue<Integer> free = new ConcurrentLinkedQueue<Integer>();
+
+    /** A weak reference to a canonical atom, which remembers its label and index so that they can be released once the atom is gone. */
+    private static final class Ref extends WeakReference<SimAtom> {
+        /** The label of the atom. */
+        private final String label;
+        /** The index of the atom. */
+        private final int index;
+        /** Constructs a weak reference to the given atom. */
+        private Ref(SimAtom atom) { super(atom, queue); this.label = atom.string; this.index = atom.index; }
+    }
 
     /** The String label for the atom; all distinct atoms have distinct labels. */
     private String string;
 
+    /** The dense index of this canonical atom (no two live canonical atoms have the same index); this is used by SimBitset.
+     * <p> The index of a garbage collected atom is reused, so the indexes stay below the largest number of atoms alive at once.
+     */
+    final int index;
+
     /** Construct a SimAtom; this constructor must only be called by make() since we want to canonicalize all SimAtom instances out there. */
-    private SimAtom(String x) { this.string = x; }
+    private SimAtom(String x, int index) { this.string = x; this.index = index; }
 
     /** Construct a SimAtom for the given label, or if an existing SimAtom hasn't been garbage collected yet then return that instead. */
     public static SimAtom make(String label) {
-        synchronized(map) {
-            SimAtom x = new SimAtom(label);
-            WeakReference<SimAtom> ans = map.get(x);
-            if (ans != null) { SimAtom y = ans.get(); if (y!=null) return y; }
-            map.put(x, new WeakReference<SimAtom>(x));
-            return x;
+        Ref ref = map.get(label);
+        if (ref!=null) { SimAtom x = ref.get(); if (x!=null) return x; }
+        // Remove the entries whose atoms have been garbage collected, and release their indexes
+        for(Ref old = (Ref) queue.poll(); old!=null; old = (Ref) queue.poll()) { map.remove(old.label, old); free.add(old.index); }
+        Integer index = free.poll();
+        SimAtom x = new SimAtom(label, index!=null ? index : count.getAndIncrement());
+        ref = new Ref(x);
+        while(true) {
+            Ref old = map.putIfAbsent(label, ref);
+            if (old==null) return x;
+            SimAtom y = old.get();
+            if (y!=null) { ref.clear(); free.add(x.index); return y; } // Another thread has created this atom first, so x was never seen
+            if (map.replace(label, old, ref)) return x;
         }
     }
 
+    /** The smallest integer whose atom is always kept in the SMALL array. */
+    private static final int SMALLMIN = -128;
+
+    /** The canonical atoms for the integers SMALLMIN..(SMALLMIN+SMALL.length-1), which are never garbage collected. */
+    private static final SimAtom[] SMALL = new SimAtom[384];
+
+    static {
+        for(int i=0; i<SMALL.length; i++) SMALL[i] = make(String.valueOf(SMALLMIN + i));
+    }
+
     /** Construct a SimAtom for the given integer, or if an existing SimAtom hasn't been garbage collected yet then return that instead. */
-    public static SimAtom make(int i) { return make(String.valueOf(i)); }
+    public static SimAtom make(int i) { return (i>=SMALLMIN && i<SMALLMIN+SMALL.length) ? SMALL[i-SMALLMIN] : make(String.valueOf(i)); }
 
     /** Construct a SimAtom for the given integer, or if an existing SimAtom hasn't been garbage collected yet then return that instead. */
-    public static SimAtom make(long i) { return make(String.valueOf(i)); }
+    public static SimAtom make(long i) { return (i>=SMALLMIN && i<SMALLMIN+SMALL.length) ? SMALL[(int)i-SMALLMIN] : make(String.valueOf(i)); }
 
     /** Preconstructed atom representing emptystring. */
     public static final SimAtom EMPTYSTRING = make("");
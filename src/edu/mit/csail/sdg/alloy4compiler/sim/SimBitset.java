@@ -0,0 +1,155 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.sim;
+
+import java.util.Arrays;
+
+/** Immutable; represents a set of tuples of arity 3 or less, as a compressed bitset over their packed keys.
+ *
+ * <p> Each atom has a dense index (see SimAtom.index), and a tuple is packed into a long
+ * by concatenating the indexes of its atoms, using BITS bits for each atom.
+ * Since SimAtom reuses the indexes of garbage collected atoms, this only fails when more than 2^BITS atoms are alive at once;
+ * a tupleset with such an atom simply does without a bitset.
+ * The bitset only stores the nonzero 64-bit words, together with the sorted list of their word numbers,
+ * so subset and intersection tests, as well as union, intersection and difference, handle 64 tuples at a time.
+ * (Product and join do not fit this encoding, since their keys are not a simple function of the words.)
+ *
+ * <p><b>Thread Safety:</b>  Safe.
+ */
+
+final class SimBitset {
+
+    /** The number of bits used for each atom in a packed key. */
+    private static final int BITS = 21;
+
+    /** The sorted list of word numbers (key>>>6) that have at least one key. */
+    private final long[] blocks;
+
+    /** words[i] contains the keys in the word numbered blocks[i]; it is never zero. */
+    private final long[] words;
+
+    /** The number of keys. */
+    private final int size;
+
+    /** Constructs a bitset with the given (already compressed) list of words. */
+    private SimBitset(long[] blocks, long[] words, int size) {
+        this.blocks = blocks;
+        this.words = words;
+        this.size = size;
+    }
+
+    /** Returns the packed key for the given tuple, or -1 if the tuple is too long or contains an atom whose index is too large. */
+    static long key(SimTuple tuple) {
+        if (tuple.arity() > 3) return -1;
+        long ans = 0;
+        for(int i=0; i<tuple.arity(); i++) {
+            int index = tuple.get(i).index;
+            if (index<0 || index>=(1<<BITS)) return -1;
+            ans = (ans << BITS) | index;
+        }
+        return ans;
+    }
+
+    /** Returns the bitset containing every tuple in the given tupleset, or null if some of its tuples cannot be packed. */
+    static SimBitset make(SimTupleset tuples) {
+        if (tuples.longsize() > Integer.MAX_VALUE) return null;
+        long[] keys = new long[tuples.size()];
+        int n = 0;
+        for(SimTuple x: tuples) { long key = key(x); if (key<0) return null; keys[n++] = key; }
+        Arrays.sort(keys, 0, n);
+        long[] blocks = new long[n], words = new long[n];
+        int m = 0;
+        for(int i=0; i<n; i++) {
+            long block = keys[i] >>> 6;
+            if (m==0 || blocks[m-1]!=block) { blocks[m] = block; m++; }
+            words[m-1] |= 1L << (keys[i] & 63);
+        }
+        return new SimBitset(Arrays.copyOf(blocks, m), Arrays.copyOf(words, m), n);
+    }
+
+    /** Returns the number of tuples in this set. */
+    int size() { return size; }
+
+    /** Returns true if this set contains the tuple with the given packed key. */
+    boolean has(long key) {
+        if (key<0) return false;
+        int i = Arrays.binarySearch(blocks, key >>> 6);
+        return i>=0 && (words[i] & (1L << (key & 63))) != 0;
+    }
+
+    /** Returns true if every tuple in this set is also in that set. */
+    boolean in(SimBitset that) {
+        if (size > that.size) return false;
+        for(int i=0, j=0; i<blocks.length; i++) {
+            while(j<that.blocks.length && that.blocks[j]<blocks[i]) j++;
+            if (j>=that.blocks.length || that.blocks[j]!=blocks[i] || (words[i] & ~that.words[j])!=0) return false;
+        }
+        return true;
+    }
+
+    /** Returns the set of tuples that are in this set or in that set. */
+    SimBitset or(SimBitset that) {
+        long[] b = new long[blocks.length + that.blocks.length], w = new long[b.length];
+        int m = 0, n = 0;
+        for(int i=0, j=0; i<blocks.length || j<that.blocks.length; m++) {
+            if (j>=that.blocks.length || (i<blocks.length && blocks[i]<that.blocks[j])) { b[m]=blocks[i]; w[m]=words[i]; i++; }
+            else if (i>=blocks.length || that.blocks[j]<blocks[i]) { b[m]=that.blocks[j]; w[m]=that.words[j]; j++; }
+            else { b[m]=blocks[i]; w[m]=words[i] | that.words[j]; i++; j++; }
+            n += Long.bitCount(w[m]);
+        }
+        return new SimBitset(Arrays.copyOf(b, m), Arrays.copyOf(w, m), n);
+    }
+
+    /** Returns the set of tuples that are in both this set and that set. */
+    SimBitset and(SimBitset that) {
+        int max = Math.min(blocks.length, that.blocks.length);
+        long[] b = new long[max], w = new long[max];
+        int m = 0, n = 0;
+        for(int i=0, j=0; i<blocks.length && j<that.blocks.length;) {
+            if (blocks[i]<that.blocks[j]) i++;
+            else if (blocks[i]>that.blocks[j]) j++;
+            else {
+                long x = words[i] & that.words[j];
+                if (x!=0) { b[m]=blocks[i]; w[m]=x; m++; n+=Long.bitCount(x); }
+                i++; j++;
+            }
+        }
+        return new SimBitset(Arrays.copyOf(b, m), Arrays.copyOf(w, m), n);
+    }
+
+    /** Returns the set of tuples that are in this set but not in that set. */
+    SimBitset andNot(SimBitset that) {
+        long[] b = new long[blocks.length], w = new long[blocks.length];
+        int m = 0, n = 0;
+        for(int i=0, j=0; i<blocks.length; i++) {
+            while(j<that.blocks.length && that.blocks[j]<blocks[i]) j++;
+            long x = (j<that.blocks.length && that.blocks[j]==blocks[i]) ? (words[i] & ~that.words[j]) : words[i];
+            if (x!=0) { b[m]=blocks[i]; w[m]=x; m++; n+=Long.bitCount(x); }
+        }
+        return new SimBitset(Arrays.copyOf(b, m), Arrays.copyOf(w, m), n);
+    }
+
+    /** Returns true if this set and that set have at least one tuple in common. */
+    boolean intersects(SimBitset that) {
+        for(int i=0, j=0; i<blocks.length && j<that.blocks.length;) {
+            if (blocks[i]<that.blocks[j]) i++;
+            else if (blocks[i]>that.blocks[j]) j++;
+            else if ((words[i] & that.words[j])!=0) return true;
+            else { i++; j++; }
+        }
+        return false;
+    }
+}
@@ -27,6 +27,7 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import edu.mit.csail.sdg.alloy4.Env;
 import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.ErrorAPI;
@@ -99,6 +100,12 @@ public final class SimInstance extends VisitReturn<Object> {
     /** The maximum allowed integer based on the chosen bitwidth. */
     private final int max;
 
+    /** The maximum number of threads to use when evaluating an expensive operator (such as closure) over a large relation. */
+    private int threads = 1;
+
+    /** The number of quantifications (including comprehensions and sums) currently being evaluated; only the outermost one may be split across threads. */
+    private int depth = 0;
+
     /** Whether the was overflow the last time "trunc" was called */
     private boolean wasOverflow;
     public boolean wasOverflow() { return wasOverflow; }
@@ -253,6 +260,7 @@ public final class SimInstance extends VisitReturn<Object> {
         min = old.min;
         max = old.max;
         shiftmask = old.shiftmask;
+        threads = old.threads;
         env = old.env.dup();
         cacheUNIV = old.cacheUNIV;
         cacheSTRING = old.cacheSTRING;
@@ -260,6 +268,15 @@ public final class SimInstance extends VisitReturn<Object> {
         for(Map.Entry<Expr,SimTupleset> e: old.sfs.entrySet()) sfs.put(e.getKey(), e.getValue());
     }
 
+    /** Sets the maximum number of threads to use when evaluating an expensive operator over a large relation, or a quantification with many bindings
+     * (1 means single-threaded); if it is more than 1, then every registered callback must be thread-safe.
+     * <p> The threads come from one pool (with one thread per processor) shared by every instance,
+     * and only the outermost quantification of an evaluation is split, so nested quantifications never multiply the threads.
+     */
+    public void setThreads(int threads) {
+        this.threads = (threads<1 ? 1 : threads);
+    }
+
     /** Register a callback. */
     public void addCallback(Func predicateOrFunction, SimCallback callback) {
         callbacks.put(predicateOrFunction, callback);
@@ -581,8 +598,8 @@ public final class SimInstance extends VisitReturn<Object> {
           case NOT:         return cform(x.sub) ? Boolean.FALSE : Boolean.TRUE;
           case CAST2SIGINT: return SimTupleset.make(SimTuple.make(SimAtom.make(cint(x.sub))));
           case CAST2INT:    return trunc(cset(x.sub).sum());
-          case CLOSURE:     return cset(x.sub).closure();
-          case RCLOSURE:    return cset(x.sub).closure().union(cset(ExprConstant.IDEN));
+          case CLOSURE:     return cset(x.sub).closure(threads);
+          case RCLOSURE:    return cset(x.sub).closure(threads).union(cset(ExprConstant.IDEN));
           case TRANSPOSE:   return cset(x.sub).transpose();
         }
         throw new ErrorFatal(x.pos, "Unsupported operator ("+x.op+") encountered during ExprUnary.accept()");
@@ -689,20 +706,94 @@ public final class SimInstance extends VisitReturn<Object> {
     @Override public Object visit(ExprQt x) throws Err {
         Expr xx = x.desugar();
         if (xx instanceof ExprQt) x = (ExprQt)xx; else return visitThis(xx);
+        depth++;
+        try { return visitQt(x); } finally { depth--; }
+    }
+
+    /** Helper method that evaluates a desugared quantification. */
+    private Object visitQt(ExprQt x) throws Err {
         if (x.op == ExprQt.Op.COMPREHENSION) {
            TempList<SimTuple> ans = new TempList<SimTuple>();
            enumerate(ans, 0, x, x.sub, 0);
            return SimTupleset.make(ans.makeConst());
         }
-        if (x.op == ExprQt.Op.ALL)  return enumerate(null, 0, x, x.sub.not(), 0) == 0;
-        if (x.op == ExprQt.Op.NO)   return enumerate(null, 0, x, x.sub,       0) == 0;
-        if (x.op == ExprQt.Op.SOME) return enumerate(null, 0, x, x.sub,       0) >= 1;
-        if (x.op == ExprQt.Op.LONE) return enumerate(null, 0, x, x.sub,       0) <= 1;
-        if (x.op == ExprQt.Op.ONE)  return enumerate(null, 0, x, x.sub,       0) == 1;
         if (x.op == ExprQt.Op.SUM)  return trunc(enumerate(null, 0, x, x.sub, 0));
+        final Expr body = (x.op == ExprQt.Op.ALL) ? x.sub.not() : x.sub;
+        int sum = (threads>1 && depth==1) ? enumerateParallel(x, body) : -1;
+        if (sum<0) sum = enumerate(null, 0, x, body, 0);
+        if (x.op == ExprQt.Op.ALL)  return sum == 0;
+        if (x.op == ExprQt.Op.NO)   return sum == 0;
+        if (x.op == ExprQt.Op.SOME) return sum >= 1;
+        if (x.op == ExprQt.Op.LONE) return sum <= 1;
+        if (x.op == ExprQt.Op.ONE)  return sum == 1;
         throw new ErrorFatal(x.pos, "Unsupported operator ("+x.op+") encountered during ExprQt.accept()");
     }
 
+    /** If the first variable of an ALL/NO/SOME/LONE/ONE quantification has at least this many bindings, then we may split them across threads. */
+    private static final int PARALLEL = 32;
+
+    /** Helper method that enumerates an ALL/NO/SOME/LONE/ONE quantification by splitting the bindings of its first variable across several threads,
+     * where each thread evaluates on its own copy of this instance; once enough bindings satisfy the body to decide the answer, every thread stops.
+     * @return the same answer as enumerate(null, 0, x, body, 0), or -1 if the first variable has too few bindings to be worth splitting
+     */
+    private int enumerateParallel(final ExprQt x, final Expr body) throws Err {
+       final ExprVar v = x.get(0);
+       final Expr bound = x.getBound(0);
+       if (bound.mult() != ExprUnary.Op.ONEOF) return -1;
+       final SimTupleset e = cset(bound);
+       if (e.longsize() < PARALLEL) return -1;
+       final List<SimTupleset> bindings = new ArrayList<SimTupleset>(e.size());
+       for(Iterator<SimTupleset> it = e.oneOf(); it.hasNext();) bindings.add(it.next());
+       final int limit = (x.op==ExprQt.Op.LONE || x.op==ExprQt.Op.ONE) ? 2 : 1; // once this many bindings satisfy the body, the answer is decided
+       final AtomicInteger next = new AtomicInteger(0), sum = new AtomicInteger(0);
+       final Throwable[] failure = new Throwable[1];
+       final SimInstance[] workers = new SimInstance[Math.min(Math.min(threads, SimThreads.SIZE), bindings.size())];
+       final List<Runnable> tasks = new ArrayList<Runnable>(workers.length);
+       for(int i=0; i<workers.length; i++) {
+          final SimInstance w = workers[i] = fork();
+          tasks.add(new Runnable() {
+             public void run() {
+                try {
+                   for(int j=next.getAndIncrement(); j<bindings.size() && sum.get()<limit; j=next.getAndIncrement()) {
+                      SimTupleset binding = bindings.get(j);
+                      if (bound.mult==2 && !w.isIn(binding, bound)) continue;
+                      w.env.put(v, binding);
+                      int n = (x.count()>1) ? w.enumerate(null, 0, x, body, 1) : (w.cform(body) ? 1 : 0);
+                      w.env.remove(v);
+                      if (n>0) sum.addAndGet(n);
+                   }
+                } catch(Throwable ex) {
+                   synchronized(failure) { if (failure[0]==null) failure[0]=ex; }
+                   next.set(bindings.size());
+                }
+             }
+          });
+       }
+       try {
+          SimThreads.runAll(tasks);
+       } catch(InterruptedException ex) {
+          next.set(bindings.size());
+          throw new ErrorFatal("The evaluation was interrupted.", ex);
+       }
+       for(SimInstance w: workers) if (w.wasOverflow) wasOverflow = true;
+       int ans = sum.get();
+       if (ans>=limit) return ans>2 ? 2 : ans;
+       synchronized(failure) {
+          if (failure[0] instanceof Err) throw (Err)(failure[0]);
+          if (failure[0] != null) throw new ErrorFatal("Unknown exception occurred during evaluation: "+failure[0], failure[0]);
+       }
+       return ans;
+    }
+
+    /** Returns a copy of this instance (including its local variables) for evaluating part of a quantification on another thread. */
+    private SimInstance fork() throws Err {
+       SimInstance ans = new SimInstance(this);
+       ans.current_function.addAll(current_function);
+       ans.cacheForConstants.putAll(cacheForConstants);
+       ans.threads = 1; // quantifications nested inside are evaluated on the worker's own thread
+       return ans;
+    }
+
     /** Helper method that evaluates the formula "a in b" where b.mult==0 */
     public boolean isIn(SimTuple a, Expr b) throws Err {
         b = b.deNOP();
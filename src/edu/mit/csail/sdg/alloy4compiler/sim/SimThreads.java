@@ -0,0 +1,64 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/** This holds the one pool of daemon threads that the evaluator uses to split an expensive operation (see SimInstance.setThreads).
+ *
+ * <p> The pool has one thread per processor and is shared by every SimInstance and SimTupleset,
+ * so many evaluations (or many parallel operations within one evaluation) queue up for the same threads
+ * rather than each starting threads of its own.
+ *
+ * <p><b>Thread Safety:</b>  Safe.
+ */
+
+final class SimThreads {
+
+    /** Constructor is private, since this class never needs to be instantiated. */
+    private SimThreads() { }
+
+    /** The number of threads in the pool. */
+    static final int SIZE = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /** The pool (created on first use); this field must be synchronized. */
+    private static ExecutorService pool = null;
+
+    /** Returns the pool, creating it if it has not been created yet. */
+    private static synchronized ExecutorService pool() {
+        if (pool == null) pool = Executors.newFixedThreadPool(SIZE, new ThreadFactory() {
+            public Thread newThread(Runnable r) { Thread t = new Thread(r, "Alloy evaluator"); t.setDaemon(true); return t; }
+        });
+        return pool;
+    }
+
+    /** Runs every given task on the pool, then waits until they have all finished.
+     * <p> Each task must catch its own exceptions; once this method is interrupted, the caller must make the remaining tasks finish quickly.
+     */
+    static void runAll(List<? extends Runnable> tasks) throws InterruptedException {
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+        for(Runnable task: tasks) futures.add(pool().submit(task));
+        for(Future<?> f: futures) {
+            try { f.get(); } catch(ExecutionException ex) { throw new RuntimeException("Unknown exception occurred during evaluation: "+ex.getCause(), ex.getCause()); }
+        }
+    }
+}
@@ -20,11 +20,16 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import edu.mit.csail.sdg.alloy4.ConstList;
 import edu.mit.csail.sdg.alloy4.ErrorAPI;
 import edu.mit.csail.sdg.alloy4.ErrorType;
@@ -48,6 +53,29 @@ public final class SimTupleset implements Iterable<SimTuple> {
     private final int max;
     private final boolean next;
 
+    /** If the list of tuples has at most this many tuples, then we search it linearly rather than building a hash index. */
+    private static final int SCAN = 8;
+
+    /** If nonnull, this is a compressed bitset of every tuple in this tupleset (it is built on demand,
+     * or handed over by the union, intersection or difference that computed this tupleset);
+     * if it is NONE, then some of the tuples cannot be packed into a bitset, so we use "index" instead.
+     * <br> It is okay if two threads race to build it, since both will build the same bitset.
+     */
+    private volatile Object bits = null;
+
+    /** The value of "bits" when some of the tuples cannot be packed into a bitset. */
+    private static final Object NONE = new Object();
+
+    /** If nonnull, this is a hash index of the list of tuples (it is built on demand, and does not include the min..max tuples).
+     * <br> It is okay if two threads race to build it, since both will build the same index.
+     */
+    private volatile Set<SimTuple> index = null;
+
+    /** If nonnull, this maps each atom to the list of tuples in this tupleset that begin with that atom (it is built on demand).
+     * <br> It is okay if two threads race to build it, since both will build the same index.
+     */
+    private volatile Map<SimAtom,List<SimTuple>> heads = null;
+
     /** Construct a tupleset with the given 4 values (Note: caller MUST make sure there are no duplicates, even between (min,max) and tuples, and that all tuples are of same arity!) */
     private SimTupleset(Collection<SimTuple> tuples, int min, int max, boolean next) {
        this.tuples = ConstList.make(tuples);
@@ -140,7 +168,49 @@ public final class SimTupleset implements Iterable<SimTuple> {
            Integer a = that.get(0).toInt(null), b = that.get(1).toInt(null);
            if (a!=null && b!=null && a<b && a.intValue()==b.intValue()-1 && min<=a && b<=max) return true;
         }
-        return tuples.contains(that);
+        return listHas(that);
+    }
+
+    /** Returns the compressed bitset of every tuple in this tupleset, or null if some of the tuples cannot be packed into a bitset. */
+    private SimBitset bits() {
+        Object ans = bits;
+        if (ans==null) { ans = SimBitset.make(this); if (ans==null) ans = NONE; bits = ans; }
+        return ans==NONE ? null : (SimBitset)ans;
+    }
+
+    /** Returns the compressed bitsets of this tupleset and that tupleset if both are large enough to benefit from them,
+     * both have the same arity, and both can be packed into bitsets; otherwise returns null.
+     */
+    private SimBitset[] bits(SimTupleset that) {
+        if (tuples.size()<=SCAN || that.tuples.size()<=SCAN || arity()!=that.arity()) return null;
+        SimBitset a = bits(), b = that.bits();
+        return (a==null || b==null) ? null : new SimBitset[]{a, b};
+    }
+
+    /** Returns true if the list of tuples contains the given tuple (ignoring the min..max tuples). */
+    private boolean listHas(SimTuple that) {
+        if (tuples.size()<=SCAN) return tuples.contains(that);
+        SimBitset b = bits();
+        if (b!=null) return b.has(SimBitset.key(that));
+        Set<SimTuple> ans = index;
+        if (ans==null) { ans = new HashSet<SimTuple>(tuples); index = ans; }
+        return ans.contains(that);
+    }
+
+    /** Returns the list of tuples in this tupleset that begin with the given atom, in the same order as this tupleset (the caller must not modify it). */
+    private List<SimTuple> startWith(SimAtom atom) {
+        Map<SimAtom,List<SimTuple>> map = heads;
+        if (map==null) {
+            map = new IdentityHashMap<SimAtom,List<SimTuple>>();
+            for(SimTuple x: this) {
+                List<SimTuple> list = map.get(x.head());
+                if (list==null) { list = new ArrayList<SimTuple>(2); map.put(x.head(), list); }
+                list.add(x);
+            }
+            heads = map;
+        }
+        List<SimTuple> ans = map.get(atom);
+        return ans==null ? Collections.<SimTuple>emptyList() : ans;
     }
 
     /** Returns true if this tupleset is unary and contains the given atom. */
@@ -150,6 +220,7 @@ public final class SimTupleset implements Iterable<SimTuple> {
           Integer a = that.toInt(null);
           if (a!=null && min<=a && a<=max) return true;
        }
+       if (tuples.size()>SCAN) return listHas(SimTuple.make(that));
        for(int i=tuples.size()-1; i>=0; i--) if (tuples.get(i).get(0)==that) return true;
        return false;
     }
@@ -181,6 +252,17 @@ public final class SimTupleset implements Iterable<SimTuple> {
     public SimTupleset union(SimTupleset that) {
        if (this.empty() || this==that) return that;
        if (that.empty() || arity()!=that.arity()) return this;
+       SimBitset[] ab = bits(that);
+       if (ab!=null) {
+          SimBitset r = ab[0].or(ab[1]);
+          if (r.size()==longsize()) return this;
+          TempList<SimTuple> ans = new TempList<SimTuple>(r.size());
+          ans.addAll(tuples);
+          for(SimTuple x: that) if (!ab[0].has(SimBitset.key(x))) ans.add(x);
+          SimTupleset set = new SimTupleset(ans.makeConst(), min, max, next);
+          set.bits = r;
+          return set;
+       }
        TempList<SimTuple> ans = null; // when null, it means we haven't found any new tuple to add yet
        for(SimTuple x: that) if (!has(x)) {
           if (ans == null) ans = new TempList<SimTuple>(tuples);
@@ -206,36 +288,34 @@ public final class SimTupleset implements Iterable<SimTuple> {
     public SimTupleset head(int n) {
        if (n<=0 || empty()) return EMPTY; else if (arity() <= n) return this;
        if (min<max) { // if we get here, than arity must be 2, and n must be 1.
-          TempList<SimTuple> ans = new TempList<SimTuple>(tuples.size());
+          LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
           for(SimTuple x: tuples) {
              Integer a = x.head().toInt(null);
              if (a!=null && a>=min && a<max) continue;
-             SimTuple y = SimTuple.make(x.head());
-             if (!ans.contains(y)) ans.add(y);
+             ans.add(SimTuple.make(x.head()));
           }
-          return new SimTupleset(ans.makeConst(), min, max-1, false);
+          return new SimTupleset(ans, min, max-1, false);
        }
-       TempList<SimTuple> ans = new TempList<SimTuple>(tuples.size());
-       for(SimTuple x: this) { SimTuple y = x.head(n); if (!ans.contains(y)) ans.add(y); }
-       return new SimTupleset(ans.makeConst());
+       LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
+       for(SimTuple x: this) ans.add(x.head(n));
+       return new SimTupleset(ans);
     }
 
     /** Return the tupleset where each tuple is truncated to the last N atoms; if n is zero or negative, we return the emptyset; if n >= this.arity, we return this as is. */
     public SimTupleset tail(int n) {
        if (n<=0 || empty()) return EMPTY; else if (arity() <= n) return this;
        if (min<max) { // if we get here, than arity must be 2, and n must be 1.
-          TempList<SimTuple> ans = new TempList<SimTuple>(tuples.size());
+          LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
           for(SimTuple x: tuples) {
              Integer a = x.tail().toInt(null);
              if (a!=null && a>min && a<=max) continue;
-             SimTuple y = SimTuple.make(x.tail());
-             if (!ans.contains(y)) ans.add(y);
+             ans.add(SimTuple.make(x.tail()));
           }
-          return new SimTupleset(ans.makeConst(), min+1, max, false);
+          return new SimTupleset(ans, min+1, max, false);
        }
-       TempList<SimTuple> ans = new TempList<SimTuple>(tuples.size());
-       for(SimTuple x: this) { SimTuple y = x.tail(n); if (!ans.contains(y)) ans.add(y); }
-       return new SimTupleset(ans.makeConst());
+       LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
+       for(SimTuple x: this) ans.add(x.tail(n));
+       return new SimTupleset(ans);
     }
 
     /** Returns a read-only iterator over the tuples. */
@@ -284,16 +364,6 @@ public final class SimTupleset implements Iterable<SimTuple> {
         return make(list);
     }
 
-    /** Returns the index position if the list of tuples contains the tuple (a,b) (or return -1 if not found). */
-    private static int find(TempList<SimTuple> tuples, SimAtom a, SimAtom b) {
-       if (tuples.size() == 0 || tuples.get(0).arity() != 2) return -1;
-       for(int i=tuples.size()-1; i >= 0; i--) {
-          SimTuple x = tuples.get(i);
-          if (x.head()==a && x.tail()==b) return i;
-       }
-       return -1;
-    }
-
     /** {@inheritDoc} */
     @Override public String toString() {
        StringBuilder sb = null;
@@ -326,6 +396,10 @@ public final class SimTupleset implements Iterable<SimTuple> {
     public boolean in(SimTupleset that) {
        if (empty() || this==that) return true;
        if (longsize()>that.longsize() || arity()!=that.arity()) return false;
+       if (tuples.size()>SCAN && that.tuples.size()>SCAN) {
+          SimBitset a = bits(), b = that.bits();
+          if (a!=null && b!=null) return a.in(b);
+       }
        for(SimTuple t: this) if (!that.has(t)) return false;
        return true;
     }
@@ -389,6 +463,16 @@ public final class SimTupleset implements Iterable<SimTuple> {
     public SimTupleset difference(SimTupleset that) {
        if (this.empty() || this==that) return EMPTY;
        if (that.empty() || arity()!=that.arity()) return this;
+       SimBitset[] ab = bits(that);
+       if (ab!=null) {
+          SimBitset r = ab[0].andNot(ab[1]);
+          if (r.size()==longsize()) return this; else if (r.size()==0) return EMPTY;
+          TempList<SimTuple> ans = new TempList<SimTuple>(r.size());
+          for(SimTuple x: this) if (r.has(SimBitset.key(x))) ans.add(x);
+          SimTupleset set = new SimTupleset(ans.makeConst());
+          set.bits = r;
+          return set;
+       }
        TempList<SimTuple> ans = new TempList<SimTuple>(size()-1);
        for(SimTuple x: this) if (!that.has(x)) ans.add(x);
        return ans.size()==longsize() ? this : (ans.size()==0 ? EMPTY : new SimTupleset(ans.makeConst()));
@@ -443,17 +527,26 @@ public final class SimTupleset implements Iterable<SimTuple> {
     public SimTupleset join(SimTupleset that) throws ErrorType {
        if (empty() || that.empty()) return EMPTY;
        if (arity()==1 && that.arity()==1) throw new ErrorType("Cannot join two unary relations.");
-       TempList<SimTuple> ans = new TempList<SimTuple>();
-       for(SimTuple a: this) for(SimTuple b: that) if (a.tail()==b.head()) {
-          SimTuple c = a.join(b);
-          if (!ans.contains(c)) ans.add(c);
-       }
-       return ans.size()==0 ? EMPTY : new SimTupleset(ans.makeConst());
+       LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
+       for(SimTuple a: this) for(SimTuple b: that.startWith(a.tail())) ans.add(a.join(b));
+       return ans.size()==0 ? EMPTY : new SimTupleset(ans);
     }
 
     /** Return the intersection of this and that. */
     public SimTupleset intersect(SimTupleset that) {
        if (this==that) return this; else if (empty() || that.empty()) return EMPTY;
+       SimBitset[] ab = bits(that);
+       if (ab!=null) {
+          SimBitset r = ab[0].and(ab[1]);
+          if (r.size()==0) return EMPTY;
+          if (r.size()==this.longsize()) return this;
+          if (r.size()==that.longsize()) return that;
+          TempList<SimTuple> ans = new TempList<SimTuple>(r.size());
+          for(SimTuple x: that) if (r.has(SimBitset.key(x))) ans.add(x);
+          SimTupleset set = new SimTupleset(ans.makeConst());
+          set.bits = r;
+          return set;
+       }
        TempList<SimTuple> ans = new TempList<SimTuple>(size() < that.size() ? size() : that.size());
        for(SimTuple x: that) if (has(x)) ans.add(x);
        if (ans.size()==0) return EMPTY;
@@ -465,6 +558,11 @@ public final class SimTupleset implements Iterable<SimTuple> {
     public boolean intersects(SimTupleset that) {
        if (empty()) return false;
        if (this==that) return true;
+       if (arity()!=that.arity()) return false;
+       if (tuples.size()>SCAN && that.tuples.size()>SCAN) {
+          SimBitset a = bits(), b = that.bits();
+          if (a!=null && b!=null) return a.intersects(b);
+       }
        for(SimTuple x: that) if (has(x)) return true;
        return false;
     }
@@ -481,28 +579,83 @@ public final class SimTupleset implements Iterable<SimTuple> {
     public SimTupleset range(SimTupleset that) {
        if (that.arity()!=1 || this.empty()) return EMPTY;
        TempList<SimTuple> ans = new TempList<SimTuple>(this.size());
-       for(SimTuple x: this) if (that.has(x.head())) ans.add(x);
+       for(SimTuple x: this) if (that.has(x.tail())) ans.add(x);
        return ans.size()==this.longsize() ? this : (ans.size()==0 ? EMPTY : new SimTupleset(ans.makeConst()));
     }
 
     /** Returns the closure of this tupleset (NOTE: if this.arity!=2, we will return an empty set) */
     public SimTupleset closure() {
+       return closure(1);
+    }
+
+    /** Returns the closure of this tupleset (NOTE: if this.arity!=2, we will return an empty set)
+     * <br/> Note: the result contains the tuples in this tupleset first (in original order), then the new tuples grouped by their first atom.
+     * @param threads - if this relation has many distinct first atoms, then we search from them on up to this many threads
+     * (taken from the pool shared by the evaluator, so at most one per processor)
+     */
+    public SimTupleset closure(int threads) {
        if (arity()!=2) return EMPTY;
-       TempList<SimTuple> ar = new TempList<SimTuple>(size());
-       ar.addAll(this);
-       while(true) {
-          int n = ar.size();
+       // Find the distinct first atoms, in order
+       final List<SimAtom> sources = new ArrayList<SimAtom>();
+       IdentityHashMap<SimAtom,Boolean> seen = new IdentityHashMap<SimAtom,Boolean>();
+       for(SimTuple x: this) if (seen.put(x.head(), Boolean.TRUE)==null) sources.add(x.head());
+       // Search from each first atom; each search only reads this tupleset (and its index, which we build up front), so they can run in parallel
+       startWith(sources.get(0));
+       final List<List<SimTuple>> found = new ArrayList<List<SimTuple>>(sources.size());
+       if (threads>1 && sources.size()>=PARALLEL) {
+          for(int i=0; i<sources.size(); i++) found.add(null);
+          final AtomicInteger next = new AtomicInteger(0);
+          final Throwable[] failure = new Throwable[1];
+          int n = Math.min(Math.min(threads, SimThreads.SIZE), sources.size()/(PARALLEL/4));
+          List<Runnable> workers = new ArrayList<Runnable>(n);
           for(int i=0; i<n; i++) {
-             SimTuple left = ar.get(i);
-             if (left.head()==left.tail()) continue;      // whatever "right" is, "left.right" won't add any new tuple to the final answer
-             for(int j=0; j<n; j++) if (i!=j) {           // whatever "left" is,  "left.left"  won't add any new tuple to the final answer
-                SimTuple right = ar.get(j);
-                if (right.head()==right.tail()) continue; // whatever "left" is,  "left.right" won't add any new tuple to the final answer
-                if (left.tail()==right.head() && find(ar, left.head(), right.tail())<0) ar.add(SimTuple.make(left.head(), right.tail()));
-             }
+             workers.add(new Runnable() {
+                public void run() {
+                   try {
+                      for(int j=next.getAndIncrement(); j<sources.size(); j=next.getAndIncrement()) found.set(j, reach(sources.get(j)));
+                   } catch(Throwable ex) {
+                      synchronized(failure) { failure[0]=ex; }
+                   }
+                }
+             });
           }
-          if (n == ar.size()) return ar.size()==longsize() ? this : new SimTupleset(ar.makeConst()); // if we went through the loop without making any change, we're done
+          try {
+             SimThreads.runAll(workers);
+          } catch(InterruptedException ex) {
+             next.set(sources.size());
+             throw new RuntimeException("The closure computation was interrupted.", ex);
+          }
+          synchronized(failure) {
+             if (failure[0] instanceof RuntimeException) throw (RuntimeException)(failure[0]);
+             if (failure[0] instanceof Error) throw (Error)(failure[0]);
+          }
+       } else {
+          for(SimAtom a: sources) found.add(reach(a));
        }
+       int extra = 0;
+       for(List<SimTuple> x: found) extra = extra + x.size();
+       if (extra==0) return this;
+       TempList<SimTuple> ans = new TempList<SimTuple>(size() + extra);
+       for(SimTuple x: this) ans.add(x);
+       for(List<SimTuple> x: found) ans.addAll(x);
+       return new SimTupleset(ans.makeConst());
+    }
+
+    /** If a relation has at least this many distinct first atoms, then closure(threads) will search from them in parallel. */
+    private static final int PARALLEL = 256;
+
+    /** Returns the tuple (source,x) for each atom x reachable from source in two or more steps but not in one step (assuming this.arity==2). */
+    private List<SimTuple> reach(SimAtom source) {
+       List<SimTuple> ans = new ArrayList<SimTuple>();
+       IdentityHashMap<SimAtom,Boolean> visited = new IdentityHashMap<SimAtom,Boolean>();
+       List<SimAtom> todo = new ArrayList<SimAtom>();
+       for(SimTuple x: startWith(source)) { visited.put(x.tail(), Boolean.TRUE); todo.add(x.tail()); }
+       // Each atom is expanded once, so this takes time proportional to the number of tuples reachable from source
+       for(int i=0; i<todo.size(); i++) for(SimTuple x: startWith(todo.get(i))) {
+          SimAtom b = x.tail();
+          if (visited.put(b, Boolean.TRUE)==null) { todo.add(b); ans.add(SimTuple.make(source, b)); }
+       }
+       return ans;
     }
 
     /** Return the set of tuples which begins with the given tuple (where we remove the "matching leading part") */
@@ -511,8 +664,8 @@ public final class SimTupleset implements Iterable<SimTuple> {
         if (shift <= 0) return EMPTY;
         TempList<SimTuple> ans = new TempList<SimTuple>();
         again:
-        for(SimTuple r: this) {
-            for(int i=0; i<x.arity(); i++) if (r.get(i) != x.get(i)) continue again;
+        for(SimTuple r: startWith(x.head())) {
+            for(int i=1; i<x.arity(); i++) if (r.get(i) != x.get(i)) continue again;
             ans.add(r.tail(shift));
         }
         return ans.size()==0 ? EMPTY : new SimTupleset(ans.makeConst());
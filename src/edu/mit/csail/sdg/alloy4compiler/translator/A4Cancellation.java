@@ -0,0 +1,81 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.translator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Mutable; this is a token that another thread can use to cancel a solve that is in progress.
+ *
+ * <p> To use it, store it in A4Options.cancellation before calling TranslateAlloyToKodkod.execute_command(),
+ * then call cancel() from any thread. The translator, the bounds computer, and the SAT solver check it cooperatively,
+ * and the command returns an unknown solution (see A4Solution.isUnknown()) shortly afterwards.
+ * The SAT4J solver is interrupted in the middle of its search; native solvers can only be stopped once their current search finishes.
+ *
+ * <p> A token cannot be reset; once cancelled, every solve that uses it is cancelled.
+ *
+ * <p><b>Thread Safety:</b> Safe.
+ */
+
+public final class A4Cancellation {
+
+    /** This runtime exception is thrown from deep inside the translation or the SAT solver when the solve is cancelled or has timed out. */
+    static final class Cancelled extends RuntimeException {
+        /** This ensures the class can be serialized reliably. */
+        private static final long serialVersionUID = 0;
+        /** This constructs a new Cancelled exception. */
+        Cancelled() { super("The solving was cancelled or has timed out."); }
+    }
+
+    /** True if cancel() has been called. */
+    private volatile boolean cancelled = false;
+
+    /** The list of actions to run when cancel() is called. */
+    private final List<Runnable> listeners = new ArrayList<Runnable>();
+
+    /** Constructs a new token that is not yet cancelled. */
+    public A4Cancellation() { }
+
+    /** Cancel every solve that uses this token (this method is idempotent). */
+    public void cancel() {
+        List<Runnable> list;
+        synchronized(this) {
+            if (cancelled) return;
+            cancelled = true;
+            list = new ArrayList<Runnable>(listeners);
+            listeners.clear();
+        }
+        for(Runnable r: list) r.run();
+    }
+
+    /** Returns true if cancel() has been called. */
+    public boolean isCancelled() { return cancelled; }
+
+    /** Register an action to run when cancel() is called; if this token is already cancelled, the action is run right away. */
+    void listen(Runnable action) {
+        synchronized(this) { if (!cancelled) { listeners.add(action); return; } }
+        action.run();
+    }
+
+    /** Unregister an action that was registered by listen(). */
+    synchronized void unlisten(Runnable action) { listeners.remove(action); }
+
+    /** Throws Cancelled if the given options have a cancellation token that is cancelled, or have a deadline that has passed. */
+    static void check(A4Options opt) {
+        if (opt.cancellation!=null && opt.cancellation.cancelled) throw new Cancelled();
+        if (opt.deadline>0 && System.currentTimeMillis()>=opt.deadline) throw new Cancelled();
+    }
+}
@@ -110,6 +110,8 @@ public final class A4Options implements Serializable {
         public static final SatSolver GlucoseJNI = new SatSolver("glucose(jni)", "Glucose", null, null, true);
         /** CryptoMiniSat */
         public static final SatSolver CryptoMiniSatJNI = new SatSolver("cryptominisat(jni)", "CryptoMiniSat", null, null, true);
+        /** Races SAT4J and every available native solver, and keeps the first answer */
+        public static final SatSolver Portfolio = new SatSolver("portfolio", "Portfolio (race several solvers)", null, null, true);
         /** SAT4J using native Java */
         public static final SatSolver SAT4J = new SatSolver("sat4j", "SAT4J", null, null, true);
         /** Outputs the raw CNF file only */
@@ -184,6 +186,49 @@ public final class A4Options implements Serializable {
     /** This option constrols how deep we unroll loops and unroll recursive predicate/function/macros (negative means it's disallowed) */
     public int unrolls = (-1);
 
+    /** If nonempty, this specifies the directory where the Kodkod translation of each command is cached,
+     * so that running an unchanged command again can skip the translation.
+     * <p> Default value is "" (which means no caching).
+     */
+    public String cacheDirectory = "";
+
+    /** If positive, this is the time (as given by System.currentTimeMillis()) by which the solving must finish;
+     * if the translation or the SAT solver is still running at that time, the command gives up and returns an unknown solution.
+     * <p> Default value is 0 (which means no deadline).
+     */
+    public long deadline = 0;
+
+    /** If nonnull, another thread can call cancellation.cancel() to make the command give up and return an unknown solution.
+     * <p> Default value is null (which means the solving cannot be cancelled).
+     */
+    public transient A4Cancellation cancellation = null;
+
+    /** If positive, a command (that is not a chain of commands, and whose scopes do not grow) is solved at its own scope,
+     * then again with its overall scope and every inexact scope raised by 1 (see ScopeComputer.escalate), and so on,
+     * up to this many times; it stops at the first step that finds a counterexample (for a "check") or an instance (for a "run"),
+     * or when the budget given by escalationTime or escalationClauses is reached,
+     * in which case the result of the last step that finished is returned. Each step is reported via A4Reporter.step().
+     * <p> Default value is 0 (which means the command is solved only at its own scope).
+     */
+    public int escalation = 0;
+
+    /** If positive, this is the number of milliseconds that the escalation (see escalation) may take;
+     * a step that is still running when this time is up is abandoned.
+     * <p> Default value is 0 (which means there is no time budget).
+     */
+    public long escalationTime = 0;
+
+    /** If positive, the escalation (see escalation) stops at the first step whose CNF has more than this many clauses.
+     * <p> Default value is 0 (which means there is no CNF size budget).
+     */
+    public int escalationClauses = 0;
+
+    /** This option specifies whether the translator should hash-cons the Kodkod formulas it generates for the facts,
+     * so that structurally identical subexpressions and subformulas (such as those of a predicate that is inlined many times) become one node.
+     * <p> Default value is false.
+     */
+    public boolean hashCons = false;
+
     /** This method makes a copy of this Options object. */
     public A4Options dup() {
         A4Options x = new A4Options();
@@ -199,6 +244,13 @@ public final class A4Options implements Serializable {
         x.recordKodkod = recordKodkod;
         x.noOverflow = noOverflow;
         x.coreGranularity = coreGranularity;
+        x.cacheDirectory = cacheDirectory;
+        x.deadline = deadline;
+        x.cancellation = cancellation;
+        x.escalation = escalation;
+        x.escalationTime = escalationTime;
+        x.escalationClauses = escalationClauses;
+        x.hashCons = hashCons;
         return x;
     }
 }
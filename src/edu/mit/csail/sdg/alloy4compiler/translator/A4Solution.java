@@ -53,6 +53,7 @@ import kodkod.engine.Evaluator;
 import kodkod.engine.Proof;
 import kodkod.engine.Solution;
 import kodkod.engine.Solver;
+import kodkod.engine.bool.BooleanFormula;
 import kodkod.engine.config.AbstractReporter;
 import kodkod.engine.config.Options;
 import kodkod.engine.config.Reporter;
@@ -70,6 +71,8 @@ import kodkod.instance.Universe;
 import kodkod.util.ints.IndexedEntry;
 import edu.mit.csail.sdg.alloy4.A4Preferences;
 import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.BinaryXMLWriter;
+import edu.mit.csail.sdg.alloy4.CanonicalHash;
 import edu.mit.csail.sdg.alloy4.ConstList;
 import edu.mit.csail.sdg.alloy4.ConstMap;
 import edu.mit.csail.sdg.alloy4.Err;
@@ -188,9 +191,20 @@ public final class A4Solution {
     /** If not null, you can ask it to get another solution. */
     private Iterator<Solution> kEnumerator = null;
 
+    /** If not null, this is the translated problem from the translation cache, and you can ask it to get another solution. */
+    private TranslationCache.Entry cEnumerator = null;
+
     /** The map from each Sig/Field/Skolem/Atom to its corresponding Kodkod expression. */
     private Map<Expr,Expression> a2k;
 
+    /** If not null, this is the part of a2k for the Sigs and Fields; it is the same for every solution enumerated from the same problem, so it is shared by them. */
+    private ConstMap<Expr,Expression> frameA2k = null;
+
+    /** If not null, this is the list of "next" and "prev" fields (and their types) that may be used to name the atoms in order;
+     * it is the same for every solution enumerated from the same problem, so it is shared by them.
+     */
+    private ConstList<Pair<Field,List<PrimSig>>> frameOrders = null;
+
     /** The map from each String literal to its corresponding Kodkod expression. */
     private final ConstMap<String,Expression> s2k;
 
@@ -203,6 +217,12 @@ public final class A4Solution {
     /** The map from each Kodkod Variable to an Alloy Type and Alloy Pos. */
     private Map<Variable,Pair<Type,Pos>> decl2type;
 
+    /** If not null, addRel() will reuse these relations (in order) whenever the label and arity match; see FactCache. */
+    private List<Relation> pool = null;
+
+    /** If pool!=null, this is the list of relations returned by addRel() since pool() was called. */
+    private List<Relation> pooled = null;
+
     //===================================================================================================//
 
     /** Construct a blank A4Solution containing just UNIV, SIGINT, SEQIDX, STRING, and NONE as its only known sigs.
@@ -289,6 +309,8 @@ public final class A4Solution {
             solver.options().setSolver(SATFactory.Glucose);
         } else if (opt.solver.equals(A4Options.SatSolver.CryptoMiniSatJNI)) {
             solver.options().setSolver(SATFactory.CryptoMiniSat);
+        } else if (opt.solver.equals(A4Options.SatSolver.Portfolio)) {
+            solver.options().setSolver(Portfolio.factory(rep));
         } else if (opt.solver.equals(A4Options.SatSolver.MiniSatJNI)) {
             solver.options().setSolver(SATFactory.MiniSat);
         } else if (opt.solver.equals(A4Options.SatSolver.MiniSatProverJNI)) {
@@ -296,6 +318,8 @@ public final class A4Solution {
             solver.options().setSolver(SATFactory.MiniSatProver);
             solver.options().setLogTranslation(2);
             solver.options().setCoreGranularity(opt.coreGranularity);
+        } else if (opt.deadline>0 || opt.cancellation!=null) {
+            solver.options().setSolver(CancellableSAT4J.factory(opt)); // Kodkod's SAT4J wrapper cannot be interrupted, so we use our own
         } else {
             solver.options().setSolver(SATFactory.DefaultSAT4J); // Even for "KK" and "CNF", we choose SAT4J here; later, just before solving, we'll change it to a Write2CNF solver
         }
@@ -306,14 +330,28 @@ public final class A4Solution {
      }
 
     /** Construct a new A4Solution that is the continuation of the old one, but with the "next" instance. */
-    private A4Solution(A4Solution old) throws Err {
+    private A4Solution(A4Solution old) throws Err { this(old, null, null); }
+
+    /** Construct a new A4Solution that shares the old one's problem, but with another instance.
+     * @param cmd - if nonnull, this becomes the original command of the new solution
+     * @param assumptions - if null, we take the "next" instance of the old solution;
+     * otherwise, the old solution must have been prepared by sweepable(), and we solve its problem again under the given assumptions
+     */
+    private A4Solution(A4Solution old, Command cmd, int[] assumptions) throws Err {
         if (!old.solved) throw new ErrorAPI("This solution is not yet solved, so next() is not allowed.");
-        if (old.kEnumerator==null) throw new ErrorAPI("This solution was not generated by an incremental SAT solver.\n" + "Solution enumeration is currently only implemented for MiniSat and SAT4J.");
-        if (old.eval==null) throw new ErrorAPI("This solution is already unsatisfiable, so you cannot call next() to get the next solution.");
-        Instance inst = old.kEnumerator.next().instance();
+        if (old.kEnumerator==null && old.cEnumerator==null) throw new ErrorAPI("This solution was not generated by an incremental SAT solver.\n" + "Solution enumeration is currently only implemented for MiniSat and SAT4J.");
+        if (old.eval==null && assumptions==null) throw new ErrorAPI("This solution is already unsatisfiable, so you cannot call next() to get the next solution.");
+        Instance inst;
+        boolean unknown = false;
+        try {
+           if (assumptions!=null) inst = old.cEnumerator.solve(assumptions);
+           else inst = (old.cEnumerator!=null) ? old.cEnumerator.next() : old.kEnumerator.next().instance();
+        } catch(A4Cancellation.Cancelled ex) {
+           inst = null; unknown = true;
+        }
         unrolls = old.unrolls;
         originalOptions = old.originalOptions;
-        originalCommand = old.originalCommand;
+        originalCommand = (cmd!=null) ? cmd.toString() : old.originalCommand;
         bitwidth = old.bitwidth;
         maxseq = old.maxseq;
         kAtoms = old.kAtoms;
@@ -326,15 +364,22 @@ public final class A4Solution {
         formulas = old.formulas;
         sigs = old.sigs;
         kEnumerator = old.kEnumerator;
+        cEnumerator = old.cEnumerator;
         k2pos = old.k2pos;
         rel2type = old.rel2type;
         decl2type = old.decl2type;
-        if (inst!=null) {
-           eval = new Evaluator(inst, old.solver.options());
-           a2k = new LinkedHashMap<Expr,Expression>();
+        frameOrders = old.frameOrders;
+        if (old.frameA2k==null) {
+           Map<Expr,Expression> map = new LinkedHashMap<Expr,Expression>();
            for(Map.Entry<Expr,Expression> e: old.a2k.entrySet())
              if (e.getKey() instanceof Sig || e.getKey() instanceof Field)
-                a2k.put(e.getKey(), e.getValue());
+                map.put(e.getKey(), e.getValue());
+           old.frameA2k = ConstMap.make(map);
+        }
+        frameA2k = old.frameA2k;
+        if (inst!=null) {
+           eval = new Evaluator(inst, old.solver.options());
+           a2k = new LinkedHashMap<Expr,Expression>(frameA2k);
            UniqueNameGenerator un = new UniqueNameGenerator();
            rename(this, null, null, un);
            a2k = ConstMap.make(a2k);
@@ -347,7 +392,7 @@ public final class A4Solution {
         atoms = atoms.dup();
         atom2name = ConstMap.make(atom2name);
         atom2sig = ConstMap.make(atom2sig);
-        solved = true;
+        solved = !unknown;
     }
 
     /** Turn the solved flag to be true, and make all remaining fields immutable. */
@@ -388,6 +433,9 @@ public final class A4Solution {
     /** Returns the original Alloy file name that generated this solution; can be "" if unknown. */
     public String getOriginalFilename() { return originalOptions.originalFilename; }
 
+    /** Throws A4Cancellation.Cancelled if the solving has been cancelled or its deadline has passed. */
+    void checkCancelled() { A4Cancellation.check(originalOptions); }
+
     /** Returns the original command that generated this solution; can be "" if unknown. */
     public String getOriginalCommand() { return originalCommand; }
 
@@ -416,7 +464,13 @@ public final class A4Solution {
      */
     Relation addRel(String label, TupleSet lower, TupleSet upper) throws ErrorFatal {
        if (solved) throw new ErrorFatal("Cannot add a Kodkod relation since solve() has completed.");
-       Relation rel = Relation.nary(label, upper.arity());
+       Relation rel = null;
+       if (pool!=null && pooled.size()<pool.size()) {
+          Relation old = pool.get(pooled.size());
+          if (old.name().equals(label) && old.arity()==upper.arity()) rel = old;
+       }
+       if (rel==null) rel = Relation.nary(label, upper.arity());
+       if (pooled!=null) pooled.add(rel);
        if (lower == upper) {
           bounds.boundExactly(rel, upper);
        } else if (lower == null) {
@@ -428,6 +482,22 @@ public final class A4Solution {
        return rel;
     }
 
+    /** Until unpool() is called, addRel() will return the relations in the given list (in order) instead of new ones, as long as the label and arity match.
+     * <br> (Kodkod relations are immutable, and their bounds are stored in each solution separately, so several solutions can share a relation)
+     */
+    void pool(List<Relation> relations) {
+       pool = relations;
+       pooled = new ArrayList<Relation>();
+    }
+
+    /** Stops reusing relations, then returns the list of relations returned by addRel() since pool() was called. */
+    List<Relation> unpool() {
+       List<Relation> ans = pooled;
+       pool = null;
+       pooled = null;
+       return ans;
+    }
+
     /** Add a new sig to this solution and associate it with the given expression (and if s.isTopLevel then add this expression into Sig.UNIV).
      * <br> The expression must contain only constant Relations or Relations that are already bound in this solution.
      * <br> (If the sig was already added by a previous call to addSig(), then this call will return immediately without altering what it is associated with)
@@ -554,6 +624,9 @@ public final class A4Solution {
     /** Returns true iff the problem has been solved and the result is satisfiable. */
     public boolean satisfiable() { return eval!=null; }
 
+    /** Returns true iff the solving was cancelled or reached its deadline before it could tell whether the problem is satisfiable. */
+    public boolean isUnknown() { return !solved; }
+
     /** Returns an unmodifiable copy of the list of all sigs in this solution's model; always contains UNIV+SIGINT+SEQIDX+STRING+NONE and has no duplicates. */
     public SafeList<Sig> getAllReachableSigs() { return sigs.dup(); }
 
@@ -786,44 +859,37 @@ public final class A4Solution {
                skolems.add(t);
                skolems.add(r);
             }
-            // Find all suitable "next" or "prev" relations
-            nexts = new LinkedHashMap<Sig,List<Tuple>>();
-            for(Sig sig:frame.sigs) for(Field f: sig.getFields()) if (f.label.compareToIgnoreCase("next")==0) {
-               List<List<PrimSig>> fold = f.type().fold();
-               if (fold.size()==1) {
-                  List<PrimSig> t = fold.get(0);
-                  if (t.size()==3 && t.get(0).isOne!=null && t.get(1)==t.get(2) && !nexts.containsKey(t.get(1))) {
-                     TupleSet set = frame.eval.evaluate(frame.a2k(t.get(1)));
-                     if (set.size()<=1) continue;
-                     TupleSet next = frame.eval.evaluate(frame.a2k(t.get(0)).join(frame.a2k(f)));
-                     List<Tuple> test = isOrder(next, set);
-                     if (test!=null) nexts.put(t.get(1), test);
-                  } else if (t.size()==2 && t.get(0)==t.get(1) && !nexts.containsKey(t.get(0))) {
-                     TupleSet set = frame.eval.evaluate(frame.a2k(t.get(0)));
-                     if (set.size()<=1) continue;
-                     TupleSet next = frame.eval.evaluate(frame.a2k(f));
-                     List<Tuple> test = isOrder(next, set);
-                     if (test!=null) nexts.put(t.get(1), test);
+            // Find all "next" or "prev" fields whose type is suitable (this only depends on the sigs, so it is computed once and shared)
+            if (frame.frameOrders==null) {
+               List<Pair<Field,List<PrimSig>>> orders = new ArrayList<Pair<Field,List<PrimSig>>>();
+               for(int prev=0; prev<2; prev++) for(Sig sig:frame.sigs) for(Field f: sig.getFields()) if (f.label.compareToIgnoreCase(prev==0 ? "next" : "prev")==0) {
+                  List<List<PrimSig>> fold = f.type().fold();
+                  if (fold.size()==1) {
+                     List<PrimSig> t = fold.get(0);
+                     if ((t.size()==3 && t.get(0).isOne!=null && t.get(1)==t.get(2)) || (t.size()==2 && t.get(0)==t.get(1)))
+                        orders.add(new Pair<Field,List<PrimSig>>(f, t));
                   }
                }
+               frame.frameOrders = ConstList.make(orders);
             }
-            for(Sig sig:frame.sigs) for(Field f: sig.getFields()) if (f.label.compareToIgnoreCase("prev")==0) {
-               List<List<PrimSig>> fold = f.type().fold();
-               if (fold.size()==1) {
-                  List<PrimSig> t = fold.get(0);
-                  if (t.size()==3 && t.get(0).isOne!=null && t.get(1)==t.get(2) && !nexts.containsKey(t.get(1))) {
-                     TupleSet set = frame.eval.evaluate(frame.a2k(t.get(1)));
-                     if (set.size()<=1) continue;
-                     TupleSet next = frame.eval.evaluate(frame.a2k(t.get(0)).join(frame.a2k(f)).transpose());
-                     List<Tuple> test = isOrder(next, set);
-                     if (test!=null) nexts.put(t.get(1), test);
-                  } else if (t.size()==2 && t.get(0)==t.get(1) && !nexts.containsKey(t.get(0))) {
-                     TupleSet set = frame.eval.evaluate(frame.a2k(t.get(0)));
-                     if (set.size()<=1) continue;
-                     TupleSet next = frame.eval.evaluate(frame.a2k(f).transpose());
-                     List<Tuple> test = isOrder(next, set);
-                     if (test!=null) nexts.put(t.get(1), test);
-                  }
+            // Find all suitable "next" or "prev" relations
+            nexts = new LinkedHashMap<Sig,List<Tuple>>();
+            for(Pair<Field,List<PrimSig>> order: frame.frameOrders) {
+               Field f = order.a;
+               List<PrimSig> t = order.b;
+               boolean prev = f.label.compareToIgnoreCase("next")!=0;
+               if (t.size()==3 && !nexts.containsKey(t.get(1))) {
+                  TupleSet set = frame.eval.evaluate(frame.a2k(t.get(1)));
+                  if (set.size()<=1) continue;
+                  Expression e = frame.a2k(t.get(0)).join(frame.a2k(f));
+                  List<Tuple> test = isOrder(frame.eval.evaluate(prev ? e.transpose() : e), set);
+                  if (test!=null) nexts.put(t.get(1), test);
+               } else if (t.size()==2 && !nexts.containsKey(t.get(0))) {
+                  TupleSet set = frame.eval.evaluate(frame.a2k(t.get(0)));
+                  if (set.size()<=1) continue;
+                  Expression e = frame.a2k(f);
+                  List<Tuple> test = isOrder(frame.eval.evaluate(prev ? e.transpose() : e), set);
+                  if (test!=null) nexts.put(t.get(1), test);
                }
             }
             // Assign atom->name and atom->MostSignificantSig
@@ -891,8 +957,22 @@ public final class A4Solution {
         // Otherwise, prepare to do the solve...
         final A4Options opt = originalOptions;
         long time = System.currentTimeMillis();
+        checkCancelled();
+        // If prepare() has already translated this problem, then we only need to run the SAT solver
+        if (cEnumerator!=null) return solved(rep, cmd, time, cEnumerator.next());
+        // If the translation is in the cache, then we skip the simplification and the translation
+        final File cacheFile = TranslationCache.file(sigs, cmd, opt, tryBookExamples);
+        cEnumerator = TranslationCache.load(cacheFile, bounds, sigs, solver.options());
+        if (cEnumerator!=null) {
+           rep.debug("Reusing the cached translation "+cacheFile.getName()+"\n");
+           rep.translate(opt.solver.id(), bitwidth, maxseq, solver.options().skolemDepth(), solver.options().symmetryBreaking());
+           for(Map.Entry<Relation,Type> e: cEnumerator.skolems.entrySet()) kr2type(e.getKey(), e.getValue());
+           rep.solve(cEnumerator.primaryVariables(), cEnumerator.variables(), cEnumerator.clauses());
+           return solved(rep, cmd, time, cEnumerator.next());
+        }
         rep.debug("Simplifying the bounds...\n");
         if (opt.inferPartialInstance && simp!=null && formulas.size()>0 && !simp.simplify(rep, this, formulas)) addFormula(Formula.FALSE, Pos.UNKNOWN);
+        checkCancelled();
         rep.translate(opt.solver.id(), bitwidth, maxseq, solver.options().skolemDepth(), solver.options().symmetryBreaking());
         Formula fgoal = Formula.and(formulas);
         rep.debug("Generating the solution...\n");
@@ -900,24 +980,7 @@ public final class A4Solution {
         Solution sol = null;
         final Reporter oldReporter = solver.options().reporter();
         final boolean solved[] = new boolean[]{true};
-        solver.options().setReporter(new AbstractReporter() { // Set up a reporter to catch the type+pos of skolems
-            @Override public void skolemizing(Decl decl, Relation skolem, List<Decl> predecl) {
-                try {
-                    Type t=kv2typepos(decl.variable()).a;
-                    if (t==Type.EMPTY) return;
-                    for(int i=(predecl==null ? -1 : predecl.size()-1); i>=0; i--) {
-                        Type pp=kv2typepos(predecl.get(i).variable()).a;
-                        if (pp==Type.EMPTY) return;
-                        t=pp.product(t);
-                    }
-                    kr2type(skolem, t);
-                } catch(Throwable ex) { } // Exception here is not fatal
-            }
-            @Override public void solvingCNF(int primaryVars, int vars, int clauses) {
-               if (solved[0]) return; else solved[0]=true; // initially solved[0] is true, so we won't report the # of vars/clauses
-               if (rep!=null) rep.solve(primaryVars, vars, clauses);
-           }
-        });
+        solver.options().setReporter(reporter(rep, solved));
         if (!opt.solver.equals(SatSolver.CNF) && !opt.solver.equals(SatSolver.KK) && tryBookExamples) { // try book examples
            A4Reporter r = "yes".equals(System.getProperty("debug")) ? rep : null;
            try { sol = BookExamples.trial(r, this, fgoal, solver, cmd.check); } catch(Throwable ex) { sol = null; }
@@ -944,6 +1007,14 @@ public final class A4Solution {
             rep.resultCNF(out);
             return null;
          }
+        if (sol==null && cacheFile!=null) {
+           List<Relation> frame = new ArrayList<Relation>(bounds.relations());
+           cEnumerator = TranslationCache.translate(fgoal, bounds, solver.options());
+           TranslationCache.save(rep, cacheFile, cEnumerator, frame, rel2type);
+           solver.options().setReporter(oldReporter);
+           rep.solve(cEnumerator.primaryVariables(), cEnumerator.variables(), cEnumerator.clauses());
+           return solved(rep, cmd, time, cEnumerator.next());
+        }
         if (!solver.options().solver().incremental() /* || solver.options().solver()==SATFactory.ZChaffMincost */) {
            if (sol==null) sol = solver.solve(fgoal, bounds);
         } else {
@@ -978,6 +1049,117 @@ public final class A4Solution {
               lCore = hCore = null;
            }
         }
+        return solved(rep, cmd, time, inst);
+    }
+
+    /** Simplify this problem and translate it into CNF without solving it, so that the next call to solve() only has to run the SAT solver;
+     * this lets the caller translate one command while the SAT solver is still working on another.
+     * <p> This does nothing and returns false if this problem is already solved or prepared, or if solve() has to do more than
+     * run the SAT solver on the CNF (because the solver writes its input to a file or computes unsat cores,
+     * or because the problem may be one of the book examples).
+     * @param cmd - the command that solve() will be called with
+     */
+    boolean prepare(A4Reporter rep, Command cmd, Simplifier simp, boolean tryBookExamples) throws Err {
+        final A4Options opt = originalOptions;
+        if (solved || cEnumerator!=null || cmd==null) return false;
+        if (opt.solver.equals(SatSolver.CNF) || opt.solver.equals(SatSolver.KK) || opt.solver.equals(SatSolver.MiniSatProverJNI)) return false;
+        if (tryBookExamples && BookExamples.applies(sigs)) return false;
+        checkCancelled();
+        final File cacheFile = TranslationCache.file(sigs, cmd, opt, tryBookExamples);
+        cEnumerator = TranslationCache.load(cacheFile, bounds, sigs, solver.options());
+        if (cEnumerator!=null) {
+           rep.debug("Reusing the cached translation "+cacheFile.getName()+"\n");
+           rep.translate(opt.solver.id(), bitwidth, maxseq, solver.options().skolemDepth(), solver.options().symmetryBreaking());
+           for(Map.Entry<Relation,Type> e: cEnumerator.skolems.entrySet()) kr2type(e.getKey(), e.getValue());
+           rep.solve(cEnumerator.primaryVariables(), cEnumerator.variables(), cEnumerator.clauses());
+           return true;
+        }
+        rep.debug("Simplifying the bounds...\n");
+        if (opt.inferPartialInstance && simp!=null && formulas.size()>0 && !simp.simplify(rep, this, formulas)) addFormula(Formula.FALSE, Pos.UNKNOWN);
+        checkCancelled();
+        rep.translate(opt.solver.id(), bitwidth, maxseq, solver.options().skolemDepth(), solver.options().symmetryBreaking());
+        List<Relation> frame = new ArrayList<Relation>(bounds.relations());
+        for(Relation r: frame) { formulas.add(r.eq(r)); } // Without this, kodkod refuses to grow unmentioned relations
+        final Reporter oldReporter = solver.options().reporter();
+        solver.options().setReporter(reporter(null, new boolean[]{true}));
+        try {
+           cEnumerator = TranslationCache.translate(Formula.and(formulas), bounds, solver.options(), cacheFile!=null);
+        } finally {
+           solver.options().setReporter(oldReporter);
+        }
+        if (cacheFile!=null) TranslationCache.save(rep, cacheFile, cEnumerator, frame, rel2type);
+        rep.solve(cEnumerator.primaryVariables(), cEnumerator.variables(), cEnumerator.clauses());
+        return true;
+    }
+
+    /** Helper method that returns a Kodkod reporter that catches the type+pos of skolems, and stops if cancelled.
+     * @param solved - if solved[0] is false when the CNF is about to be solved, we report the # of vars/clauses to rep, then set solved[0] to true
+     */
+    private Reporter reporter(final A4Reporter rep, final boolean solved[]) {
+        return new AbstractReporter() {
+            @Override public void optimizingBoundsAndFormula() { checkCancelled(); }
+            @Override public void translatingToBoolean(Formula formula, Bounds bounds) { checkCancelled(); }
+            @Override public void generatingSBP() { checkCancelled(); }
+            @Override public void translatingToCNF(BooleanFormula circuit) { checkCancelled(); }
+            @Override public void skolemizing(Decl decl, Relation skolem, List<Decl> predecl) {
+                checkCancelled();
+                try {
+                    Type t=kv2typepos(decl.variable()).a;
+                    if (t==Type.EMPTY) return;
+                    for(int i=(predecl==null ? -1 : predecl.size()-1); i>=0; i--) {
+                        Type pp=kv2typepos(predecl.get(i).variable()).a;
+                        if (pp==Type.EMPTY) return;
+                        t=pp.product(t);
+                    }
+                    kr2type(skolem, t);
+                } catch(Throwable ex) { } // Exception here is not fatal
+            }
+            @Override public void solvingCNF(int primaryVars, int vars, int clauses) {
+               checkCancelled();
+               if (solved[0]) return; else solved[0]=true; // initially solved[0] is true, so we won't report the # of vars/clauses
+               if (rep!=null) rep.solve(primaryVars, vars, clauses);
+           }
+        };
+    }
+
+    /** Translate this problem into CNF using SAT4J, but do not solve it; instead, each call to sweep() will solve it under different assumptions.
+     * <p> This marks this object as solved (but neither satisfiable nor unknown), so this object itself is not a solution.
+     * @return the translation (whose primary variables and CNF can be used to form the assumptions)
+     */
+    TranslationCache.Entry sweepable(A4Reporter rep) throws Err {
+        if (solved) throw new ErrorAPI("This problem has already been solved.");
+        final A4Options opt = originalOptions;
+        checkCancelled();
+        rep.debug("Simplifying the bounds...\n");
+        if (opt.inferPartialInstance && formulas.size()>0 && !new Simplifier().simplify(rep, this, formulas)) addFormula(Formula.FALSE, Pos.UNKNOWN);
+        checkCancelled();
+        solver.options().setSolver(CancellableSAT4J.factory(opt));
+        rep.translate(opt.solver.id(), bitwidth, maxseq, solver.options().skolemDepth(), solver.options().symmetryBreaking());
+        for(Relation r: bounds.relations()) { formulas.add(r.eq(r)); } // Without this, kodkod refuses to grow unmentioned relations
+        final Reporter oldReporter = solver.options().reporter();
+        solver.options().setReporter(reporter(null, new boolean[]{true}));
+        try {
+           cEnumerator = TranslationCache.translate(Formula.and(formulas), bounds, solver.options(), false);
+        } finally {
+           solver.options().setReporter(oldReporter);
+        }
+        rep.solve(cEnumerator.primaryVariables(), cEnumerator.variables(), cEnumerator.clauses());
+        solved();
+        return cEnumerator;
+    }
+
+    /** Solve the problem prepared by sweepable() under the given assumptions, and return the solution (which can be enumerated using next()).
+     * <p> If the solving was cancelled or reached the deadline, the returned solution's isUnknown() is true.
+     * @param cmd - the command that these assumptions represent (this becomes the original command of the returned solution)
+     * @param assumptions - the literals in the CNF that must be true
+     */
+    A4Solution sweep(Command cmd, int[] assumptions) throws Err {
+        if (!solved || cEnumerator==null) throw new ErrorAPI("This problem has not been prepared by sweepable().");
+        return new A4Solution(this, cmd, assumptions);
+    }
+
+    /** Helper method that records the given instance (null if unsatisfiable), then marks this solution as solved and reports the result. */
+    private A4Solution solved(A4Reporter rep, Command cmd, long time, Instance inst) throws Err {
         // If satisfiable, then add/rename the atoms and skolems
         if (inst!=null) {
            eval = new Evaluator(inst, solver.options());
@@ -1028,21 +1210,179 @@ public final class A4Solution {
 
     //===================================================================================================//
 
+    /** This caches the fingerprint() output; 0 if it has not been computed yet. */
+    private long fingerprintCache = 0;
+
+    /** Mix the given tupleset (with each atom given by its name) into the given hash. */
+    private long mix(long hash, A4TupleSet set) {
+        hash = mix(hash, set.size());
+        for(Tuple t: set.tuples()) for(int i=0; i<t.arity(); i++) hash = mix(hash, atom2name(t.atom(i)).hashCode());
+        return hash;
+    }
+
+    /** Mix the given value into the given hash. */
+    private static long mix(long hash, long value) { return CanonicalHash.mix(hash, value); }
+
+    /** Returns a 64-bit hash of toString() that is computed directly from the instance without building the string.
+     * <p> Solutions with the same toString() have the same fingerprint, and solutions with different toString() almost never do;
+     * so when enumerating many solutions, this is a much cheaper way to recognize the ones that have been seen before.
+     */
+    public long fingerprint() {
+        if (fingerprintCache != 0) return fingerprintCache;
+        if (!solved) return 1;
+        if (eval == null) return 2;
+        long hash = 3;
+        for(IndexedEntry<TupleSet> e:eval.instance().intTuples()) hash = mix(hash, atom2name(e.value().iterator().next().atom(0)).hashCode());
+        try {
+            for(Sig s:sigs) {
+                hash = mix(mix(hash, s.label.hashCode()), eval(s));
+                for(Field f:s.getFields()) hash = mix(mix(hash, f.label.hashCode()), eval(f));
+            }
+            for(ExprVar v:skolems) {
+                Object value = eval(v);
+                hash = mix(hash, v.label.hashCode());
+                hash = (value instanceof A4TupleSet) ? mix(hash, (A4TupleSet)value) : mix(hash, value.hashCode());
+            }
+        } catch(Err er) {
+            hash = mix(hash, er.toString().hashCode());
+        }
+        return fingerprintCache = (hash==0 ? 4 : hash);
+    }
+
+    /** This caches the canonicalFingerprint() output; 0 if it has not been computed yet. */
+    private long canonicalCache = 0;
+
+    /** Add the given tupleset as a relation with the given label; each atom is added to the hash the first time it is seen,
+     * and its color is its most specific sig (except that integers and strings are colored by their own names, since they cannot be renamed).
+     */
+    private void canonical(CanonicalHash hash, Map<Object,Integer> atoms, String label, A4TupleSet set) {
+        hash.relation(label, set.arity());
+        int[] tuple = new int[set.arity()];
+        for(Tuple t: set.tuples()) {
+            for(int i=0; i<tuple.length; i++) {
+                Object atom = t.atom(i);
+                Integer n = atoms.get(atom);
+                if (n==null) {
+                    PrimSig sig = atom2sig(atom);
+                    long color = (sig==SIGINT || sig==SEQIDX || sig==STRING || sig==UNIV) ? mix(sig.label.hashCode(), atom2name(atom).hashCode()) : sig.label.hashCode();
+                    n = hash.atom(color);
+                    atoms.put(atom, n);
+                }
+                tuple[i] = n;
+            }
+            hash.tuple(tuple);
+        }
+    }
+
+    /** Returns a 64-bit hash of this solution that stays the same if the atoms of each sig are permuted among themselves.
+     * <p> So isomorphic solutions (solutions that differ only in how their atoms are named) always have the same canonical fingerprint;
+     * but the converse does not always hold, since partition refinement cannot tell apart some regular structures that are not isomorphic
+     * (for example, a relation forming one 6-cycle and a relation forming two 3-cycles; see CanonicalHash).
+     */
+    public long canonicalFingerprint() {
+        if (canonicalCache != 0) return canonicalCache;
+        if (!solved) return 1;
+        if (eval == null) return 2;
+        CanonicalHash hash = new CanonicalHash();
+        Map<Object,Integer> atoms = new HashMap<Object,Integer>();
+        try {
+            for(Sig s:sigs) {
+                canonical(hash, atoms, s.label, eval(s));
+                for(Field f:s.getFields()) canonical(hash, atoms, s.label+"<:"+f.label, eval(f));
+            }
+            for(ExprVar v:skolems) {
+                Object value = eval(v);
+                if (value instanceof A4TupleSet) canonical(hash, atoms, v.label, (A4TupleSet)value); else hash.relation(v.label+"="+value, 0);
+            }
+        } catch(Err er) {
+            return canonicalCache = mix(3, er.toString().hashCode());
+        }
+        long ans = hash.hash();
+        return canonicalCache = (ans==0 ? 4 : ans);
+    }
+
+    //===================================================================================================//
+
     /** If nonnull, it caches the result of calling "next()". */
     private A4Solution nextCache = null;
 
+    /** True if enumerate() has moved past this solution without caching its successor, so this solution is no longer incremental. */
+    private boolean enumerated = false;
+
     /** If this solution is UNSAT, return itself; else return the next solution (which could be SAT or UNSAT).
-     * @throws ErrorAPI if the solver was not an incremental solver
+     * @throws ErrorAPI if isIncremental() is false
      */
     public A4Solution next() throws Err {
         if (!solved) throw new ErrorAPI("This solution is not yet solved, so next() is not allowed.");
         if (eval==null) return this;
+        if (enumerated) throw new ErrorAPI("This solution was delivered by enumerate(), so it is no longer incremental.\n" + "Call next() on the solution returned by enumerate() instead.");
         if (nextCache==null) nextCache=new A4Solution(this);
         return nextCache;
     }
 
-    /** Returns true if this solution was generated by an incremental SAT solver. */
-    public boolean isIncremental() { return kEnumerator!=null; }
+    /** Returns true if this solution was generated by an incremental SAT solver, and next() can still be called on it
+     * (that is, it is not one of the solutions that enumerate() delivered and then moved past).
+     */
+    public boolean isIncremental() { return !enumerated && (kEnumerator!=null || cEnumerator!=null); }
+
+    /** The maximum number of fingerprints that enumerate() remembers in order to skip repeated solutions. */
+    private static final int MAX_FINGERPRINTS = 1 << 20;
+
+    /** Starting from this solution, deliver up to "max" distinct satisfying solutions to the callback, one at a time as soon as each is found.
+     *
+     * <p> A solution is skipped if its fingerprint() is the same as one of the most recent 2^20 solutions delivered.
+     * Apart from those fingerprints, nothing is retained: once the callback returns, the solution can be garbage collected,
+     * so the memory needed does not grow with the number of solutions.
+     * This means the solutions delivered by this method (except this solution and the one returned) are no longer incremental:
+     * isIncremental() returns false on them, and next() throws ErrorAPI;
+     * to continue the enumeration later, call next() on the solution returned by this method.
+     *
+     * @param rep - if nonnull, its enumerated() method is called at the end with the number of solutions delivered and the time it took
+     * @param max - the maximum number of solutions to deliver (0 means no limit)
+     * @param timeout - the maximum number of milliseconds to spend (0 means no limit); it is checked after each solution
+     * @param callback - the callback that receives each solution
+     *
+     * @return the latest solution found (which is unsatisfiable if the solver ran out of solutions,
+     * or unknown if the solving was cancelled or reached the deadline in the options)
+     * @throws ErrorAPI if this solution is not yet solved, or was delivered by an earlier call to enumerate()
+     * @throws ErrorAPI if the enumeration needs another solution but the solver was not an incremental SAT solver
+     */
+    public A4Solution enumerate(A4Reporter rep, int max, long timeout, A4SolutionCallback callback) throws Err {
+        return enumerate(rep, max, timeout, false, callback);
+    }
+
+    /** Same as enumerate(rep, max, timeout, callback), except that if skipIsomorphic==true,
+     * then solutions are compared by canonicalFingerprint() instead of fingerprint(),
+     * so a solution is also skipped if it differs from a previous one only in how the atoms are named.
+     * <p> Note: since canonicalFingerprint() is not a complete canonical form, skipIsomorphic==true may also skip
+     * a few solutions that are not isomorphic to any solution delivered so far.
+     */
+    public A4Solution enumerate(A4Reporter rep, int max, long timeout, boolean skipIsomorphic, A4SolutionCallback callback) throws Err {
+        if (!solved) throw new ErrorAPI("This solution is not yet solved, so enumerate() is not allowed.");
+        if (enumerated) throw new ErrorAPI("This solution was delivered by enumerate(), so enumerate() is not allowed.\n" + "Call enumerate() on the solution returned by enumerate() instead.");
+        final long start = System.currentTimeMillis();
+        final Map<Long,Boolean> seen = new LinkedHashMap<Long,Boolean>() {
+            /** This ensures the class can be serialized reliably. */
+            private static final long serialVersionUID = 0;
+            /** {@inheritDoc} */
+            @Override protected boolean removeEldestEntry(Map.Entry<Long,Boolean> eldest) { return size() > MAX_FINGERPRINTS; }
+        };
+        A4Solution sol = this;
+        int count = 0;
+        while(sol.eval!=null) {
+            if (seen.put(skipIsomorphic ? sol.canonicalFingerprint() : sol.fingerprint(), Boolean.TRUE)==null) {
+                count++;
+                if (!callback.found(sol, count) || count==max) break;
+            }
+            if (timeout>0 && System.currentTimeMillis()-start>=timeout) break;
+            if (sol==this || sol.nextCache!=null) { sol=sol.next(); continue; }
+            A4Solution next = new A4Solution(sol);
+            sol.enumerated = true; // Since "sol" does not remember "next", calling sol.next() later would skip solutions
+            sol = next;
+        }
+        if (rep!=null) rep.enumerated(originalCommand, count, System.currentTimeMillis()-start);
+        return sol;
+    }
 
     //===================================================================================================//
 
@@ -1129,6 +1469,22 @@ public final class A4Solution {
         }
     }
 
+    /** Helper method to write out a full instance file in the compact binary encoding of XML (see BinaryXMLWriter);
+     * A4SolutionReader and StaticInstanceReader read it back just like an XML file.
+     */
+    public void writeBinary(A4Reporter rep, String filename, Iterable<Func> macros, Map<String,String> sourceFiles) throws Err {
+        BinaryXMLWriter out=null;
+        try {
+            out=new BinaryXMLWriter(new File(filename));
+            A4SolutionWriter.writeInstance(rep, this, out, macros, sourceFiles);
+            out.close();
+        } catch(IOException ex) {
+            throw new ErrorFatal("Error writing the solution file.", ex);
+        } finally {
+            if (out!=null) try { out.close(); } catch(IOException ex) { } // If we get here due to an earlier error, then ignore this error
+        }
+    }
+
     /** Helper method to write out a full XML file. */
     public void writeXML(PrintWriter writer, Iterable<Func> macros, Map<String,String> sourceFiles) throws Err {
         A4SolutionWriter.writeInstance(null, this, writer, macros, sourceFiles);
@@ -22,7 +22,10 @@ import static edu.mit.csail.sdg.alloy4compiler.ast.Sig.STRING;
 import static edu.mit.csail.sdg.alloy4compiler.ast.Sig.UNIV;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -31,15 +34,16 @@ import java.util.Set;
 import java.util.TreeSet;
 
 import kodkod.ast.Relation;
-import kodkod.instance.Tuple;
 import kodkod.instance.TupleFactory;
 import kodkod.instance.TupleSet;
+import kodkod.instance.Universe;
 import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.ErrorFatal;
 import edu.mit.csail.sdg.alloy4.ErrorSyntax;
 import edu.mit.csail.sdg.alloy4.Pos;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.XMLNode;
+import edu.mit.csail.sdg.alloy4.XMLPullParser;
 import edu.mit.csail.sdg.alloy4compiler.ast.Attr;
 import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
 import edu.mit.csail.sdg.alloy4compiler.ast.ExprVar;
@@ -48,10 +52,51 @@ import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.PrimSig;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.SubsetSig;
 
-/** This helper class contains helper routines for reading an A4Solution object from an XML file. */
+/** This helper class contains helper routines for reading an A4Solution object from an XML file.
+ *
+ * <p> The XML file is read in one pass by an XMLPullParser. Since a sig can refer to a parent sig that appears later in the file,
+ * each sig, field, and skolem is first recorded as a small Node (its attributes and its list of atoms);
+ * every atom label is stored as a number, so the tuples never exist as XML elements or as Strings.
+ */
 
 public final class A4SolutionReader {
 
+    /** This records one &lt;sig&gt;, &lt;field&gt;, or &lt;skolem&gt; element. */
+    private static final class Node {
+        /** The element type ("sig", "field", or "skolem"). */
+        private final String type;
+        /** The attributes of the element. */
+        private final Map<String,String> attributes = new HashMap<String,String>();
+        /** For a sig, this is the list of IDs in its &lt;type&gt; subelements. */
+        private final List<String> parents = new ArrayList<String>();
+        /** For a field or skolem, this is the list of IDs in each of its &lt;types&gt; subelements. */
+        private final List<List<String>> types = new ArrayList<List<String>>();
+        /** For a sig, this is the list of atom numbers; for a field or skolem, this is the list of tuples,
+         * where each tuple is its arity followed by its atom numbers. */
+        private int[] atoms = new int[4];
+        /** The number of entries used in atoms[]. */
+        private int size = 0;
+        /** Constructs a Node with the type and attributes of the current element of the given parser. */
+        private Node(XMLPullParser xml, String... names) {
+            type = xml.getType();
+            for(String name: names) { String value = xml.getAttribute(name, null); if (value!=null) attributes.put(name, value); }
+        }
+        /** Returns the value associated with the given attribute name; if the attribute doesn't exist, return "". */
+        private String getAttribute(String name) { String ans = attributes.get(name); return ans==null ? "" : ans; }
+        /** Returns true if the element type is equal to the given type. */
+        private boolean is(String type) { return this.type.equals(type); }
+        /** Appends the given number to atoms[]. */
+        private void add(int value) {
+            if (size==atoms.length) atoms = Arrays.copyOf(atoms, size*2);
+            atoms[size++] = value;
+        }
+    }
+
+    /** The attributes of &lt;sig&gt;, &lt;field&gt;, and &lt;skolem&gt; elements that we need. */
+    private static final String[] ATTRIBUTES = new String[] {
+        "ID", "label", "parentID", "builtin", "abstract", "one", "lone", "some", "private", "meta", "enum", "exact"
+    };
+
     /** The resulting A4Solution object. */
     private final A4Solution sol;
 
@@ -64,8 +109,17 @@ public final class A4SolutionReader {
     /** Stores the set of STRING atoms. */
     private final TreeSet<String> strings = new TreeSet<String>();
 
-    /** Maps each Sig/Field/Skolem id to an XMLNode. */
-    private final Map<String,XMLNode> nmap = new LinkedHashMap<String,XMLNode>();
+    /** Maps each atom label we've seen to its atom number. */
+    private final Map<String,Integer> label2num = new HashMap<String,Integer>();
+
+    /** Maps each atom number to its atom label. */
+    private final List<String> num2label = new ArrayList<String>();
+
+    /** Maps each atom number to its index in the Kodkod universe (or -1 if not yet looked up). */
+    private int[] num2index;
+
+    /** Maps each Sig/Field/Skolem id to its Node. */
+    private final Map<String,Node> nmap = new LinkedHashMap<String,Node>();
 
     /** Maps each Sig id to a Sig. */
     private final Map<String,Sig> id2sig = new LinkedHashMap<String,Sig>();
@@ -80,10 +134,10 @@ public final class A4SolutionReader {
     private final TupleFactory factory;
 
     /** Helper method that returns true if the given attribute value in the given XML node is equal to "yes" */
-    private static boolean yes(XMLNode node, String attr) { return node.getAttribute(attr).equals("yes"); }
+    private static boolean yes(Node node, String attr) { return node.getAttribute(attr).equals("yes"); }
 
     /** Helper method that returns an XML node's "label" attribute. */
-    private static String label(XMLNode node) { return node.getAttribute("label"); }
+    private static String label(Node node) { return node.getAttribute("label"); }
 
     /** Helper method that returns true if the two iterables contain the same elements (though possibly in different order) */
     private static boolean sameset(Iterable<Sig> a, Iterable<Sig> b) {
@@ -93,26 +147,35 @@ public final class A4SolutionReader {
         return tmp.isEmpty();
     }
 
-    /** Parse tuple. */
-    private Tuple parseTuple(XMLNode tuple, int arity) throws Err {
-        Tuple ans = null;
-        try {
-            for(XMLNode sub:tuple) if (sub.is("atom")) {
-                Tuple x = factory.tuple(sub.getAttribute("label"));
-                if (ans==null) ans=x; else ans=ans.product(x);
-            }
-            if (ans==null) throw new ErrorFatal("Expecting: <tuple> <atom label=\"..\"/> .. </tuple>");
-            if (ans.arity()!=arity) throw new ErrorFatal("Expecting: tuple of arity "+arity+" but got tuple of arity "+ans.arity());
-            return ans;
-        } catch(Throwable ex) {
-            throw new ErrorFatal("Expecting: <tuple> <atom label=\"..\"/> .. </tuple>", ex);
-        }
+    /** Helper method that returns the atom number for the given atom label. */
+    private int num(String label) {
+        Integer ans = label2num.get(label);
+        if (ans==null) { ans = num2label.size(); label2num.put(label, ans); num2label.add(label); }
+        return ans;
     }
 
-    /** Parse tuples. */
-    private TupleSet parseTuples(XMLNode tuples, int arity) throws Err {
+    /** Helper method that returns the Kodkod atom index for the given atom number. */
+    private int index(int num) {
+        if (num2index[num]<0) num2index[num] = factory.universe().index(num2label.get(num));
+        return num2index[num];
+    }
+
+    /** Parse the tuples of the given field or skolem node. */
+    private TupleSet parseTuples(Node node, int arity) throws Err {
         TupleSet ans = factory.noneOf(arity);
-        for(XMLNode sub:tuples) if (sub.is("tuple")) ans.add(parseTuple(sub, arity));
+        Universe universe = factory.universe();
+        for(int i=0; i<node.size; i=i+1+node.atoms[i]) {
+            try {
+                int n = node.atoms[i];
+                if (n==0) throw new ErrorFatal("Expecting: <tuple> <atom label=\"..\"/> .. </tuple>");
+                if (n!=arity) throw new ErrorFatal("Expecting: tuple of arity "+arity+" but got tuple of arity "+n);
+                int index = 0;
+                for(int j=1; j<=n; j++) index = index*universe.size() + index(node.atoms[i+j]);
+                ans.add(factory.tuple(arity, index));
+            } catch(Throwable ex) {
+                throw new ErrorFatal("Expecting: <tuple> <atom label=\"..\"/> .. </tuple>", ex);
+            }
+        }
         return ans;
     }
 
@@ -120,7 +183,7 @@ public final class A4SolutionReader {
     private Sig parseSig(String id, int depth) throws IOException, Err {
         Sig ans = id2sig.get(id);
         if (ans!=null) return ans;
-        XMLNode node = nmap.get(id);
+        Node node = nmap.get(id);
         if (node==null) throw new IOException("Unknown SigID "+id+" encountered.");
         if (!node.is("sig")) throw new IOException("ID "+id+" is not a sig.");
         String label   = label(node);
@@ -142,10 +205,9 @@ public final class A4SolutionReader {
         if (depth > nmap.size()) throw new IOException("Sig "+label+" (id="+id+") is in a cyclic inheritance relationship.");
         List<Sig> parents = null;
         TupleSet ts = factory.noneOf(1);
-        for(XMLNode sub:node) {
-           if (sub.is("atom")) { ts.add(factory.tuple(sub.getAttribute("label"))); continue; }
-           if (!sub.is("type")) continue;
-           Sig parent = parseSig(sub.getAttribute("ID"), depth+1);
+        for(int i=0; i<node.size; i++) ts.add(factory.tuple(1, index(node.atoms[i])));
+        for(String parentID: node.parents) {
+           Sig parent = parseSig(parentID, depth+1);
            if (parents==null) parents = new ArrayList<Sig>();
            parents.add(parent);
         }
@@ -183,11 +245,10 @@ public final class A4SolutionReader {
     }
 
     /** Parse type. */
-    private Expr parseType(XMLNode node) throws IOException, Err {
+    private Expr parseType(List<String> ids) throws IOException, Err {
         Expr expr = null;
-        if (!node.is("types")) throw new IOException("<types>...</type> expected");
-        for(XMLNode n:node) if (n.is("type")) {
-            Sig sig=parseSig(n.getAttribute("ID"), 0);
+        for(String id: ids) {
+            Sig sig=parseSig(id, 0);
             if (expr==null) expr=sig; else expr=expr.product(sig);
         }
         if (expr==null) throw new IOException("<type ID=../> expected");
@@ -196,14 +257,14 @@ public final class A4SolutionReader {
 
     /** Parse field. */
     private Field parseField(String id) throws IOException, Err {
-       final XMLNode node = nmap.get(id);
+       final Node node = nmap.get(id);
        if (node==null) throw new IOException("Unknown FieldID "+id+" encountered.");
        if (!node.is("field")) throw new IOException("ID "+id+" is not a field.");
        String label  = label(node);
        Pos isPrivate = yes(node,"private") ? Pos.UNKNOWN : null;
        Pos isMeta = yes(node,"meta") ? Pos.UNKNOWN : null;
        Expr type = null;
-       for(XMLNode sub:node) if (sub.is("types")) { Expr t=parseType(sub); if (type==null) type=t; else type=type.plus(t); }
+       for(List<String> sub: node.types) { Expr t=parseType(sub); if (type==null) type=t; else type=type.plus(t); }
        int arity;
        if (type==null || (arity=type.type().arity())<2) throw new IOException("Field "+label+" is maltyped.");
        String parentID = node.getAttribute("parentID");
@@ -221,12 +282,12 @@ public final class A4SolutionReader {
 
     /** Parse skolem. */
     private ExprVar parseSkolem(String id) throws IOException, Err {
-       final XMLNode node = nmap.get(id);
+       final Node node = nmap.get(id);
        if (node==null) throw new IOException("Unknown ID "+id+" encountered.");
        if (!node.is("skolem")) throw new IOException("ID "+id+" is not a skolem.");
        String label = label(node);
        Expr type = null;
-       for(XMLNode sub:node) if (sub.is("types")) { Expr t=parseType(sub); if (type==null) type=t; else type=type.plus(t); }
+       for(List<String> sub: node.types) { Expr t=parseType(sub); if (type==null) type=t; else type=type.plus(t); }
        int arity;
        if (type==null || (arity=type.type().arity())<1) throw new IOException("Skolem "+label+" is maltyped.");
        ExprVar var = ExprVar.make(Pos.UNKNOWN, label, type.type());
@@ -235,46 +296,89 @@ public final class A4SolutionReader {
        return var;
     }
 
+    /** Read the content of the current &lt;sig&gt;, &lt;field&gt;, or &lt;skolem&gt; element into the given node. */
+    private void readNode(XMLPullParser xml, Node node, boolean isString) throws IOException {
+       final int depth = xml.depth();
+       while(xml.next()==XMLPullParser.START) {
+          if (node.is("sig") && xml.is("atom")) {
+             String label = xml.getAttribute("label");
+             node.add(num(label));
+             atoms.add(label);
+             if (isString) strings.add(label);
+          } else if (node.is("sig") && xml.is("type")) {
+             node.parents.add(xml.getAttribute("ID"));
+          } else if (!node.is("sig") && xml.is("tuple")) {
+             int arity = node.size;
+             node.add(0);
+             while(xml.next()==XMLPullParser.START) {
+                if (xml.is("atom")) { node.add(num(xml.getAttribute("label"))); node.atoms[arity]++; }
+                xml.skip();
+             }
+             continue;
+          } else if (!node.is("sig") && xml.is("types")) {
+             List<String> ids = new ArrayList<String>();
+             while(xml.next()==XMLPullParser.START) {
+                if (xml.is("type")) ids.add(xml.getAttribute("ID"));
+                xml.skip();
+             }
+             if (ids.isEmpty()) throw new IOException("<type ID=../> expected");
+             node.types.add(ids);
+             continue;
+          }
+          xml.skip();
+       }
+       if (xml.depth()!=depth) throw new IOException("Unexpected end of <"+node.type+">.");
+    }
+
     /** Parse everything. */
-    private A4SolutionReader(Iterable<Sig> sigs, XMLNode xml) throws IOException, Err {
+    private A4SolutionReader(Iterable<Sig> sigs, XMLPullParser xml, Map<String,String> attributes) throws IOException, Err {
        for(Sig s:sigs) if (!s.builtin) {
            allsigs.add(s);
            choices.add(s);
            for(Field f:s.getFields()) choices.add(f);
        }
        // find <instance>..</instance>
-       if (!xml.is("alloy")) throw new ErrorSyntax("The XML file's root node must be <alloy> or <instance>.");
-       XMLNode inst = null;
-       for(XMLNode sub: xml) if (sub.is("instance")) { inst=sub; break; }
-       if (inst==null) throw new ErrorSyntax("The XML file must contain an <instance> element.");
+       if (xml.next()!=XMLPullParser.START || !xml.is("alloy")) throw new ErrorSyntax("The XML file's root node must be <alloy> or <instance>.");
+       String bitwidthString = null, maxseqString = null, command = null, filename = null;
+       while(xml.next()==XMLPullParser.START) {
+           if (!xml.is("instance") || bitwidthString!=null) { xml.skip(); continue; }
+           bitwidthString = xml.getAttribute("bitwidth");
+           maxseqString = xml.getAttribute("maxseq");
+           command = xml.getAttribute("command");
+           filename = xml.getAttribute("filename");
+           if (attributes!=null) for(String key: new String[]{"bitwidth", "maxseq", "command", "filename", "metamodel"}) {
+               String value = xml.getAttribute(key, null);
+               if (value!=null) attributes.put(key, value);
+           }
+           while(xml.next()==XMLPullParser.START) {
+               String id=xml.getAttribute("ID");
+               if (id.length()>0 && (xml.is("field") || xml.is("skolem") || xml.is("sig"))) {
+                  Node x = new Node(xml, ATTRIBUTES);
+                  if (nmap.put(id, x)!=null) throw new IOException("ID "+id+" is repeated.");
+                  readNode(xml, x, x.is("sig") && STRING.label.equals(label(x)) && yes(x, "builtin"));
+               } else {
+                  xml.skip();
+               }
+           }
+       }
+       xml.next(); // This checks that nothing follows the root element
+       if (bitwidthString==null) throw new ErrorSyntax("The XML file must contain an <instance> element.");
        // set up the basic values of the A4Solution object
-       final int bitwidth = Integer.parseInt(inst.getAttribute("bitwidth"));
-       final int maxseq = Integer.parseInt(inst.getAttribute("maxseq"));
+       final int bitwidth = Integer.parseInt(bitwidthString);
+       final int maxseq = Integer.parseInt(maxseqString);
        final int max = Util.max(bitwidth), min = Util.min(bitwidth);
        if (bitwidth>=1 && bitwidth<=30) for(int i=min; i<=max; i++) { atoms.add(Integer.toString(i)); }
-       for(XMLNode x:inst) {
-           String id=x.getAttribute("ID");
-           if (id.length()>0 && (x.is("field") || x.is("skolem") || x.is("sig"))) {
-              if (nmap.put(id, x)!=null) throw new IOException("ID "+id+" is repeated.");
-              if (x.is("sig")) {
-                  boolean isString = STRING.label.equals(label(x)) && yes(x, "builtin");
-                  for(XMLNode y:x) if (y.is("atom")) {
-                      String attr = y.getAttribute("label");
-                      atoms.add(attr);
-                      if (isString) strings.add(attr);
-                  }
-              }
-           }
-       }
        // create the A4Solution object
        A4Options opt = new A4Options();
-       opt.originalFilename = inst.getAttribute("filename");
-       sol = new A4Solution(inst.getAttribute("command"), bitwidth, maxseq, strings, atoms, null, opt, 1);
+       opt.originalFilename = filename;
+       sol = new A4Solution(command, bitwidth, maxseq, strings, atoms, null, opt, 1);
        factory = sol.getFactory();
+       num2index = new int[num2label.size()];
+       Arrays.fill(num2index, -1);
        // parse all the sigs, fields, and skolems
-       for(Map.Entry<String,XMLNode> e:nmap.entrySet()) if (e.getValue().is("sig")) parseSig(e.getKey(), 0);
-       for(Map.Entry<String,XMLNode> e:nmap.entrySet()) if (e.getValue().is("field")) parseField(e.getKey());
-       for(Map.Entry<String,XMLNode> e:nmap.entrySet()) if (e.getValue().is("skolem")) parseSkolem(e.getKey());
+       for(Map.Entry<String,Node> e:nmap.entrySet()) if (e.getValue().is("sig")) parseSig(e.getKey(), 0);
+       for(Map.Entry<String,Node> e:nmap.entrySet()) if (e.getValue().is("field")) parseField(e.getKey());
+       for(Map.Entry<String,Node> e:nmap.entrySet()) if (e.getValue().is("skolem")) parseSkolem(e.getKey());
        for(Sig s:allsigs) if (!s.builtin) {
           TupleSet ts = expr2ts.remove(s);
           if (ts==null) ts = factory.noneOf(1); // If the sig was NOT mentioned in the XML file...
@@ -302,14 +406,32 @@ public final class A4SolutionReader {
      * <p> The list of sigs, if not null, will be used as the sigs (and their fields) that we expect to exist;
      * <br> if there's a sig or field X in the list but not in the XML, then X's tupleset will be regarded as empty;
      * <br> if there's a sig or field X in the XML but not in the list, then X (and its value in XML file) is added to the solution.
+     *
+     * <p> Note: this method writes out the XML element as text, then reads it back with read(sigs, XMLPullParser);
+     * if the XML comes from a file or a Reader, it is faster to call that method directly.
      */
     public static A4Solution read(Iterable<Sig> sigs, XMLNode xml) throws Err {
+       return read(sigs, new XMLPullParser(new StringReader(xml.toString())), null);
+    }
+
+    /** Parse the XML document into an AlloyInstance, then close the parser afterwards.
+     *
+     * <p> The list of sigs, if not null, will be used as the sigs (and their fields) that we expect to exist;
+     * <br> if there's a sig or field X in the list but not in the XML, then X's tupleset will be regarded as empty;
+     * <br> if there's a sig or field X in the XML but not in the list, then X (and its value in XML file) is added to the solution.
+     *
+     * @param xml - a parser that has not yet returned anything from next()
+     * @param attributes - if nonnull, then the attributes of the &lt;instance&gt; element will be added into it
+     */
+    public static A4Solution read(Iterable<Sig> sigs, XMLPullParser xml, Map<String,String> attributes) throws Err {
        try {
           if (sigs == null) sigs = new ArrayList<Sig>();
-          A4SolutionReader x = new A4SolutionReader(sigs, xml);
+          A4SolutionReader x = new A4SolutionReader(sigs, xml, attributes);
           return x.sol;
        } catch(Throwable ex) {
           if (ex instanceof Err) throw ((Err)ex); else throw new ErrorFatal("Fatal error occured: "+ex, ex);
+       } finally {
+          xml.close();
        }
     }
 }
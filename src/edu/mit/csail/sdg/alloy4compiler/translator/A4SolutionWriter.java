@@ -15,12 +15,14 @@
 
 package edu.mit.csail.sdg.alloy4compiler.translator;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.BinaryXMLWriter;
 import edu.mit.csail.sdg.alloy4.ConstList;
 import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.ErrorAPI;
@@ -35,8 +37,14 @@ import edu.mit.csail.sdg.alloy4compiler.ast.Type;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.PrimSig;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.SubsetSig;
+import kodkod.instance.TupleSet;
+import kodkod.instance.Universe;
+import kodkod.util.ints.IntIterator;
+import kodkod.util.ints.IntSet;
 
-/** This helper class contains helper routines for writing an A4Solution object out as an XML file. */
+/** This helper class contains helper routines for writing an A4Solution object out as an XML file
+ * (either as XML text, or in the compact binary encoding written by BinaryXMLWriter).
+ */
 
 public final class A4SolutionWriter {
 
@@ -52,9 +60,80 @@ public final class A4SolutionWriter {
     /** This is the list of toplevel sigs. */
     private final List<PrimSig> toplevels = new ArrayList<PrimSig>();
 
-    /** This is the output file. */
+    /** This is the output file; null if we are writing the binary encoding instead. */
     private final PrintWriter out;
 
+    /** This is the output file in the binary encoding; null if we are writing XML text instead. */
+    private final BinaryXMLWriter bin;
+
+    /** The number of characters of tuples and atoms to accumulate before handing them to the output file. */
+    private static final int CHUNK = 8192;
+
+    /** This accumulates the tuples and atoms being written, so that they reach the output file in a few large writes. */
+    private final StringBuilder chunk = new StringBuilder(CHUNK + 1024);
+
+    /** This is the reusable array used to copy each chunk into the output file. */
+    private char[] chunkArray = new char[0];
+
+    /** Maps each Kodkod atom index to its XML-encoded label (or null if it has not been needed yet). */
+    private String[] labels = new String[0];
+
+    /** Helper method that returns the XML-encoded label of the given atom (or its label as-is, if we are writing the binary encoding). */
+    private String label(Universe universe, int atom) {
+       if (labels.length != universe.size()) labels = new String[universe.size()];
+       String ans = labels[atom];
+       if (ans==null) { ans = sol.atom2name(universe.atom(atom)); labels[atom] = ans = (bin!=null ? ans : Util.encode(ans)); }
+       return ans;
+    }
+
+    /** Helper method that sends the accumulated chunk to the output file. */
+    private void flush() {
+       int n = chunk.length();
+       if (n==0) return;
+       if (chunkArray.length < n) chunkArray = new char[n];
+       chunk.getChars(0, n, chunkArray, 0);
+       chunk.setLength(0);
+       out.write(chunkArray, 0, n);
+    }
+
+    /** Write every tuple in the given Kodkod tupleset.
+     * <p> Each tuple is decoded directly from its index in the tupleset, so no Tuple or A4Tuple object is created.
+     */
+    private void writeTuples(TupleSet tuples) throws IOException {
+       Universe universe = tuples.universe();
+       int base = universe.size(), arity = tuples.arity();
+       int[] atoms = new int[arity];
+       for(IntIterator it = tuples.indexView().iterator(); it.hasNext();) {
+          int index = it.next();
+          for(int i=arity-1; i>=0; i--) { atoms[i] = index % base; index = index / base; }
+          if (bin!=null) {
+             bin.start("tuple");
+             for(int i=0; i<arity; i++) bin.atom(label(universe, atoms[i]));
+             bin.end();
+             continue;
+          }
+          chunk.append("   <tuple>");
+          for(int i=0; i<arity; i++) chunk.append(" <atom label=\"").append(label(universe, atoms[i])).append("\"/>");
+          chunk.append(" </tuple>\n");
+          if (chunk.length() >= CHUNK) flush();
+       }
+       flush();
+    }
+
+    /** Write every atom in the given unary Kodkod tupleset, except those in "skip" (which can be null). */
+    private void writeAtoms(TupleSet atoms, TupleSet skip) throws IOException {
+       Universe universe = atoms.universe();
+       IntSet skipped = (skip==null ? null : skip.indexView());
+       for(IntIterator it = atoms.indexView().iterator(); it.hasNext();) {
+          int atom = it.next();
+          if (skipped!=null && skipped.contains(atom)) continue;
+          if (bin!=null) { bin.atom(label(universe, atom)); continue; }
+          chunk.append("   <atom label=\"").append(label(universe, atom)).append("\"/>\n");
+          if (chunk.length() >= CHUNK) flush();
+       }
+       flush();
+    }
+
     /** Helper method that returns a unique id for the given Sig, Field, or Skolem. */
     private String map(Expr obj) {
        String id = map.get(obj);
@@ -68,8 +147,22 @@ public final class A4SolutionWriter {
        if (x!=Sig.UNIV) return x.children(); else return toplevels;
     }
 
-    /** Write the given Expr and its Type. */
-    private boolean writeExpr(String prefix, Expr expr) throws Err {
+    /** Write the start of a skolem element. */
+    private void startSkolem(String label, String id) throws IOException {
+       if (bin!=null) bin.start("skolem", "label", label, "ID", id);
+       else Util.encodeXMLs(out, "\n<skolem label=\"", label, "\" ID=\"", id, "\">\n");
+    }
+
+    /** Write the end of a sig, field, or skolem element. */
+    private void end(String type) throws IOException {
+       if (bin!=null) bin.end(); else { out.print("</"); out.print(type); out.print(">\n"); }
+    }
+
+    /** Write the given Expr and its Type.
+     * <p> If skolem!=null, then it is the (label, ID) of a skolem element that has not been started yet;
+     * in that case, the skolem element is started only if the Expr has at least one tuple (and if it has none, we write nothing and return false).
+     */
+    private boolean writeExpr(String[] skolem, Expr expr) throws Err, IOException {
        Type type = expr.type();
        if (!type.hasTuple()) return false;
        if (sol!=null) {
@@ -88,17 +181,19 @@ public final class A4SolutionWriter {
              sum = sum.plus(extra.toExpr());
           }
           // Now, write out the tupleset
-          A4TupleSet ts = (A4TupleSet)(sol.eval(expr));
-          for(A4Tuple t: ts) {
-             if (prefix.length()>0) { out.print(prefix); prefix=""; }
-             out.print("   <tuple>");
-             for(int i=0; i<t.arity(); i++) Util.encodeXMLs(out, " <atom label=\"", t.atom(i), "\"/>");
-             out.print(" </tuple>\n");
-          }
+          TupleSet ts = ((A4TupleSet)(sol.eval(expr))).tuples();
+          if (ts.size()>0 && skolem!=null) { startSkolem(skolem[0], skolem[1]); skolem=null; }
+          writeTuples(ts);
        }
        // Now, write out the type
-       if (prefix.length()>0) return false;
+       if (skolem!=null) return false;
        for(List<PrimSig> ps: type.fold()) {
+          if (bin!=null) {
+             bin.start("types");
+             for(PrimSig sig: ps) { bin.start("type", "ID", map(sig)); bin.end(); }
+             bin.end();
+             continue;
+          }
           out.print("   <types>");
           for(PrimSig sig: ps) Util.encodeXMLs(out, " <type ID=\"", map(sig), "\"/>");
           out.print(" </types>\n");
@@ -107,37 +202,49 @@ public final class A4SolutionWriter {
     }
 
     /** Write the given Sig. */
-    private A4TupleSet writesig(final Sig x) throws Err {
-       A4TupleSet ts = null, ts2 = null;
+    private TupleSet writesig(final Sig x) throws Err, IOException {
+       TupleSet ts = null, ts2 = null;
        if (x==Sig.NONE) return null; // should not happen, but we test for it anyway
        if (sol==null && x.isMeta!=null) return null; // When writing the metamodel, skip the metamodel sigs!
        if (x instanceof PrimSig) for(final PrimSig sub:children((PrimSig)x)) {
-          A4TupleSet ts3 = writesig(sub);
-          if (ts2==null) ts2 = ts3; else ts2 = ts2.plus(ts3);
+          TupleSet ts3 = writesig(sub);
+          if (ts3==null || ts3.size()==0) continue;
+          if (ts2==null) ts2 = ts3.clone(); else ts2.addAll(ts3);
        }
        if (rep!=null) rep.write(x);
-       Util.encodeXMLs(out, "\n<sig label=\"", x.label, "\" ID=\"", map(x));
-       if (x instanceof PrimSig && x!=Sig.UNIV) Util.encodeXMLs(out, "\" parentID=\"", map(((PrimSig)x).parent));
-       if (x.builtin) out.print("\" builtin=\"yes");
-       if (x.isAbstract!=null) out.print("\" abstract=\"yes");
-       if (x.isOne!=null) out.print("\" one=\"yes");
-       if (x.isLone!=null) out.print("\" lone=\"yes");
-       if (x.isSome!=null) out.print("\" some=\"yes");
-       if (x.isPrivate!=null) out.print("\" private=\"yes");
-       if (x.isMeta!=null) out.print("\" meta=\"yes");
-       if (x instanceof SubsetSig && ((SubsetSig)x).exact) out.print("\" exact=\"yes");
-       if (x.isEnum!=null) out.print("\" enum=\"yes");
-       out.print("\">\n");
+       if (bin!=null) {
+          bin.start("sig", "label", x.label, "ID", map(x),
+                "parentID", (x instanceof PrimSig && x!=Sig.UNIV) ? map(((PrimSig)x).parent) : null,
+                "builtin", x.builtin ? "yes" : null, "abstract", x.isAbstract!=null ? "yes" : null,
+                "one", x.isOne!=null ? "yes" : null, "lone", x.isLone!=null ? "yes" : null, "some", x.isSome!=null ? "yes" : null,
+                "private", x.isPrivate!=null ? "yes" : null, "meta", x.isMeta!=null ? "yes" : null,
+                "exact", (x instanceof SubsetSig && ((SubsetSig)x).exact) ? "yes" : null, "enum", x.isEnum!=null ? "yes" : null);
+       } else {
+          Util.encodeXMLs(out, "\n<sig label=\"", x.label, "\" ID=\"", map(x));
+          if (x instanceof PrimSig && x!=Sig.UNIV) Util.encodeXMLs(out, "\" parentID=\"", map(((PrimSig)x).parent));
+          if (x.builtin) out.print("\" builtin=\"yes");
+          if (x.isAbstract!=null) out.print("\" abstract=\"yes");
+          if (x.isOne!=null) out.print("\" one=\"yes");
+          if (x.isLone!=null) out.print("\" lone=\"yes");
+          if (x.isSome!=null) out.print("\" some=\"yes");
+          if (x.isPrivate!=null) out.print("\" private=\"yes");
+          if (x.isMeta!=null) out.print("\" meta=\"yes");
+          if (x instanceof SubsetSig && ((SubsetSig)x).exact) out.print("\" exact=\"yes");
+          if (x.isEnum!=null) out.print("\" enum=\"yes");
+          out.print("\">\n");
+       }
        try {
            if (sol!=null && x!=Sig.UNIV && x!=Sig.SIGINT && x!=Sig.SEQIDX) {
-              ts = (A4TupleSet)(sol.eval(x));
-              for(A4Tuple t: ts.minus(ts2))  Util.encodeXMLs(out, "   <atom label=\"", t.atom(0), "\"/>\n");
+              ts = sol.eval(x).tuples();
+              writeAtoms(ts, ts2);
            }
        } catch(Throwable ex) {
            throw new ErrorFatal("Error evaluating sig " + x.label, ex);
        }
-       if (x instanceof SubsetSig) for(Sig p:((SubsetSig)x).parents) Util.encodeXMLs(out, "   <type ID=\"", map(p), "\"/>\n");
-       out.print("</sig>\n");
+       if (x instanceof SubsetSig) for(Sig p:((SubsetSig)x).parents) {
+          if (bin!=null) { bin.start("type", "ID", map(p)); bin.end(); } else Util.encodeXMLs(out, "   <type ID=\"", map(p), "\"/>\n");
+       }
+       end("sig");
        for(Field field: x.getFields()) writeField(field);
        return ts;
     }
@@ -148,12 +255,17 @@ public final class A4SolutionWriter {
           if (sol==null && x.isMeta!=null) return; // when writing the metamodel, skip the metamodel fields!
           if (x.type().hasNoTuple()) return;         // we do not allow "none" in the XML file's type declarations
           if (rep!=null) rep.write(x);
-          Util.encodeXMLs(out, "\n<field label=\"", x.label, "\" ID=\"", map(x), "\" parentID=\"", map(x.sig));
-          if (x.isPrivate!=null) out.print("\" private=\"yes");
-          if (x.isMeta!=null) out.print("\" meta=\"yes");
-          out.print("\">\n");
-          writeExpr("", x);
-          out.print("</field>\n");
+          if (bin!=null) {
+             bin.start("field", "label", x.label, "ID", map(x), "parentID", map(x.sig),
+                "private", x.isPrivate!=null ? "yes" : null, "meta", x.isMeta!=null ? "yes" : null);
+          } else {
+             Util.encodeXMLs(out, "\n<field label=\"", x.label, "\" ID=\"", map(x), "\" parentID=\"", map(x.sig));
+             if (x.isPrivate!=null) out.print("\" private=\"yes");
+             if (x.isMeta!=null) out.print("\" meta=\"yes");
+             out.print("\">\n");
+          }
+          writeExpr(null, x);
+          end("field");
        } catch(Throwable ex) {
           throw new ErrorFatal("Error evaluating field "+x.sig.label+"."+x.label, ex);
        }
@@ -164,26 +276,30 @@ public final class A4SolutionWriter {
        try {
           if (sol==null) return;             // when writing a metamodel, skip the skolems
           if (x.type().hasNoTuple()) return;   // we do not allow "none" in the XML file's type declarations
-          StringBuilder sb = new StringBuilder();
-          Util.encodeXMLs(sb, "\n<skolem label=\"", x.label, "\" ID=\"", map(x), "\">\n");
-          if (writeExpr(sb.toString(), x)) { out.print("</skolem>\n"); }
+          if (writeExpr(new String[]{x.label, map(x)}, x)) end("skolem");
        } catch(Throwable ex) {
           throw new ErrorFatal("Error evaluating skolem "+x.label, ex);
        }
     }
 
     /** If sol==null, write the list of Sigs as a Metamodel, else write the solution as an XML file. */
-    private A4SolutionWriter(A4Reporter rep, A4Solution sol, Iterable<Sig> sigs, int bitwidth, int maxseq, String originalCommand, String originalFileName, PrintWriter out, Iterable<Func> extraSkolems) throws Err {
+    private A4SolutionWriter(A4Reporter rep, A4Solution sol, Iterable<Sig> sigs, int bitwidth, int maxseq, String originalCommand, String originalFileName, PrintWriter out, BinaryXMLWriter bin, Iterable<Func> extraSkolems) throws Err, IOException {
         this.rep = rep;
         this.out = out;
+        this.bin = bin;
         this.sol = sol;
         for (Sig s:sigs) if (s instanceof PrimSig && ((PrimSig)s).parent==Sig.UNIV) toplevels.add((PrimSig)s);
-        out.print("<instance bitwidth=\""); out.print(bitwidth);
-        out.print("\" maxseq=\""); out.print(maxseq);
-        out.print("\" command=\""); Util.encodeXML(out, originalCommand);
-        out.print("\" filename=\""); Util.encodeXML(out, originalFileName);
-        if (sol==null) out.print("\" metamodel=\"yes");
-        out.print("\">\n");
+        if (bin!=null) {
+           bin.start("instance", "bitwidth", Integer.toString(bitwidth), "maxseq", Integer.toString(maxseq),
+              "command", originalCommand, "filename", originalFileName, "metamodel", sol==null ? "yes" : null);
+        } else {
+           out.print("<instance bitwidth=\""); out.print(bitwidth);
+           out.print("\" maxseq=\""); out.print(maxseq);
+           out.print("\" command=\""); Util.encodeXML(out, originalCommand);
+           out.print("\" filename=\""); Util.encodeXML(out, originalFileName);
+           if (sol==null) out.print("\" metamodel=\"yes");
+           out.print("\">\n");
+        }
         writesig(Sig.UNIV);
         for (Sig s:sigs) if (s instanceof SubsetSig) writesig(s);
         if (sol!=null) for (ExprVar s:sol.getAllSkolems()) { if (rep!=null) rep.write(s); writeSkolem(s); }
@@ -194,15 +310,13 @@ public final class A4SolutionWriter {
             label="$"+label;
             try {
                 if (rep!=null) rep.write(f.call());
-                StringBuilder sb = new StringBuilder();
-                Util.encodeXMLs(sb, "\n<skolem label=\"", label, "\" ID=\"m"+m+"\">\n");
-                if (writeExpr(sb.toString(), f.call())) { out.print("</skolem>\n"); }
+                if (writeExpr(new String[]{label, "m"+m}, f.call())) end("skolem");
                 m++;
             } catch(Throwable ex) {
                 throw new ErrorFatal("Error evaluating skolem "+label, ex);
             }
         }
-        out.print("\n</instance>\n");
+        if (bin!=null) bin.end(); else out.print("\n</instance>\n");
     }
 
     /** If this solution is a satisfiable solution, this method will write it out in XML format. */
@@ -210,7 +324,7 @@ public final class A4SolutionWriter {
         if (!sol.satisfiable()) throw new ErrorAPI("This solution is unsatisfiable.");
         try {
             Util.encodeXMLs(out, "<alloy builddate=\"", Version.buildDate(), "\">\n\n");
-            new A4SolutionWriter(rep, sol, sol.getAllReachableSigs(), sol.getBitwidth(), sol.getMaxSeq(), sol.getOriginalCommand(), sol.getOriginalFilename(), out, extraSkolems);
+            new A4SolutionWriter(rep, sol, sol.getAllReachableSigs(), sol.getBitwidth(), sol.getMaxSeq(), sol.getOriginalCommand(), sol.getOriginalFilename(), out, null, extraSkolems);
             if (sources!=null) for(Map.Entry<String,String> e: sources.entrySet()) {
                 Util.encodeXMLs(out, "\n<source filename=\"", e.getKey(), "\" content=\"", e.getValue(), "\"/>\n");
             }
@@ -221,10 +335,26 @@ public final class A4SolutionWriter {
         if (out.checkError()) throw new ErrorFatal("Error writing the solution XML file.");
     }
 
+    /** If this solution is a satisfiable solution, this method will write it out in the binary encoding (but it will not close the BinaryXMLWriter). */
+    static void writeInstance(A4Reporter rep, A4Solution sol, BinaryXMLWriter out, Iterable<Func> extraSkolems, Map<String,String> sources) throws Err {
+        if (!sol.satisfiable()) throw new ErrorAPI("This solution is unsatisfiable.");
+        try {
+            out.start("alloy", "builddate", Version.buildDate());
+            new A4SolutionWriter(rep, sol, sol.getAllReachableSigs(), sol.getBitwidth(), sol.getMaxSeq(), sol.getOriginalCommand(), sol.getOriginalFilename(), null, out, extraSkolems);
+            if (sources!=null) for(Map.Entry<String,String> e: sources.entrySet()) {
+                out.start("source", "filename", e.getKey(), "content", e.getValue());
+                out.end();
+            }
+            out.end();
+        } catch(Throwable ex) {
+            if (ex instanceof Err) throw (Err)ex; else throw new ErrorFatal("Error writing the solution file.", ex);
+        }
+    }
+
     /** Write the metamodel as &lt;instance&gt;..&lt;/instance&gt; in XML format. */
     public static void writeMetamodel(ConstList<Sig> sigs, String originalFilename, PrintWriter out) throws Err {
         try {
-            new A4SolutionWriter(null, null, sigs, 4, 4, "show metamodel", originalFilename, out, null);
+            new A4SolutionWriter(null, null, sigs, 4, 4, "show metamodel", originalFilename, out, null, null);
         } catch(Throwable ex) {
             if (ex instanceof Err) throw (Err)ex; else throw new ErrorFatal("Error writing the solution XML file.", ex);
         }
@@ -42,6 +42,9 @@ public final class A4TupleSet implements Iterable<A4Tuple> {
     /** Return the underlying Kodkod tupleset. */
     public TupleSet debugGetKodkodTupleset() { return tuples.clone(); }
 
+    /** Return the underlying Kodkod tupleset without copying it; the caller must not modify it. */
+    TupleSet tuples() { return tuples; }
+
     /** Returns a read-only iterator that iterates over each tuple in this TupleSet. */
     public Iterator<A4Tuple> iterator() {
         return new Iterator<A4Tuple>() {
@@ -47,6 +47,12 @@ final class BookExamples {
         return null;
     }
 
+    /** Returns true if trial() may find a solution for a model with the given list of sigs. */
+    static boolean applies (Iterable<Sig> sigs) {
+        for(String label: new String[]{"this/Book", "this/Woman", "this/Process", "this/Desk", "this/FrontDesk"}) if (hasSig(sigs, label)!=null) return true;
+        return false;
+    }
+
     /** If one of the solution is a solution to the given problem, return it, else return null. */
     static Solution trial (A4Reporter rep, A4Solution frame, Formula formula, Solver solver, boolean check) {
         TupleFactory fac = frame.getFactory();
@@ -231,11 +231,13 @@ final class BoundsComputer {
         for(Sig s:sigs) if (!s.builtin && s.isTopLevel()) computeLowerBound(atoms, (PrimSig)s);
         for(Sig s:sigs) if (!s.builtin && s.isTopLevel()) computeUpperBound((PrimSig)s);
         // Bound the sigs
+        sol.checkCancelled();
         for(Sig s:sigs) if (!s.builtin && s.isTopLevel()) allocatePrimSig((PrimSig)s);
         for(Sig s:sigs) if (s instanceof SubsetSig) allocateSubsetSig((SubsetSig)s);
         // Bound the fields
         again:
         for(Sig s:sigs) {
+           sol.checkCancelled();
            while (s.isOne!=null && s.getFieldDecls().size()==2 && s.getFields().size()==2 && s.getFacts().size()==1) {
               // Let's check whether this is a total ordering on an enum...
               Expr fact = s.getFacts().get(0).deNOP(), b1 = s.getFieldDecls().get(0).expr.deNOP(), b2 = s.getFieldDecls().get(1).expr.deNOP(), b3;
@@ -292,6 +294,7 @@ final class BoundsComputer {
         }
         // Add any additional SIZE constraints
         for(Sig s:sigs) if (!s.builtin) {
+            sol.checkCancelled();
             Expression exp = sol.a2k(s);
             TupleSet upper = sol.query(true,exp,false), lower=sol.query(false,exp,false);
             final int n = sc.sig2scope(s);
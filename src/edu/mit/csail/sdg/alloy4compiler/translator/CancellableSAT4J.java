@@ -0,0 +1,154 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.translator;
+
+import org.sat4j.core.VecInt;
+import org.sat4j.minisat.SolverFactory;
+import org.sat4j.specs.ContradictionException;
+import org.sat4j.specs.ISolver;
+import org.sat4j.specs.ISolverService;
+import org.sat4j.specs.TimeoutException;
+import org.sat4j.tools.SearchListenerAdapter;
+import kodkod.engine.satlab.SATAbortedException;
+import kodkod.engine.satlab.SATFactory;
+import kodkod.engine.satlab.SATSolver;
+
+/** A SAT4J solver that, unlike the Kodkod wrapper, can be cancelled while it is solving
+ * (this code is adapted from SAT4J from Kodkod).
+ *
+ * <p> If it is given an A4Options object, then each call to solve() also stops when the options' deadline has passed
+ * or when its cancellation token is cancelled, by throwing A4Cancellation.Cancelled.
+ *
+ * <p> SAT4J re-arms its timeout at the start of every isSatisfiable() call, so a single expireTimeout() from another thread
+ * can be lost if it arrives just before the search starts; that is why we also check for cancellation at every step of the search.
+ */
+
+final class CancellableSAT4J implements SATSolver {
+
+    /** The SAT4J solver. */
+    private final ISolver solver;
+
+    /** If nonnull, its deadline and cancellation token are checked during solve(). */
+    private final A4Options opt;
+
+    /** The number of variables so far. */
+    private int vars = 0;
+
+    /** The number of clauses so far. */
+    private int clauses = 0;
+
+    /** FALSE if a contradiction was found while adding clauses, else the latest answer (or null if not yet solved). */
+    private Boolean sat = null;
+
+    /** True if cancel() has been called. */
+    private volatile boolean cancelled = false;
+
+    /** Helper method that returns a factory for default SAT4J solvers that observe the deadline and cancellation token in the given options. */
+    public static final SATFactory factory(final A4Options opt) {
+        return new SATFactory() {
+            /** {@inheritDoc} */
+            @Override public SATSolver instance() { return new CancellableSAT4J("Default", opt); }
+            /** {@inheritDoc} */
+            @Override public boolean incremental() { return true; }
+        };
+    }
+
+    /** Constructs a SAT4J solver with the given configuration name ("Default" or "Light" or any SAT4J solver name).
+     * @param opt - if nonnull, solve() gives up when its deadline has passed or when its cancellation token is cancelled
+     */
+    CancellableSAT4J(String name, A4Options opt) {
+        if (name.equals("Default")) solver = SolverFactory.instance().defaultSolver();
+        else if (name.equals("Light")) solver = SolverFactory.instance().lightSolver();
+        else solver = SolverFactory.instance().createSolverByName(name);
+        this.opt = opt;
+        solver.setSearchListener(new Watchdog());
+    }
+
+    /** This listener stops the search at its next step if this solver or the options' cancellation token has been cancelled. */
+    private final class Watchdog extends SearchListenerAdapter<ISolverService> {
+        /** This ensures the class can be serialized reliably. */
+        private static final long serialVersionUID = 0;
+        /** {@inheritDoc} */
+        @Override public void beginLoop() {
+            if (cancelled || (opt!=null && opt.cancellation!=null && opt.cancellation.isCancelled())) solver.expireTimeout();
+        }
+    }
+
+    /** Asks SAT4J to stop the current search as soon as possible. */
+    void cancel() { cancelled = true; solver.expireTimeout(); }
+
+    /** {@inheritDoc} */
+    public int numberOfVariables() { return vars; }
+
+    /** {@inheritDoc} */
+    public int numberOfClauses() { return clauses; }
+
+    /** {@inheritDoc} */
+    public void addVariables(int numVars) { if (numVars>0) { vars += numVars; solver.newVar(vars); } }
+
+    /** {@inheritDoc} */
+    public boolean addClause(int[] lits) {
+        if (Boolean.FALSE.equals(sat)) return false;
+        try {
+            clauses++;
+            solver.addClause(new VecInt(lits.clone()));
+            return true;
+        } catch(ContradictionException ex) {
+            sat = Boolean.FALSE;
+            return false;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean solve() throws SATAbortedException { return solve(new int[0]); }
+
+    /** Solves the CNF while assuming that each of the given literals is true (the assumptions are not kept for later calls).
+     * <p> Unlike adding unit clauses, this keeps the clauses that SAT4J learns valid for later calls with different assumptions.
+     */
+    boolean solve(int[] assumptions) throws SATAbortedException {
+        if (Boolean.FALSE.equals(sat)) return false;
+        if (opt!=null) A4Cancellation.check(opt);
+        if (cancelled) throw new RuntimeException("Cancelled since another solver answered first.");
+        Runnable listener = null;
+        if (opt!=null && opt.deadline>0) solver.setTimeoutMs(Math.max(1, opt.deadline - System.currentTimeMillis()));
+        if (opt!=null && opt.cancellation!=null) {
+            listener = new Runnable() { public void run() { solver.expireTimeout(); } };
+            opt.cancellation.listen(listener);
+        }
+        try {
+            boolean ans = (assumptions.length==0) ? solver.isSatisfiable() : solver.isSatisfiable(new VecInt(assumptions.clone()));
+            // An unsatisfiable answer under assumptions does not make the CNF itself unsatisfiable
+            sat = ans ? Boolean.TRUE : (assumptions.length==0 ? Boolean.FALSE : null);
+            return ans;
+        } catch(TimeoutException ex) {
+            if (opt!=null) A4Cancellation.check(opt);
+            if (cancelled) throw new RuntimeException("Cancelled since another solver answered first.");
+            throw new RuntimeException("timed out");
+        } finally {
+            if (listener!=null) opt.cancellation.unlisten(listener);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean valueOf(int variable) {
+        if (!Boolean.TRUE.equals(sat)) throw new IllegalStateException();
+        if (variable<1 || variable>vars) throw new IllegalArgumentException(variable + " !in [1.." + vars + "]");
+        return solver.model(variable);
+    }
+
+    /** {@inheritDoc} */
+    public void free() { }
+}
@@ -0,0 +1,141 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.translator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorAPI;
+import edu.mit.csail.sdg.alloy4compiler.ast.Command;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
+import edu.mit.csail.sdg.alloy4compiler.translator.TranslateAlloyToKodkod.BufferedReporter;
+
+/** Mutable; this executes a list of commands one after another, just like calling TranslateAlloyToKodkod.execute_command()
+ * on each of them, except that while the SAT solver works on one command, the next few commands are already being translated
+ * (computing the bounds, translating the facts, simplifying, and generating the CNF) on other threads.
+ *
+ * <p> The look-ahead is bounded: at most "lookahead" commands after the current one are translated in advance,
+ * so at most that many translations are kept in memory while they wait for their turn to be solved.
+ * The messages generated while translating a command in advance are buffered, and are sent to the reporter given to execute()
+ * just before that command is solved; so the reporter receives the same messages in the same order as a sequential execution.
+ *
+ * <p> If a command cannot be translated in advance (for example, if its scopes grow), or if its translation fails for any reason,
+ * then execute() simply executes that command from scratch.
+ *
+ * <p><b>Thread Safety:</b> Can be called only by one thread at a time.
+ */
+
+public final class CommandPipeline {
+
+    /** The list of sigs. */
+    private final Iterable<Sig> sigs;
+
+    /** The list of commands. */
+    private final List<Command> cmds;
+
+    /** The options. */
+    private final A4Options opt;
+
+    /** The maximum number of commands to translate in advance. */
+    private final int lookahead;
+
+    /** If true, we behave like execute_commandFromBook(), else we behave like execute_command(). */
+    private final boolean tryBookExamples;
+
+    /** The i-th entry is the translation of the i-th command in progress (or null if it has not been started or has been taken). */
+    private final List<Future<Object[]>> futures;
+
+    /** The number of commands whose translation has been started (or skipped). */
+    private int started = 0;
+
+    /** The thread pool that translates the commands in advance; null if it has been shut down. */
+    private ExecutorService pool;
+
+    /** Constructs a pipeline for the given list of commands.
+     * @param sigs - the list of sigs; this list must be complete
+     * @param cmds - the list of Commands to execute
+     * @param opt - the set of options guiding the execution of the commands
+     * @param lookahead - the maximum number of commands to translate in advance (1 or higher)
+     * @param tryBookExamples - if true, we behave like execute_commandFromBook(), else we behave like execute_command()
+     */
+    public CommandPipeline(Iterable<Sig> sigs, List<Command> cmds, A4Options opt, int lookahead, boolean tryBookExamples) throws Err {
+        if (lookahead<1) throw new ErrorAPI("The look-ahead of a command pipeline must be 1 or higher.");
+        this.sigs = sigs;
+        this.cmds = new ArrayList<Command>(cmds);
+        this.opt = opt.dup();
+        this.lookahead = lookahead;
+        this.tryBookExamples = tryBookExamples;
+        this.futures = new ArrayList<Future<Object[]>>(cmds.size());
+        for(int i=0; i<cmds.size(); i++) futures.add(null);
+        this.pool = Executors.newFixedThreadPool(lookahead, new ThreadFactory() {
+            public Thread newThread(Runnable r) { Thread t = new Thread(r, "Alloy translation prefetcher"); t.setDaemon(true); return t; }
+        });
+    }
+
+    /** Start translating every command up to and including the given one (except the ones that have been started already). */
+    private void start(int last) {
+        if (pool==null) return;
+        for(; started<=last && started<cmds.size(); started++) {
+            final Command cmd = cmds.get(started);
+            futures.set(started, pool.submit(new Callable<Object[]>() {
+                public Object[] call() throws Exception {
+                    BufferedReporter rep = new BufferedReporter();
+                    return new Object[]{rep, TranslateAlloyToKodkod.prefetch(rep, sigs, cmd, opt, tryBookExamples)};
+                }
+            }));
+        }
+    }
+
+    /** Execute the i-th command and return the resulting A4Solution object (see TranslateAlloyToKodkod.execute_command for details).
+     * <p> The commands should be executed in increasing order; a command that is executed out of order is simply executed from scratch.
+     * @param rep - if nonnull, we'll send compilation diagnostic messages to it
+     * @param i - the index of the command to execute
+     */
+    public A4Solution execute(A4Reporter rep, int i) throws Err {
+        if (i<0 || i>=cmds.size()) throw new ErrorAPI("There is no command with index "+i+".");
+        if (rep==null) rep = A4Reporter.NOP;
+        Future<Object[]> future = futures.set(i, null);
+        if (started<=i) started = i+1; // The i-th command will be translated by this thread if it has not been started yet
+        start(i + lookahead);
+        Object[] prefetched = null;
+        if (future!=null) {
+            try {
+                prefetched = future.get();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch(Throwable ex) {
+                // If the translation failed, then we execute the command from scratch, so that the error is reported in the usual way
+            }
+        }
+        if (prefetched==null || prefetched[1]==null) return TranslateAlloyToKodkod.execute_command(rep, sigs, cmds.get(i), opt, tryBookExamples, null);
+        ((BufferedReporter)(prefetched[0])).replay(rep);
+        return TranslateAlloyToKodkod.execute_command(rep, sigs, cmds.get(i), opt, tryBookExamples, (TranslateAlloyToKodkod)(prefetched[1]));
+    }
+
+    /** Stop translating commands in advance, and release the threads (this method is idempotent). */
+    public void close() {
+        if (pool==null) return;
+        for(int i=0; i<futures.size(); i++) { Future<Object[]> f = futures.get(i); if (f!=null) f.cancel(true); futures.set(i, null); }
+        pool.shutdownNow();
+        pool = null;
+    }
+}
@@ -0,0 +1,145 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package edu.mit.csail.sdg.alloy4compiler.translator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import kodkod.ast.Formula;
+import kodkod.ast.Relation;
+import kodkod.ast.Variable;
+import kodkod.instance.Universe;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.Pos;
+import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
+import edu.mit.csail.sdg.alloy4compiler.ast.Type;
+
+/** This caches the Kodkod translation of the facts, so that commands with the same scopes do not translate the same facts again.
+ *
+ * <p> A translated formula refers to the Kodkod relations that BoundsComputer allocated for the sigs and fields,
+ * so it can only be reused by a solution that uses the very same relations. Thus each entry is keyed by the "scope signature"
+ * (the sigs, their scopes and exactness, the bitwidth, the maximum sequence length, the unrolling limit, and the atoms),
+ * and remembers the relations that BoundsComputer allocated the first time; for every later solution with the same scope signature,
+ * BoundsComputer is asked to reuse those relations (see A4Solution.pool()), since Kodkod relations are immutable
+ * and the bounds are stored separately in each solution.
+ *
+ * <p> For each fact, field declaration, and disjointness constraint, the entry remembers the translated formula
+ * together with the list of Formula-to-Expr and Variable-to-Type associations that were made during the translation,
+ * so that they can be replayed into the new solution.
+ *
+ * <p><b>Thread Safety:</b> Safe.
+ */
+
+final class FactCache {
+
+    /** This class cannot be instantiated. */
+    private FactCache() { }
+
+    /** The maximum number of scope signatures to remember. */
+    private static final int MAX = 16;
+
+    /** The maximum number of translated constraints to remember for each scope signature. */
+    private static final int MAXITEMS = 4096;
+
+    /** This is one translated constraint. */
+    static final class Item {
+        /** The translated formula. */
+        private final Formula formula;
+        /** If nonnull, the translation named some skolem variables after this command label, so it can only be reused by commands with this label. */
+        private final String label;
+        /** The associations made during the translation; each is either (Formula, Expr or Pos) or (Variable, Type, Pos). */
+        private final Object[] log;
+        /** Constructs a new Item. */
+        private Item(Formula formula, String label, List<Object> log) {
+            this.formula = formula;
+            this.label = label;
+            this.log = log.toArray();
+        }
+        /** Replay the associations into the given solution, then return the translated formula. */
+        Formula replay(A4Solution frame) throws Err {
+            for(int i=0; i<log.length;) {
+                if (log[i] instanceof Formula && log[i+1] instanceof Expr) { frame.k2pos((Formula)(log[i]), (Expr)(log[i+1])); i=i+2; }
+                else if (log[i] instanceof Formula) { frame.k2pos((Formula)(log[i]), (Pos)(log[i+1])); i=i+2; }
+                else { frame.kv2typepos((Variable)(log[i]), (Type)(log[i+1]), (Pos)(log[i+2])); i=i+3; }
+            }
+            return formula;
+        }
+    }
+
+    /** This is the cache for one scope signature. */
+    static final class Entry {
+        /** The relations allocated by BoundsComputer, in allocation order; null if no solution has claimed this entry yet. */
+        private List<Relation> relations = null;
+        /** The translated constraints. */
+        private final Map<Object,Item> items = new HashMap<Object,Item>();
+        /** Constructs a new Entry. */
+        private Entry() { }
+        /** Returns the relations that BoundsComputer should try to reuse (this can be empty but never null). */
+        synchronized List<Relation> pool() {
+            if (relations==null) return Collections.emptyList(); else return relations;
+        }
+        /** Returns true if a solution that allocated the given relations can use this entry (the first caller always succeeds). */
+        synchronized boolean claim(List<Relation> allocated) {
+            if (relations==null) { relations = Collections.unmodifiableList(new ArrayList<Relation>(allocated)); return true; }
+            return relations.equals(allocated);
+        }
+        /** Returns the translated constraint with the given key for the given command label, or null if there is none. */
+        synchronized Item get(Object key, String label) {
+            Item ans = items.get(key);
+            return (ans==null || (ans.label!=null && !ans.label.equals(label))) ? null : ans;
+        }
+        /** Remembers a translated constraint.
+         * @param label - if nonnull, the translation depends on this command label
+         * @param log - the associations made during the translation; each is either (Formula, Expr or Pos) or (Variable, Type, Pos)
+         */
+        synchronized void put(Object key, Formula formula, String label, List<Object> log) {
+            if (items.size() < MAXITEMS || items.containsKey(key)) items.put(key, new Item(formula, label, log));
+        }
+    }
+
+    /** This maps each scope signature to its cache, in least-recently-used order. */
+    private static final Map<List<Object>,Entry> cache = new LinkedHashMap<List<Object>,Entry>(16, 0.75f, true) {
+        /** This ensures the class can be serialized reliably. */
+        private static final long serialVersionUID = 0;
+        /** {@inheritDoc} */
+        @Override protected boolean removeEldestEntry(Map.Entry<List<Object>,FactCache.Entry> eldest) { return size() > MAX; }
+    };
+
+    /** Returns the cache for the scope signature of the given (not yet bounded) solution, creating it if necessary.
+     * @param sigs - the complete list of sigs
+     * @param sc - the scopes computed for the command
+     * @param frame - the solution whose universe has been constructed but whose sigs and fields have not been bounded yet
+     */
+    static Entry get(Iterable<Sig> sigs, ScopeComputer sc, A4Solution frame) {
+        List<Object> key = new ArrayList<Object>();
+        for(Sig s: sigs) { key.add(s); key.add(sc.sig2scope(s)); key.add(sc.isExact(s)); }
+        key.add(frame.getBitwidth());
+        key.add(frame.getMaxSeq());
+        key.add(frame.unrolls());
+        Universe u = frame.getFactory().universe();
+        for(int i=0; i<u.size(); i++) key.add(u.atom(i));
+        synchronized(cache) {
+            Entry e = cache.get(key);
+            if (e==null) { e = new Entry(); cache.put(key, e); }
+            return e;
+        }
+    }
+}
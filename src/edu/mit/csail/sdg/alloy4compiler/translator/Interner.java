@@ -0,0 +1,156 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package edu.mit.csail.sdg.alloy4compiler.translator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import kodkod.ast.BinaryExpression;
+import kodkod.ast.BinaryFormula;
+import kodkod.ast.BinaryIntExpression;
+import kodkod.ast.ComparisonFormula;
+import kodkod.ast.Comprehension;
+import kodkod.ast.Decl;
+import kodkod.ast.Decls;
+import kodkod.ast.ExprToIntCast;
+import kodkod.ast.Formula;
+import kodkod.ast.IfExpression;
+import kodkod.ast.IfIntExpression;
+import kodkod.ast.IntComparisonFormula;
+import kodkod.ast.IntConstant;
+import kodkod.ast.IntToExprCast;
+import kodkod.ast.MultiplicityFormula;
+import kodkod.ast.NaryExpression;
+import kodkod.ast.NaryFormula;
+import kodkod.ast.NaryIntExpression;
+import kodkod.ast.Node;
+import kodkod.ast.NotFormula;
+import kodkod.ast.ProjectExpression;
+import kodkod.ast.QuantifiedFormula;
+import kodkod.ast.SumExpression;
+import kodkod.ast.UnaryExpression;
+import kodkod.ast.UnaryIntExpression;
+import kodkod.ast.visitor.AbstractReplacer;
+
+/** Mutable; this hash-conses Kodkod formulas, so that structurally identical subexpressions and subformulas become one node.
+ *
+ * <p> The translator creates a new Kodkod node for every occurrence of a subexpression (for example, each time a predicate is inlined),
+ * and Kodkod only shares the circuit of nodes that are the same object. So this rebuilds each formula bottom-up,
+ * and replaces each node by the first node seen with the same operator and the same (already replaced) children.
+ * Relations, variables and constants are kept as they are, so two nodes are only merged if they are in the scope of the same
+ * quantified variables; and subformulas are never merged with ones that differ only in the names of their bound variables.
+ *
+ * <p> The replacement table is kept across calls, so every formula given to the same Interner shares nodes with the formulas before it.
+ *
+ * <p><b>Thread Safety:</b> Can be called only by one thread at a time.
+ */
+
+final class Interner extends AbstractReplacer {
+
+    /** This maps the operator and the children of each node seen so far to the first node with that operator and those children. */
+    private final Map<List<Object>,Node> nodes = new HashMap<List<Object>,Node>();
+
+    /** During intern(), for each formula node that is replaced by a different node, the old node and the new node are appended here. */
+    private List<Formula> replaced = null;
+
+    /** Constructs an empty Interner. */
+    Interner() { super(Collections.<Node>emptySet()); }
+
+    /** Returns the hash-consed version of the given formula.
+     * @param replaced - for each formula node that is replaced by a different node, the old node and the new node are appended to this list
+     */
+    Formula intern(Formula formula, List<Formula> replaced) {
+        this.replaced = replaced;
+        try { return formula.accept(this); } finally { this.replaced = null; }
+    }
+
+    /** Returns the list of the given objects. */
+    private static List<Object> key(Object... parts) {
+        List<Object> ans = new ArrayList<Object>(parts.length);
+        for(Object x: parts) ans.add(x);
+        return ans;
+    }
+
+    /** Returns the operator and children of the given node (whose children have already been replaced), or null if it should be kept as it is. */
+    private static List<Object> key(Node x) {
+        if (x instanceof IntConstant) return key(IntConstant.class, ((IntConstant)x).value());
+        if (x instanceof UnaryExpression) { UnaryExpression y=(UnaryExpression)x; return key(UnaryExpression.class, y.op(), y.expression()); }
+        if (x instanceof BinaryExpression) { BinaryExpression y=(BinaryExpression)x; return key(BinaryExpression.class, y.op(), y.left(), y.right()); }
+        if (x instanceof NaryExpression) {
+            NaryExpression y=(NaryExpression)x;
+            List<Object> ans = key(NaryExpression.class, y.op());
+            for(int i=0; i<y.size(); i++) ans.add(y.child(i));
+            return ans;
+        }
+        if (x instanceof Comprehension) { Comprehension y=(Comprehension)x; return key(Comprehension.class, y.decls(), y.formula()); }
+        if (x instanceof IfExpression) { IfExpression y=(IfExpression)x; return key(IfExpression.class, y.condition(), y.thenExpr(), y.elseExpr()); }
+        if (x instanceof ProjectExpression) {
+            ProjectExpression y=(ProjectExpression)x;
+            List<Object> ans = key(ProjectExpression.class, y.expression());
+            for(int i=0; i<y.arity(); i++) ans.add(y.column(i));
+            return ans;
+        }
+        if (x instanceof IntToExprCast) { IntToExprCast y=(IntToExprCast)x; return key(IntToExprCast.class, y.op(), y.intExpr()); }
+        if (x instanceof IfIntExpression) { IfIntExpression y=(IfIntExpression)x; return key(IfIntExpression.class, y.condition(), y.thenExpr(), y.elseExpr()); }
+        if (x instanceof ExprToIntCast) { ExprToIntCast y=(ExprToIntCast)x; return key(ExprToIntCast.class, y.op(), y.expression()); }
+        if (x instanceof NaryIntExpression) {
+            NaryIntExpression y=(NaryIntExpression)x;
+            List<Object> ans = key(NaryIntExpression.class, y.op());
+            for(int i=0; i<y.size(); i++) ans.add(y.child(i));
+            return ans;
+        }
+        if (x instanceof BinaryIntExpression) { BinaryIntExpression y=(BinaryIntExpression)x; return key(BinaryIntExpression.class, y.op(), y.left(), y.right()); }
+        if (x instanceof UnaryIntExpression) { UnaryIntExpression y=(UnaryIntExpression)x; return key(UnaryIntExpression.class, y.op(), y.intExpr()); }
+        if (x instanceof SumExpression) { SumExpression y=(SumExpression)x; return key(SumExpression.class, y.decls(), y.intExpr()); }
+        if (x instanceof IntComparisonFormula) { IntComparisonFormula y=(IntComparisonFormula)x; return key(IntComparisonFormula.class, y.op(), y.left(), y.right()); }
+        if (x instanceof QuantifiedFormula) { QuantifiedFormula y=(QuantifiedFormula)x; return key(QuantifiedFormula.class, y.quantifier(), y.decls(), y.formula()); }
+        if (x instanceof NaryFormula) {
+            NaryFormula y=(NaryFormula)x;
+            List<Object> ans = key(NaryFormula.class, y.op());
+            for(int i=0; i<y.size(); i++) ans.add(y.child(i));
+            return ans;
+        }
+        if (x instanceof BinaryFormula) { BinaryFormula y=(BinaryFormula)x; return key(BinaryFormula.class, y.op(), y.left(), y.right()); }
+        if (x instanceof NotFormula) return key(NotFormula.class, ((NotFormula)x).formula());
+        if (x instanceof ComparisonFormula) { ComparisonFormula y=(ComparisonFormula)x; return key(ComparisonFormula.class, y.op(), y.left(), y.right()); }
+        if (x instanceof MultiplicityFormula) { MultiplicityFormula y=(MultiplicityFormula)x; return key(MultiplicityFormula.class, y.multiplicity(), y.expression()); }
+        if (x instanceof Decl) { Decl y=(Decl)x; return key(Decl.class, y.variable(), y.multiplicity(), y.expression()); }
+        if (x instanceof Decls) {
+            Decls y=(Decls)x;
+            List<Object> ans = key(Decls.class);
+            for(int i=0; i<y.size(); i++) ans.add(y.get(i));
+            return ans;
+        }
+        return null; // Relations, variables, constant expressions and formulas, and relation predicates are kept as they are
+    }
+
+    /** {@inheritDoc} */
+    @SuppressWarnings("unchecked")
+    @Override protected <N extends Node> N cache(N node, N replacement) {
+        List<Object> key = key(replacement);
+        N ans = replacement;
+        if (key!=null) {
+            Node old = nodes.get(key);
+            if (old==null) nodes.put(key, replacement); else ans = (N)old;
+        }
+        cache.put(node, ans);
+        if (ans!=node && node instanceof Formula && replaced!=null) { replaced.add((Formula)node); replaced.add((Formula)ans); }
+        return ans;
+    }
+}
@@ -0,0 +1,244 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.translator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import kodkod.engine.satlab.SATAbortedException;
+import kodkod.engine.satlab.SATFactory;
+import kodkod.engine.satlab.SATSolver;
+
+/** An implementation of SATSolver that races several SAT solvers on the same CNF and keeps the first answer.
+ *
+ * <p> Kodkod translates the problem only once; every clause it generates is forwarded to every member solver.
+ * When solve() is called, each member solves on its own thread; the first member to answer wins,
+ * every other member is cancelled (or abandoned, if it is a native solver that cannot be interrupted),
+ * and from then on every call (including the blocking clauses added during solution enumeration) goes to the winner only.
+ *
+ * <p> An abandoned native solver cannot be killed, since it runs inside this JVM; it keeps its thread, one processor, and its memory
+ * until its own search finishes, and only then is it freed. To keep such losers from piling up, a later race
+ * leaves out any native member whose abandoned copy is still running (the SAT4J members are never left out).
+ */
+
+final class Portfolio implements SATSolver {
+
+    /** The reporter that receives the name of the winning solver. */
+    private final A4Reporter rep;
+
+    /** The member solvers; once a winner is chosen, this list contains only the winner. */
+    private final List<Member> members = new ArrayList<Member>();
+
+    /** The number of variables so far. */
+    private int vars = 0;
+
+    /** The number of clauses so far. */
+    private int clauses = 0;
+
+    /** Maps the name of each native member to the number of its abandoned copies that are still running; this field must be synchronized. */
+    private static final Map<String,Integer> abandoned = new HashMap<String,Integer>();
+
+    /** Records that one more copy of the given native member is abandoned (if add==true), or that one such copy has finished (if add==false). */
+    private static synchronized void abandon(String name, boolean add) {
+        Integer n = abandoned.get(name);
+        int count = (n==null ? 0 : n.intValue()) + (add ? 1 : -1);
+        if (count>0) abandoned.put(name, count); else abandoned.remove(name);
+    }
+
+    /** Returns true if an abandoned copy of the given native member is still running. */
+    private static synchronized boolean isAbandoned(String name) { return abandoned.containsKey(name); }
+
+    /** Helper method that returns a factory for Portfolio instances racing the given member solvers.
+     * @param rep - the reporter that receives the name of the winning solver (can be null)
+     * @param names - the name of each member solver
+     * @param factories - the factory for each member solver; null means a SAT4J solver configured by the corresponding name
+     */
+    public static final SATFactory factory(final A4Reporter rep, final List<String> names, final List<SATFactory> factories) {
+        return new SATFactory() {
+            /** {@inheritDoc} */
+            @Override public SATSolver instance() { return new Portfolio(rep, names, factories); }
+            /** {@inheritDoc} */
+            @Override public boolean incremental() {
+                for(SATFactory f: factories) if (f!=null && !f.incremental()) return false;
+                return true;
+            }
+        };
+    }
+
+    /** Helper method that returns a factory racing two SAT4J configurations and every incremental native solver that works on this platform
+     * (non-incremental solvers are left out, so that solution enumeration keeps working).
+     * @param rep - the reporter that receives the name of the winning solver (can be null)
+     */
+    public static final SATFactory factory(A4Reporter rep) {
+        List<String> names = new ArrayList<String>();
+        List<SATFactory> factories = new ArrayList<SATFactory>();
+        names.add("Default"); factories.add(null);
+        names.add("Light");   factories.add(null);
+        SATFactory[] natives = new SATFactory[]{SATFactory.MiniSat, SATFactory.Glucose, SATFactory.Lingeling, SATFactory.CryptoMiniSat};
+        for(SATFactory f: natives) {
+            boolean ok;
+            try { ok = f.incremental() && SATFactory.available(f); } catch(Throwable ex) { ok = false; }
+            if (ok) { names.add(f.toString()); factories.add(f); }
+        }
+        return factory(rep, names, factories);
+    }
+
+    /** Constructs a Portfolio solver with one member for each given factory. */
+    private Portfolio(A4Reporter rep, List<String> names, List<SATFactory> factories) {
+        this.rep = (rep!=null ? rep : A4Reporter.NOP);
+        for(int i=0; i<names.size(); i++) {
+            SATFactory f = factories.get(i);
+            if (f==null) members.add(new Member(names.get(i), new CancellableSAT4J(names.get(i), null))); else members.add(new Member(names.get(i), f.instance()));
+        }
+    }
+
+    //===================================================================================================//
+
+    /** This wraps one member solver, together with the thread (if any) that is currently solving it. */
+    private static final class Member implements Runnable {
+        /** The name of this member. */
+        private final String name;
+        /** The solver. */
+        private final SATSolver solver;
+        /** The portfolio result we report into once we finish; null if we are not currently solving. */
+        private Race race = null;
+        /** True if this member has finished solving for the current race; this field must be synchronized on the race. */
+        private boolean finished = false;
+        /** True if this member was abandoned while solving; this field must be synchronized on the race. */
+        private boolean abandoned = false;
+        /** Constructs a new member. */
+        private Member(String name, SATSolver solver) { this.name=name; this.solver=solver; }
+        /** Solve, then report the outcome (or the failure) into the race. */
+        public void run() {
+            Race race = this.race;
+            try {
+                boolean ans = solver.solve();
+                race.finish(this, ans ? Boolean.TRUE : Boolean.FALSE, null);
+            } catch(Throwable ex) {
+                race.finish(this, null, ex);
+            }
+        }
+        /** Stop solving as soon as possible; native solvers cannot be interrupted, so they are abandoned and simply run to completion.
+         * <p> This method must be called while synchronized on the race.
+         */
+        private void cancel() {
+            if (solver instanceof CancellableSAT4J) ((CancellableSAT4J)solver).cancel();
+            else if (!finished && !abandoned) { abandoned=true; abandon(name, true); }
+        }
+    }
+
+    /** This records the outcome of one call to solve(). */
+    private static final class Race {
+        /** The number of members that have not finished yet. */
+        private int running;
+        /** The first member that finished with an answer, or null if there is none yet. */
+        private Member winner = null;
+        /** If winner!=null, this is its answer. */
+        private boolean answer = false;
+        /** The first failure, or null if no member has failed yet. */
+        private Throwable failure = null;
+        /** Constructs a new race with the given number of members. */
+        private Race(int running) { this.running = running; }
+        /** Records that the given member has finished (ans==null means it failed with the given exception). */
+        private synchronized void finish(Member m, Boolean ans, Throwable ex) {
+            running--;
+            m.finished = true;
+            if (m.abandoned) { m.abandoned=false; abandon(m.name, false); }
+            if (winner==null && ans!=null) { winner=m; answer=ans.booleanValue(); }
+            else if (winner==null && failure==null) failure=ex;
+            else if (winner!=m) { try { m.solver.free(); } catch(Throwable ex2) { } } // Losers that finish late are freed by their own thread
+            notifyAll();
+        }
+        /** Waits until there is a winner, or until every member has failed. */
+        private synchronized void await() throws InterruptedException {
+            while(winner==null && running>0) wait();
+        }
+    }
+
+    //===================================================================================================//
+
+    /** {@inheritDoc} */
+    public void addVariables(int numVars) {
+        if (numVars<0) throw new IllegalArgumentException("numVars < 0: " + numVars);
+        vars += numVars;
+        for(Member m: members) m.solver.addVariables(numVars);
+    }
+
+    /** {@inheritDoc} */
+    public boolean addClause(int[] lits) {
+        boolean ans = false;
+        for(Member m: members) if (m.solver.addClause(lits)) ans=true;
+        if (ans) clauses++;
+        return ans;
+    }
+
+    /** {@inheritDoc} */
+    public int numberOfVariables() { return vars; }
+
+    /** {@inheritDoc} */
+    public int numberOfClauses() { return clauses; }
+
+    /** {@inheritDoc} */
+    public boolean solve() throws SATAbortedException {
+        // Leave out every native member whose abandoned copy from an earlier race is still running
+        for(Iterator<Member> it = members.iterator(); it.hasNext() && members.size()>1;) {
+            Member m = it.next();
+            if (!(m.solver instanceof CancellableSAT4J) && isAbandoned(m.name)) { it.remove(); try { m.solver.free(); } catch(Throwable ex) { } }
+        }
+        if (members.size()==1) return members.get(0).solver.solve();
+        Race race = new Race(members.size());
+        for(Member m: members) {
+            m.race = race;
+            m.finished = false;
+            Thread t = new Thread(m, "Alloy portfolio: "+m.name);
+            t.setDaemon(true);
+            t.start();
+        }
+        try {
+            race.await();
+        } catch(InterruptedException ex) {
+            synchronized(race) { for(Member m: members) m.cancel(); }
+            throw new RuntimeException("Portfolio solving was interrupted.", ex);
+        }
+        synchronized(race) {
+            if (race.winner==null) {
+                members.clear();
+                if (race.failure instanceof RuntimeException) throw (RuntimeException)(race.failure);
+                throw new RuntimeException("Every solver in the portfolio failed.", race.failure);
+            }
+            for(Member m: members) if (m!=race.winner) m.cancel();
+            members.clear();
+            members.add(race.winner);
+            rep.debug("Portfolio: "+race.winner.name+" answered first.\n");
+            return race.answer;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean valueOf(int variable) {
+        if (members.size()!=1) throw new IllegalStateException("The portfolio has not been solved yet.");
+        return members.get(0).solver.valueOf(variable);
+    }
+
+    /** {@inheritDoc} */
+    public void free() {
+        if (members.size()==1) members.get(0).solver.free();
+        members.clear();
+    }
+}
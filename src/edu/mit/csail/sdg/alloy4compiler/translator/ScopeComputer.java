@@ -323,6 +323,44 @@ final class ScopeComputer {
 
     //===========================================================================================================================//
 
+    /** Computes the scopes for the given command, without reporting anything and without generating an A4Solution. */
+    static ScopeComputer scopes(Iterable<Sig> sigs, Command cmd) throws Err { return new ScopeComputer(A4Reporter.NOP, sigs, cmd); }
+
+    /** Returns the command that is the same as the given command (which must not have growable sigs), but with a larger scope:
+     * its overall scope and every inexact scope is raised by 1 (except for "lone" sigs), and if the bitwidth is not 0
+     * and some sig can now have more atoms than the largest integer, then the bitwidth is raised until it can count them (up to 30).
+     */
+    static Command escalate(Iterable<Sig> sigs, Command cmd) throws Err {
+        int overall = (cmd.overall>=0) ? cmd.overall+1 : (cmd.scope.size()==0 ? 4 : -1);
+        Command ans = cmd.change(overall, cmd.bitwidth);
+        for(CommandScope sc: cmd.scope) {
+            Sig s = sc.sig;
+            if (sc.isExact || s.builtin || s.isOne!=null || s.isLone!=null || cmd.additionalExactScopes.contains(s)) continue;
+            ans = ans.change(s, false, sc.startingScope+1);
+        }
+        ScopeComputer sc = scopes(sigs, ans);
+        int bitwidth = sc.bitwidth, max = 0;
+        if (bitwidth==0) return ans;
+        for(Sig s: sigs) if (s instanceof PrimSig && !s.builtin) max = Math.max(max, sc.sig2scope(s));
+        while(bitwidth<30 && Util.max(bitwidth)<max) bitwidth++;
+        return bitwidth==sc.bitwidth ? ans : ans.change(overall, bitwidth);
+    }
+
+    /** Returns the sigs whose scopes are smaller in this than in that,
+     * or null if the two differ in any other way (bitwidth, maximum sequence length, String atoms, exactness, or a bigger scope in this).
+     * <p> If this returns a list, then this's problem is that's problem plus the constraint that each sig in the list has at most sig2scope(sig) atoms.
+     */
+    List<Sig> smaller(ScopeComputer that, Iterable<Sig> sigs) {
+        if (bitwidth!=that.bitwidth || maxseq!=that.maxseq || maxstring!=that.maxstring) return null;
+        List<Sig> ans = new ArrayList<Sig>();
+        for(Sig s: sigs) if (s instanceof PrimSig && !s.builtin) {
+            int a = sig2scope(s), b = that.sig2scope(s);
+            if (isExact(s)!=that.isExact(s) || a>b || (a<b && isExact(s))) return null;
+            if (a<b) ans.add(s);
+        }
+        return ans;
+    }
+
     /** Computes the scopes for each sig and computes the bitwidth and maximum sequence length.
      *
      * <p> The scopes are determined as follows:
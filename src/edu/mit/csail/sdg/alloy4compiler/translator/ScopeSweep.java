@@ -0,0 +1,277 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.translator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import kodkod.ast.BinaryExpression;
+import kodkod.ast.Expression;
+import kodkod.ast.NaryExpression;
+import kodkod.ast.Relation;
+import kodkod.ast.operator.ExprOperator;
+import kodkod.instance.Instance;
+import kodkod.instance.Tuple;
+import kodkod.instance.TupleFactory;
+import kodkod.instance.TupleSet;
+import kodkod.util.ints.IntIterator;
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorFatal;
+import edu.mit.csail.sdg.alloy4compiler.ast.Command;
+import edu.mit.csail.sdg.alloy4compiler.ast.CommandScope;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Options.SatSolver;
+
+/** This solves a command whose scopes grow (such as "for 3..10 A") using one translation and one incremental SAT solver,
+ * instead of translating and solving every step from scratch.
+ *
+ * <p> The command is translated once, at its largest scope. For every sig whose scope is smaller in some step,
+ * we add a counter to the CNF that says how many of its atoms are used; each step is then solved by assuming
+ * that each such sig has at most as many atoms as that step allows. So the SAT solver keeps the clauses it learned
+ * in earlier steps, and the whole sweep costs about as much as translating and solving its last step.
+ *
+ * <p> For a "run" command, the instance found in each step is carried into the next step (just like the greedy solving
+ * in TranslateAlloyToKodkod) by also assuming that every field keeps its value among the atoms used by that instance.
+ * Unlike the scope counters, such assumptions are not closed under isomorphism, so the symmetry breaking predicates
+ * (which were generated for the largest scope) may end the growth earlier than a fresh translation of each step would;
+ * but every instance returned is still an instance of its step.
+ *
+ * <p> This requires SAT4J, a single command (not a chain of commands), and steps whose scopes differ only in the
+ * number of atoms that some inexact sigs may have; in every other case, make() returns null.
+ */
+
+final class ScopeSweep {
+
+    /** The list of all sigs. */
+    private final Iterable<Sig> sigs;
+
+    /** The command for each step; the last one has the largest scope. */
+    private final List<Command> steps;
+
+    /** The scopes computed for each step. */
+    private final List<ScopeComputer> scopes;
+
+    /** For each step, the sigs whose scopes are smaller than in the last step. */
+    private final List<List<Sig>> smaller;
+
+    /** Constructs a sweep with the given steps. */
+    private ScopeSweep(Iterable<Sig> sigs, List<Command> steps, List<ScopeComputer> scopes, List<List<Sig>> smaller) {
+        this.sigs = sigs;
+        this.steps = steps;
+        this.scopes = scopes;
+        this.smaller = smaller;
+    }
+
+    /** Returns the sweep for the given command, or null if the command cannot be solved by a sweep. */
+    static ScopeSweep make(A4Options opt, Iterable<Sig> sigs, Command cmd) throws Err {
+        if (cmd.parent!=null || !opt.solver.equals(SatSolver.SAT4J)) return null;
+        List<Sig> growable = cmd.getGrowableSigs();
+        if (growable.isEmpty()) return null;
+        // Form the list of steps, exactly like the greedy solving in TranslateAlloyToKodkod
+        List<Command> steps = new ArrayList<Command>();
+        while(cmd != null) {
+            steps.add(cmd);
+            for(Sig s: growable) {
+                CommandScope sc = cmd.getScope(s);
+                if (sc.endingScope == Integer.MAX_VALUE) return null; // If the sweep has no end, then it has no largest scope
+                if (sc.increment > sc.endingScope - sc.startingScope) {cmd=null; break;}
+                cmd = cmd.change(s, sc.isExact, sc.startingScope+sc.increment, sc.endingScope, sc.increment);
+            }
+        }
+        return make(opt, sigs, steps);
+    }
+
+    /** Returns the sweep that solves the given steps in order, or null if they cannot be solved by a sweep
+     * (this requires each step to differ from the last step only in having fewer atoms in some inexact sigs).
+     */
+    static ScopeSweep make(A4Options opt, Iterable<Sig> sigs, List<Command> steps) throws Err {
+        if (steps.size() < 2 || !opt.solver.equals(SatSolver.SAT4J)) return null;
+        for(Command c: steps) if (c.parent!=null) return null;
+        List<ScopeComputer> scopes = new ArrayList<ScopeComputer>();
+        List<List<Sig>> smaller = new ArrayList<List<Sig>>();
+        for(Command c: steps) scopes.add(ScopeComputer.scopes(sigs, c));
+        ScopeComputer last = scopes.get(scopes.size()-1);
+        for(ScopeComputer sc: scopes) {
+            List<Sig> list = sc.smaller(last, sigs);
+            if (list==null) return null;
+            smaller.add(list);
+        }
+        return new ScopeSweep(sigs, steps, scopes, smaller);
+    }
+
+    /** Returns the command with the largest scope (which is the command that should be translated). */
+    Command last() { return steps.get(steps.size()-1); }
+
+    /** Returns true if we can count the atoms of every sig whose scope changes, in the given frame (which must not be solved yet). */
+    boolean countable(A4Solution frame) throws Err {
+        for(List<Sig> list: smaller) for(Sig s: list) if (!leaves(frame.a2k(s), new ArrayList<Relation>())) return false;
+        return true;
+    }
+
+    /** Adds the relations whose union is the given expression into the given list; returns false if the expression is not such a union. */
+    private static boolean leaves(Expression x, List<Relation> list) {
+        if (x == Expression.NONE) return true;
+        if (x instanceof Relation) { list.add((Relation)x); return true; }
+        if (x instanceof BinaryExpression && ((BinaryExpression)x).op()==ExprOperator.UNION)
+            return leaves(((BinaryExpression)x).left(), list) && leaves(((BinaryExpression)x).right(), list);
+        if (x instanceof NaryExpression && ((NaryExpression)x).op()==ExprOperator.UNION) {
+            for(Expression y: (NaryExpression)x) if (!leaves(y, list)) return false;
+            return true;
+        }
+        return false;
+    }
+
+    /** This counts how many atoms are in a sig, using a sequential counter in the CNF. */
+    private static final class Counter {
+        /** The number of atoms that are always in the sig. */
+        private final int fixed;
+        /** For each remaining atom that may be in the sig, a literal that is true if it is. */
+        private final List<Integer> members = new ArrayList<Integer>();
+        /** The largest k for which we need to know whether at least k members are true. */
+        private int max = 0;
+        /** If out[k] is false, then fewer than k members are true (for k between 1 and max). */
+        private int[] out = null;
+        /** Constructs a counter for the union of the given relations. */
+        private Counter(TranslationCache.Entry cnf, List<Relation> leaves) {
+            Set<Integer> always = new HashSet<Integer>();
+            Map<Integer,List<Integer>> atoms = new LinkedHashMap<Integer,List<Integer>>();
+            for(Relation r: leaves) {
+                TupleSet lower = cnf.lower(r);
+                if (lower!=null) for(IntIterator it=lower.indexView().iterator(); it.hasNext();) always.add(it.next());
+                for(Map.Entry<Integer,Integer> e: cnf.variables(r).entrySet()) {
+                    List<Integer> vars = atoms.get(e.getKey());
+                    if (vars==null) atoms.put(e.getKey(), vars = new ArrayList<Integer>());
+                    vars.add(e.getValue());
+                }
+            }
+            fixed = always.size();
+            for(Map.Entry<Integer,List<Integer>> e: atoms.entrySet()) if (!always.contains(e.getKey())) {
+                List<Integer> vars = e.getValue();
+                if (vars.size()==1) { members.add(vars.get(0)); continue; }
+                // If an atom can be in more than one of the relations, then we count it once
+                int y = cnf.addVariables(1);
+                for(int x: vars) cnf.addClause(-x, y);
+                members.add(y);
+            }
+        }
+        /** Make sure the counter can tell whether the sig has more than the given number of atoms. */
+        private void need(int scope) { max = Math.max(max, Math.min(members.size(), scope - fixed + 1)); }
+        /** Adds the counter into the CNF: r(i,j) is true if at least j of the first i+1 members are true. */
+        private void build(TranslationCache.Entry cnf) {
+            int n = members.size();
+            out = new int[max+1];
+            if (max<=0) return;
+            int first = cnf.addVariables(n*max);
+            for(int i=0; i<n; i++) {
+                int x = members.get(i), r = first + i*max - 1; // so r(i,j) is r+j
+                cnf.addClause(-x, r+1);
+                if (i>0) for(int j=1; j<=max; j++) {
+                    cnf.addClause(-(r-max+j), r+j);
+                    if (j>1) cnf.addClause(-x, -(r-max+j-1), r+j);
+                }
+            }
+            for(int j=1; j<=max; j++) out[j] = first + (n-1)*max + j - 1;
+        }
+        /** Returns the literal that says the sig has at most the given number of atoms, or 0 if the sig can never have more. */
+        private int atMost(int scope) throws Err {
+            int k = scope - fixed;
+            if (k >= members.size()) return 0;
+            if (k < 0 || k+1 > max) throw new ErrorFatal("The scope sweep cannot restrict a sig to "+scope+" atoms.");
+            return -out[k+1];
+        }
+    }
+
+    /** Adds the literals that say every field tuple among the atoms of the given solution keeps its value in that solution. */
+    private void carry(A4Solution frame, TranslationCache.Entry cnf, A4Solution partial, List<Integer> lits) throws Err {
+        Set<Object> atoms = new HashSet<Object>();
+        for(Tuple t: partial.eval(Sig.UNIV).debugGetKodkodTupleset()) atoms.add(t.atom(0));
+        Instance inst = partial.debugExtractKInstance();
+        TupleFactory factory = inst.universe().factory();
+        for(Sig s: sigs) for(Field f: s.getFields()) {
+            Expression rel = frame.a2k(f);
+            if (s.isOne!=null) rel = TranslateAlloyToKodkod.right(rel);
+            if (!(rel instanceof Relation) || inst.tuples((Relation)rel)==null) continue;
+            TupleSet value = inst.tuples((Relation)rel);
+            for(Map.Entry<Integer,Integer> e: cnf.variables((Relation)rel).entrySet()) {
+                Tuple t = factory.tuple(rel.arity(), e.getKey());
+                boolean old = true;
+                for(int i=0; old && i<t.arity(); i++) if (!atoms.contains(t.atom(i))) old = false;
+                if (old) lits.add(value.indexView().contains(e.getKey()) ? e.getValue() : -e.getValue());
+            }
+        }
+    }
+
+    /** Helper method that converts a list of literals into an array. */
+    private static int[] array(List<Integer> list) {
+        int[] ans = new int[list.size()];
+        for(int i=0; i<ans.length; i++) ans[i] = list.get(i);
+        return ans;
+    }
+
+    /** Solve every step in the given frame (which must be the translation of last(), and must not be solved yet),
+     * and return the result in the same way as the greedy solving in TranslateAlloyToKodkod:
+     * <br> for a "check" command, the first counterexample, or else the result of the last step;
+     * <br> for a "run" command, the last satisfiable step's solution (or the first step's solution if it is unsatisfiable).
+     */
+    A4Solution solve(A4Reporter rep, A4Solution frame) throws Err {
+        final long start = System.currentTimeMillis();
+        final boolean check = last().check;
+        TranslationCache.Entry cnf = frame.sweepable(rep);
+        Map<Sig,Counter> counters = new LinkedHashMap<Sig,Counter>();
+        for(int i=0; i<steps.size(); i++) for(Sig s: smaller.get(i)) {
+            Counter c = counters.get(s);
+            if (c==null) { List<Relation> leaves = new ArrayList<Relation>(); leaves(frame.a2k(s), leaves); counters.put(s, c = new Counter(cnf, leaves)); }
+            c.need(scopes.get(i).sig2scope(s));
+        }
+        for(Counter c: counters.values()) c.build(cnf);
+        A4Solution sol = null, partial = null;
+        List<Integer> previous = Collections.emptyList();
+        long time = start;
+        for(int i=0; i<steps.size(); i++) {
+            Command cmd = steps.get(i);
+            rep.debug(cmd.scope.toString());
+            List<Integer> lits = new ArrayList<Integer>();
+            for(Sig s: smaller.get(i)) { int lit = counters.get(s).atMost(scopes.get(i).sig2scope(s)); if (lit!=0) lits.add(lit); }
+            if (partial!=null && !check) carry(frame, cnf, partial, lits);
+            sol = frame.sweep(cmd, array(lits));
+            if (sol.isUnknown()) throw new A4Cancellation.Cancelled();
+            rep.step(cmd, System.currentTimeMillis()-time, sol);
+            time = System.currentTimeMillis();
+            if (!sol.satisfiable() && !check) {
+                if (partial!=null) {
+                    // Solve the previous step again, so that enumerating from its solution will use that step's assumptions
+                    sol = frame.sweep(steps.get(i-1), array(previous));
+                    if (sol.isUnknown()) throw new A4Cancellation.Cancelled();
+                    rep.resultSAT(cmd, System.currentTimeMillis()-start, sol);
+                } else {
+                    rep.resultUNSAT(cmd, System.currentTimeMillis()-start, sol);
+                }
+                return sol;
+            }
+            if (sol.satisfiable() && check) { rep.resultSAT(cmd, System.currentTimeMillis()-start, sol); return sol; }
+            partial = sol;
+            previous = lits;
+        }
+        if (sol.satisfiable()) rep.resultSAT(last(), System.currentTimeMillis()-start, sol); else rep.resultUNSAT(last(), System.currentTimeMillis()-start, sol);
+        return sol;
+    }
+}
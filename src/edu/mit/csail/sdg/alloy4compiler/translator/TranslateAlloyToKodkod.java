@@ -24,6 +24,12 @@ import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import kodkod.ast.BinaryExpression;
 import kodkod.ast.Decls;
@@ -48,9 +54,11 @@ import edu.mit.csail.sdg.alloy4.ConstList;
 import edu.mit.csail.sdg.alloy4.ConstMap;
 import edu.mit.csail.sdg.alloy4.Env;
 import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorAPI;
 import edu.mit.csail.sdg.alloy4.ErrorFatal;
 import edu.mit.csail.sdg.alloy4.ErrorSyntax;
 import edu.mit.csail.sdg.alloy4.ErrorType;
+import edu.mit.csail.sdg.alloy4.ErrorWarning;
 import edu.mit.csail.sdg.alloy4.Pair;
 import edu.mit.csail.sdg.alloy4.Pos;
 import edu.mit.csail.sdg.alloy4.Util;
@@ -73,6 +81,7 @@ import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
 import edu.mit.csail.sdg.alloy4compiler.ast.Type;
 import edu.mit.csail.sdg.alloy4compiler.ast.VisitReturn;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Options.SatSolver;
 
 /** Translate an Alloy AST into Kodkod AST then attempt to solve it using Kodkod. */
 
@@ -115,6 +124,21 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
     /** The maximum allowed loop unrolling and recursion. */
     private final int unrolls;
 
+    /** If frame!=null and this is nonnull, this is where we look up and remember the translation of each fact. */
+    private final FactCache.Entry facts;
+
+    /** If nonnull, we are translating a fact for the fact cache, and every k2pos() and kv2typepos() association is appended here. */
+    private List<Object> log = null;
+
+    /** If log!=null, this is set to false if the current translation depends on something other than the relations that the fact cache shares. */
+    private boolean reusable = true;
+
+    /** If log!=null, this is set to true if the current translation named a skolem variable after the command label. */
+    private boolean labelled = false;
+
+    /** If frame!=null and this is nonnull, every fact is hash-consed with this before it is added to the frame. */
+    private final Interner interner;
+
     /** Construct a translator based on the given list of sigs and the given command.
      * @param rep - if nonnull, it's the reporter that will receive diagnostics and progress reports
      * @param opt - the solving options (must not be null)
@@ -132,7 +156,11 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
         this.max = pair.a.max();
         this.a2k = null;
         this.s2k = null;
+        this.interner = opt.hashCons ? new Interner() : null;
+        FactCache.Entry facts = FactCache.get(sigs, pair.b, frame);
+        frame.pool(facts.pool());
         BoundsComputer.compute(rep, frame, pair.b, sigs);
+        this.facts = facts.claim(frame.unpool()) ? facts : null;
     }
 
     /** Construct a translator based on a already-fully-constructed association map.
@@ -152,11 +180,16 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
         this.min = Util.min(bitwidth);
         this.a2k = ConstMap.make(a2k);
         this.s2k = ConstMap.make(s2k);
+        this.facts = null;
+        this.interner = null;
     }
 
     /** Associate the given formula with the given expression, then return the formula as-is. */
     private Formula k2pos(Formula f, Expr e) throws Err {
-        if (k2pos_enabled) if (frame!=null) frame.k2pos(f, e);
+        if (k2pos_enabled) if (frame!=null) {
+            frame.k2pos(f, e);
+            if (log!=null) { log.add(f); log.add(e); }
+        }
         return f;
     }
     private boolean k2pos_enabled = true;
@@ -171,13 +204,49 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
     private Expression a2k(ExprVar x) throws Err { if (a2k!=null) return a2k.get(x); else return frame.a2k(x); }
 
     /** Returns the expression corresponding to the given string literal. */
-    private Expression s2k(String x) throws Err { if (s2k!=null) return s2k.get(x); else return frame.a2k(x); }
+    private Expression s2k(String x) throws Err { if (s2k!=null) return s2k.get(x); reusable=false; return frame.a2k(x); }
 
     //==============================================================================================================//
 
     /** Stores the list of "totalOrder predicates" that we constructed. */
     private final List<Relation> totalOrderPredicates = new ArrayList<Relation>();
 
+    /** If hash-consing is enabled, returns the hash-consed version of the given formula
+     * (and associates each node that replaces a formula node with the Expr or Pos of the node it replaced); otherwise returns the formula as-is.
+     */
+    private Formula intern(Formula f) throws Err {
+        if (interner==null) return f;
+        List<Formula> replaced = new ArrayList<Formula>();
+        f = interner.intern(f, replaced);
+        for(int i=0; i<replaced.size(); i=i+2) {
+            Object pos = frame.k2pos(replaced.get(i));
+            if (pos==null) continue;
+            Formula to = replaced.get(i+1);
+            if (pos instanceof Expr) frame.k2pos(to, (Expr)pos); else frame.k2pos(to, (Pos)pos);
+            if (log!=null) { log.add(to); log.add(pos); }
+        }
+        return f;
+    }
+
+    /** Returns the translation of the given fact, reusing (and replaying the associations of) the one in the fact cache if possible.
+     * @param key - the key for this fact in the fact cache (it must identify the constraint regardless of which command is being translated)
+     */
+    private Formula cfact(Object key, Expr x) throws Err {
+        if (facts==null) return intern(cform(x));
+        FactCache.Item item = facts.get(key, cmd.label);
+        if (item!=null) return intern(item.replay(frame));
+        log = new ArrayList<Object>();
+        reusable = true;
+        labelled = false;
+        try {
+            Formula ans = intern(cform(x));
+            if (reusable) facts.put(key, ans, labelled ? cmd.label : null, log);
+            return ans;
+        } finally {
+            log = null;
+        }
+    }
+
    /** Conjoin the constraints for "field declarations" and "fact" paragraphs */
    private void makeFacts(Expr facts) throws Err {
       rep.debug("Generating facts...\n");
@@ -185,13 +254,14 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
       facts = (Expr) (new ConvToConjunction()).visitThis(facts);
       // add the field facts and appended facts
       for(Sig s: frame.getAllReachableSigs()) {
+         frame.checkCancelled();
          for(Decl d: s.getFieldDecls()) {
             k2pos_enabled = false;
             for(ExprHasName n: d.names) {
                Field f = (Field)n;
                Expr form = s.decl.get().join(f).in(d.expr);
                form = s.isOne==null ? form.forAll(s.decl) : ExprLet.make(null, (ExprVar)(s.decl.get()), s, form);
-               frame.addFormula(cform(form), f);
+               frame.addFormula(cfact(f, form), f);
                // Given the above, we can be sure that every column is well-bounded (except possibly the first column).
                // Thus, we need to add a bound that the first column is a subset of s.
                if (s.isOne==null) {
@@ -203,14 +273,15 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
             if (s.isOne==null && d.disjoint2!=null) for(ExprHasName f: d.names) {
                Decl that = s.oneOf("that");
                Expr formula = s.decl.get().equal(that.get()).not().implies(s.decl.get().join(f).intersect(that.get().join(f)).no());
-               frame.addFormula(cform(formula.forAll(that).forAll(s.decl)), d.disjoint2);
+               frame.addFormula(cfact(new Pair<Decl,ExprHasName>(d, f), formula.forAll(that).forAll(s.decl)), d.disjoint2);
             }
-            if (d.names.size()>1 && d.disjoint!=null) {  frame.addFormula(cform(ExprList.makeDISJOINT(d.disjoint, null, d.names)), d.disjoint);  }
+            if (d.names.size()>1 && d.disjoint!=null) {  frame.addFormula(cfact(d, ExprList.makeDISJOINT(d.disjoint, null, d.names)), d.disjoint);  }
          }
          k2pos_enabled = true;
          for(Expr f: s.getFacts()) {
+            frame.checkCancelled();
             Expr form = s.isOne==null ? f.forAll(s.decl) : ExprLet.make(null, (ExprVar)(s.decl.get()), s, f);
-            frame.addFormula(cform(form), f);
+            frame.addFormula(cfact(new Pair<Sig,Expr>(s, f), form), f);
          }
       }
       k2pos_enabled = true;
@@ -222,7 +293,8 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
         if (x instanceof ExprList && ((ExprList)x).op==ExprList.Op.AND) {
             for(Expr e: ((ExprList)x).args) recursiveAddFormula(e);
         } else {
-            frame.addFormula(cform(x), x);
+            frame.checkCancelled();
+            frame.addFormula(cfact(x, x), x);
         }
     }
 
@@ -314,6 +386,13 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
         // FIXTHIS: does solution enumeration still work when we're doing a greedy solve?
         TranslateAlloyToKodkod tr = null;
         try {
+            // If possible, translate the command once at its largest scope, then solve every step using one incremental SAT solver
+            ScopeSweep sweep = ScopeSweep.make(opt, sigs, usercommand);
+            if (sweep!=null) {
+                tr = new TranslateAlloyToKodkod(rep, opt, sigs, sweep.last());
+                if (sweep.countable(tr.frame)) { tr.makeFacts(sweep.last().formula); return sweep.solve(rep, tr.frame); }
+                tr = null;
+            }
             long start = System.currentTimeMillis();
             GreedySimulator sim = new GreedySimulator();
             sim.allSigs = sigs;
@@ -366,6 +445,83 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
         }
     }
 
+    /** This exception is thrown by the reporter of an escalation when a step's CNF has more clauses than A4Options.escalationClauses. */
+    private static final class OverBudget extends RuntimeException {
+        /** This ensures the class can be serialized reliably. */
+        private static final long serialVersionUID = 0;
+        /** This constructs a new OverBudget exception. */
+        OverBudget() { super("The CNF has more clauses than the escalation budget."); }
+    }
+
+    /** Returns true if the given command should be solved with escalating scopes (see A4Options.escalation). */
+    private static boolean escalating(Command cmd, A4Options opt) {
+        return opt.escalation>0 && cmd.parent==null && cmd.getGrowableSigs().isEmpty() && !opt.solver.equals(SatSolver.CNF) && !opt.solver.equals(SatSolver.KK);
+    }
+
+    /** Solve the given command with escalating scopes (see A4Options.escalation), and return the result of the last step that finished.
+     * <p> For a "check", consecutive steps that differ only in the number of atoms of some inexact sigs are solved using ScopeSweep,
+     * so they share one translation and one incremental SAT solver (if the CNF of the largest of them is over the budget,
+     * then the remaining steps are solved one by one instead, since the smaller ones may still fit).
+     */
+    private static A4Solution execute_escalatingCommand(A4Reporter rep, Iterable<Sig> sigs, Command cmd, A4Options opt, boolean tryBookExamples) throws Exception {
+        final long start = System.currentTimeMillis();
+        final int budget = opt.escalationClauses;
+        final A4Options opt2 = opt.dup();
+        if (opt.escalationTime>0) opt2.deadline = (opt.deadline>0) ? Math.min(opt.deadline, start+opt.escalationTime) : start+opt.escalationTime;
+        // Form the list of steps
+        List<Command> steps = new ArrayList<Command>();
+        steps.add(cmd);
+        for(int i=0; i<opt.escalation; i++) steps.add(cmd = ScopeComputer.escalate(sigs, cmd));
+        // This reporter remembers the last step that finished, and enforces the CNF size budget
+        final Object[] last = new Object[2];
+        A4Reporter rep2 = new A4Reporter(rep) {
+            @Override public void solve(int primaryVars, int totalVars, int clauses) { if (budget>0 && clauses>budget) throw new OverBudget(); super.solve(primaryVars, totalVars, clauses); }
+            @Override public void resultSAT(Object command, long solvingTime, Object solution) { }
+            @Override public void resultUNSAT(Object command, long solvingTime, Object solution) { }
+            @Override public void step(Object command, long solvingTime, Object solution) { last[0]=command; last[1]=solution; super.step(command, solvingTime, solution); }
+        };
+        try {
+            boolean sweeping = cmd.check;
+            for(int i=0; i<steps.size();) {
+                int j = steps.size();
+                ScopeSweep sweep = null;
+                if (sweeping) while(j>i+1 && (sweep = ScopeSweep.make(opt2, sigs, steps.subList(i, j)))==null) j--;
+                if (sweep!=null) {
+                    try {
+                        TranslateAlloyToKodkod tr = new TranslateAlloyToKodkod(rep2, opt2, sigs, sweep.last());
+                        if (sweep.countable(tr.frame)) {
+                            tr.makeFacts(sweep.last().formula);
+                            if (sweep.solve(rep2, tr.frame).satisfiable()) break;
+                            i = j;
+                            continue;
+                        }
+                    } catch(OverBudget ex) {
+                        rep.debug("The CNF for "+sweep.last()+" is over the budget, so the remaining steps are solved one by one.\n");
+                        sweeping = false;
+                    }
+                }
+                long time = System.currentTimeMillis();
+                Command step = steps.get(i);
+                TranslateAlloyToKodkod tr = new TranslateAlloyToKodkod(rep2, opt2, sigs, step);
+                tr.makeFacts(step.formula);
+                A4Solution sol = tr.frame.solve(rep2, step, new Simplifier(), tryBookExamples);
+                if (sol.isUnknown()) throw new A4Cancellation.Cancelled();
+                rep2.step(step, System.currentTimeMillis()-time, sol);
+                if (sol.satisfiable()) break;
+                i++;
+            }
+        } catch(OverBudget ex) {
+            rep.debug("The escalation has reached its CNF size budget.\n");
+        } catch(A4Cancellation.Cancelled ex) {
+            A4Cancellation.check(opt); // If the command itself was cancelled or has reached its deadline, then we give up
+            rep.debug("The escalation has reached its time budget.\n");
+        }
+        if (last[0]==null) throw new A4Cancellation.Cancelled(); // If no step has finished, then the result is unknown
+        A4Solution sol = (A4Solution) (last[1]);
+        if (sol.satisfiable()) rep.resultSAT(last[0], System.currentTimeMillis()-start, sol); else rep.resultUNSAT(last[0], System.currentTimeMillis()-start, sol);
+        return sol;
+    }
+
     /** Based on the specified "options", execute one command and return the resulting A4Solution object.
      *
      * @param rep - if nonnull, we'll send compilation diagnostic messages to it
@@ -374,28 +530,13 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
      * @param opt - the set of options guiding the execution of the command
      *
      * @return null if the user chose "save to FILE" as the SAT solver,
-     * and nonnull if the solver finishes the entire solving and is either satisfiable or unsatisfiable.
+     * and nonnull if the solver finishes the entire solving and is either satisfiable or unsatisfiable
+     * (or if the solving was cancelled or reached the deadline in "opt", in which case the return value's isUnknown() is true).
      * <p> If the return value X is satisfiable, you can call X.next() to get the next satisfying solution X2;
      * and you can call X2.next() to get the next satisfying solution X3... until you get an unsatisfying solution.
      */
     public static A4Solution execute_command (A4Reporter rep, Iterable<Sig> sigs, Command cmd, A4Options opt) throws Err {
-        if (rep==null) rep = A4Reporter.NOP;
-        TranslateAlloyToKodkod tr = null;
-        try {
-            if (cmd.parent!=null || !cmd.getGrowableSigs().isEmpty()) return execute_greedyCommand(rep, sigs, cmd, opt);
-            tr = new TranslateAlloyToKodkod(rep, opt, sigs, cmd);
-            tr.makeFacts(cmd.formula);
-            return tr.frame.solve(rep, cmd, new Simplifier(), false);
-        } catch(UnsatisfiedLinkError ex) {
-            throw new ErrorFatal("The required JNI library cannot be found: "+ex.toString().trim(), ex);
-        } catch(CapacityExceededException ex) {
-            throw rethrow(ex);
-        } catch(HigherOrderDeclException ex) {
-            Pos p = tr!=null ? tr.frame.kv2typepos(ex.decl().variable()).b : Pos.UNKNOWN;
-            throw new ErrorType(p, "Analysis cannot be performed since it requires higher-order quantification that could not be skolemized.");
-        } catch(Throwable ex) {
-            if (ex instanceof Err) throw (Err)ex; else throw new ErrorFatal("Unknown exception occurred: "+ex, ex);
-        }
+        return execute_command(rep, sigs, cmd, opt, false, null);
     }
 
     /** Based on the specified "options", execute one command and return the resulting A4Solution object.
@@ -409,18 +550,28 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
      * @param opt - the set of options guiding the execution of the command
      *
      * @return null if the user chose "save to FILE" as the SAT solver,
-     * and nonnull if the solver finishes the entire solving and is either satisfiable or unsatisfiable.
+     * and nonnull if the solver finishes the entire solving and is either satisfiable or unsatisfiable
+     * (or if the solving was cancelled or reached the deadline in "opt", in which case the return value's isUnknown() is true).
      * <p> If the return value X is satisfiable, you can call X.next() to get the next satisfying solution X2;
      * and you can call X2.next() to get the next satisfying solution X3... until you get an unsatisfying solution.
      */
     public static A4Solution execute_commandFromBook (A4Reporter rep, Iterable<Sig> sigs, Command cmd, A4Options opt) throws Err {
+        return execute_command(rep, sigs, cmd, opt, true, null);
+    }
+
+    /** Helper method that executes one command (if tr!=null, it must be the translation of that command made by prefetch()). */
+    static A4Solution execute_command (A4Reporter rep, Iterable<Sig> sigs, Command cmd, A4Options opt, boolean tryBookExamples, TranslateAlloyToKodkod tr) throws Err {
         if (rep==null) rep = A4Reporter.NOP;
-        TranslateAlloyToKodkod tr = null;
         try {
-            if (cmd.parent!=null || !cmd.getGrowableSigs().isEmpty()) return execute_greedyCommand(rep, sigs, cmd, opt);
-            tr = new TranslateAlloyToKodkod(rep, opt, sigs, cmd);
-            tr.makeFacts(cmd.formula);
-            return tr.frame.solve(rep, cmd, new Simplifier(), true);
+            if (tr==null) {
+                if (escalating(cmd, opt)) return execute_escalatingCommand(rep, sigs, cmd, opt, tryBookExamples);
+                if (cmd.parent!=null || !cmd.getGrowableSigs().isEmpty()) return execute_greedyCommand(rep, sigs, cmd, opt);
+                tr = new TranslateAlloyToKodkod(rep, opt, sigs, cmd);
+                tr.makeFacts(cmd.formula);
+            }
+            return tr.frame.solve(rep, cmd, new Simplifier(), tryBookExamples);
+        } catch(A4Cancellation.Cancelled ex) {
+            return unknown(rep, tr, cmd, opt);
         } catch(UnsatisfiedLinkError ex) {
             throw new ErrorFatal("The required JNI library cannot be found: "+ex.toString().trim(), ex);
         } catch(CapacityExceededException ex) {
@@ -433,6 +584,172 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
         }
     }
 
+    /** Translate the given command ahead of time, sending the messages to the given reporter, so that execute_command() only has to solve it;
+     * returns null if the command has to be translated by execute_command() itself (because it is solved in several steps,
+     * or because the solver keeps the reporter it is constructed with).
+     */
+    static TranslateAlloyToKodkod prefetch (A4Reporter rep, Iterable<Sig> sigs, Command cmd, A4Options opt, boolean tryBookExamples) throws Err {
+        if (escalating(cmd, opt) || cmd.parent!=null || !cmd.getGrowableSigs().isEmpty() || opt.solver.equals(SatSolver.Portfolio)) return null;
+        TranslateAlloyToKodkod tr = new TranslateAlloyToKodkod(rep, opt, sigs, cmd);
+        tr.makeFacts(cmd.formula);
+        tr.frame.prepare(rep, cmd, new Simplifier(), tryBookExamples);
+        return tr;
+    }
+
+    /** Helper method that returns an unknown solution for the given command, after its solving was cancelled or reached its deadline. */
+    private static A4Solution unknown(A4Reporter rep, TranslateAlloyToKodkod tr, Command cmd, A4Options opt) throws Err {
+        rep.debug("The solving was cancelled or has reached its deadline.\n");
+        if (tr!=null) return tr.frame; // Since the frame was not solved, it is unknown
+        return new A4Solution(cmd.toString(), 0, 0, new HashSet<String>(), new ArrayList<String>(), rep, opt, cmd.expects);
+    }
+
+    /** This reporter records every message it receives, so that they can be replayed later into another reporter. */
+    static final class BufferedReporter extends A4Reporter {
+        /** The list of recorded messages; each message is the method name followed by its arguments. */
+        private final List<Object[]> messages = new ArrayList<Object[]>();
+        /** Record one message. */
+        private void add(Object... msg) { messages.add(msg); }
+        /** Replay every recorded message into the given reporter, in the order they were received. */
+        void replay(A4Reporter rep) {
+            for(Object[] m: messages) {
+                Object x = m[0];
+                if (x.equals("debug")) rep.debug((String)(m[1]));
+                else if (x.equals("parse")) rep.parse((String)(m[1]));
+                else if (x.equals("typecheck")) rep.typecheck((String)(m[1]));
+                else if (x.equals("warning")) rep.warning((ErrorWarning)(m[1]));
+                else if (x.equals("scope")) rep.scope((String)(m[1]));
+                else if (x.equals("bound")) rep.bound((String)(m[1]));
+                else if (x.equals("translate")) rep.translate((String)(m[1]), (Integer)(m[2]), (Integer)(m[3]), (Integer)(m[4]), (Integer)(m[5]));
+                else if (x.equals("solve")) rep.solve((Integer)(m[1]), (Integer)(m[2]), (Integer)(m[3]));
+                else if (x.equals("resultCNF")) rep.resultCNF((String)(m[1]));
+                else if (x.equals("resultSAT")) rep.resultSAT(m[1], (Long)(m[2]), m[3]);
+                else if (x.equals("minimizing")) rep.minimizing(m[1], (Integer)(m[2]));
+                else if (x.equals("minimized")) rep.minimized(m[1], (Integer)(m[2]), (Integer)(m[3]));
+                else if (x.equals("resultUNSAT")) rep.resultUNSAT(m[1], (Long)(m[2]), m[3]);
+                else if (x.equals("step")) rep.step(m[1], (Long)(m[2]), m[3]);
+                else if (x.equals("enumerated")) rep.enumerated(m[1], (Integer)(m[2]), (Long)(m[3]));
+                else if (x.equals("write")) rep.write(m[1]);
+            }
+            messages.clear();
+        }
+        @Override public void debug(String msg) { add("debug", msg); }
+        @Override public void parse(String msg) { add("parse", msg); }
+        @Override public void typecheck(String msg) { add("typecheck", msg); }
+        @Override public void warning(ErrorWarning msg) { add("warning", msg); }
+        @Override public void scope(String msg) { add("scope", msg); }
+        @Override public void bound(String msg) { add("bound", msg); }
+        @Override public void translate(String solver, int bitwidth, int maxseq, int skolemDepth, int symmetry) { add("translate", solver, bitwidth, maxseq, skolemDepth, symmetry); }
+        @Override public void solve(int primaryVars, int totalVars, int clauses) { add("solve", primaryVars, totalVars, clauses); }
+        @Override public void resultCNF(String filename) { add("resultCNF", filename); }
+        @Override public void resultSAT(Object command, long solvingTime, Object solution) { add("resultSAT", command, solvingTime, solution); }
+        @Override public void minimizing(Object command, int before) { add("minimizing", command, before); }
+        @Override public void minimized(Object command, int before, int after) { add("minimized", command, before, after); }
+        @Override public void resultUNSAT(Object command, long solvingTime, Object solution) { add("resultUNSAT", command, solvingTime, solution); }
+        @Override public void step(Object command, long solvingTime, Object solution) { add("step", command, solvingTime, solution); }
+        @Override public void enumerated(Object command, int count, long time) { add("enumerated", command, count, time); }
+        @Override public void write(Object expr) { add("write", expr); }
+    }
+
+    /** Based on the specified "options", execute every command in "cmds" using a pool of at most "threads" worker threads,
+     * and return the resulting A4Solution objects in the same order as "cmds".
+     *
+     * <p> The messages generated by each command are buffered, then forwarded to "rep" as soon as that command
+     * and every command before it have finished; thus "rep" receives the messages of one command after another,
+     * in the same order as a sequential execution, and "rep" is only ever called from the calling thread.
+     *
+     * @param rep - if nonnull, we'll send compilation diagnostic messages to it
+     * @param sigs - the list of sigs; this list must be complete
+     * @param cmds - the list of Commands to execute
+     * @param opt - the set of options guiding the execution of the commands
+     * @param threads - the maximum number of commands to translate and solve at the same time (0 means one per available processor)
+     *
+     * @return a list of the same size as "cmds", where the i-th entry is the result of calling execute_command() on the i-th command
+     * @throws Err if any command failed; if several commands failed, the error of the earliest such command is thrown
+     */
+    public static List<A4Solution> execute_commands (A4Reporter rep, Iterable<Sig> sigs, List<Command> cmds, A4Options opt, int threads) throws Err {
+        final A4Reporter out = (rep==null) ? A4Reporter.NOP : rep;
+        final List<BufferedReporter> buffers = new ArrayList<BufferedReporter>(cmds.size());
+        final List<Runnable> replays = new ArrayList<Runnable>(cmds.size());
+        for(int i=0; i<cmds.size(); i++) {
+            final BufferedReporter buffer = new BufferedReporter();
+            buffers.add(buffer);
+            replays.add(new Runnable() { public void run() { buffer.replay(out); } });
+        }
+        return execute_commands(buffers, sigs, cmds, opt, threads, false, replays);
+    }
+
+    /** Based on the specified "options", execute every command in "cmds" using a pool of at most "threads" worker threads,
+     * and return the resulting A4Solution objects in the same order as "cmds".
+     *
+     * <p> The i-th command sends its messages to the i-th reporter directly from the worker thread that executes it;
+     * no two commands share a reporter, so each reporter only needs to be safe for use by one thread at a time.
+     *
+     * @param reps - the list of reporters (one for each command; each entry can be null)
+     * @param sigs - the list of sigs; this list must be complete
+     * @param cmds - the list of Commands to execute
+     * @param opt - the set of options guiding the execution of the commands
+     * @param threads - the maximum number of commands to translate and solve at the same time (0 means one per available processor)
+     * @param tryBookExamples - if true, we behave like execute_commandFromBook(), else we behave like execute_command()
+     *
+     * @return a list of the same size as "cmds", where the i-th entry is the result of executing the i-th command
+     * @throws Err if any command failed; if several commands failed, the error of the earliest such command is thrown
+     */
+    public static List<A4Solution> execute_commands (List<? extends A4Reporter> reps, Iterable<Sig> sigs, List<Command> cmds, A4Options opt, int threads, boolean tryBookExamples) throws Err {
+        return execute_commands(reps, sigs, cmds, opt, threads, tryBookExamples, null);
+    }
+
+    /** Based on the specified "options", execute every command in "cmds" using a pool of at most "threads" worker threads,
+     * and return the resulting A4Solution objects in the same order as "cmds".
+     *
+     * <p> This is the same as the method above, except that the calling thread also runs finished.get(i)
+     * as soon as the i-th command and every command before it have finished (even if the i-th command failed);
+     * so a caller that buffers the messages of each command can send them out in command order while the later commands are still running.
+     *
+     * @param finished - if nonnull, the list of hooks to run in command order (one for each command; each entry can be null)
+     */
+    public static List<A4Solution> execute_commands (List<? extends A4Reporter> reps, final Iterable<Sig> sigs, List<Command> cmds, final A4Options opt, int threads, final boolean tryBookExamples, List<? extends Runnable> finished) throws Err {
+        if (reps.size()!=cmds.size()) throw new ErrorAPI("The number of reporters must match the number of commands.");
+        if (finished!=null && finished.size()!=cmds.size()) throw new ErrorAPI("The number of hooks must match the number of commands.");
+        final int n = cmds.size();
+        final List<A4Solution> ans = new ArrayList<A4Solution>(n);
+        if (n==0) return ans;
+        if (threads<=0) threads = Runtime.getRuntime().availableProcessors();
+        if (threads>n) threads = n;
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) { Thread t = new Thread(r, "Alloy command runner"); t.setDaemon(true); return t; }
+        });
+        List<Future<A4Solution>> futures = new ArrayList<Future<A4Solution>>(n);
+        try {
+            for(int i=0; i<n; i++) {
+                final A4Reporter rep = reps.get(i);
+                final Command cmd = cmds.get(i);
+                futures.add(pool.submit(new Callable<A4Solution>() {
+                    public A4Solution call() throws Err {
+                        return tryBookExamples ? execute_commandFromBook(rep, sigs, cmd, opt) : execute_command(rep, sigs, cmd, opt);
+                    }
+                }));
+            }
+            for(int i=0; i<n; i++) {
+                A4Solution sol;
+                try {
+                    sol = futures.get(i).get();
+                } catch(ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (finished!=null && finished.get(i)!=null) finished.get(i).run();
+                    if (cause instanceof Err) throw (Err)cause; else throw new ErrorFatal("Unknown exception occurred: "+cause, cause);
+                } catch(InterruptedException ex) {
+                    throw new ErrorFatal("The execution of the commands was interrupted.", ex);
+                }
+                if (finished!=null && finished.get(i)!=null) finished.get(i).run();
+                ans.add(sol);
+            }
+            return ans;
+        } finally {
+            for(Future<A4Solution> f: futures) f.cancel(true);
+            pool.shutdownNow();
+        }
+    }
+
     /** Translate the Alloy expression into an equivalent Kodkod Expression or IntExpression or Formula object.
      * @param sol - an existing satisfiable A4Solution object
      * @param expr - this is the Alloy expression we want to translate
@@ -519,7 +836,7 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
      */
     private String skolem(String name) {
         if (current_function.size()==0) {
-            if (cmd!=null && cmd.label.length()>0 && cmd.label.indexOf('$')<0) return cmd.label+"_"+name; else return name;
+            if (cmd!=null && cmd.label.length()>0 && cmd.label.indexOf('$')<0) { labelled=true; return cmd.label+"_"+name; } else return name;
         }
         Func last=current_function.get(current_function.size()-1);
         String funcname=tail(last.label);
@@ -529,7 +846,7 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
     //==============================================================================================================//
 
     /** If x = SOMETHING->RELATION where SOMETHING.arity==1, then return the RELATION, else return null. */
-    private static Relation right(Expression x) {
+    static Relation right(Expression x) {
         if (!(x instanceof BinaryExpression)) return null;
         BinaryExpression bin = (BinaryExpression)x;
         if (bin.op() != ExprOperator.PRODUCT) return null;
@@ -736,6 +1053,7 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
             Expression elem = cset(x.args.get(0)), first = cset(x.args.get(1)), next = cset(x.args.get(2));
             if (elem instanceof Relation && first instanceof Relation && next instanceof Relation) {
                 Relation lst = frame.addRel("", null, frame.query(true, (Relation)elem, false));
+                reusable = false;
                 totalOrderPredicates.add((Relation)elem); totalOrderPredicates.add((Relation)first); totalOrderPredicates.add(lst); totalOrderPredicates.add((Relation)next);
                 return k2pos(((Relation)next).totalOrder((Relation)elem, (Relation)first, lst), x);
             }
@@ -1017,6 +1335,7 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
               default: newd = v.oneOf(dv);
            }
            if (frame!=null) frame.kv2typepos(v, dex.type(), dex.pos);
+           if (log!=null) { log.add(v); log.add(dex.type()); log.add(dex.pos); }
            if (dd==null) dd = newd; else dd = dd.and(newd);
         }
       }
@@ -0,0 +1,575 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.translator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import kodkod.ast.Formula;
+import kodkod.ast.Relation;
+import kodkod.engine.config.Options;
+import kodkod.engine.fol2sat.Translation;
+import kodkod.engine.fol2sat.Translator;
+import kodkod.engine.satlab.SATFactory;
+import kodkod.engine.satlab.SATSolver;
+import kodkod.instance.Bounds;
+import kodkod.instance.Instance;
+import kodkod.instance.TupleFactory;
+import kodkod.instance.TupleSet;
+import kodkod.instance.Universe;
+import kodkod.util.ints.IndexedEntry;
+import kodkod.util.ints.IntIterator;
+import kodkod.util.ints.IntSet;
+import kodkod.util.ints.Ints;
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.Pos;
+import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4compiler.ast.Command;
+import edu.mit.csail.sdg.alloy4compiler.ast.CommandScope;
+import edu.mit.csail.sdg.alloy4compiler.ast.Decl;
+import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprBinary;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprCall;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprConstant;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprHasName;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprITE;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprLet;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprList;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprQt;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprUnary;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprVar;
+import edu.mit.csail.sdg.alloy4compiler.ast.Func;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig.PrimSig;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig.SubsetSig;
+import edu.mit.csail.sdg.alloy4compiler.ast.Type;
+import edu.mit.csail.sdg.alloy4compiler.ast.VisitQuery;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Options.SatSolver;
+
+/** This stores the Kodkod translation of a command on disk, so that running the same command again can skip the translation.
+ *
+ * <p> Each entry is keyed by a SHA-1 digest of the sigs, the command (including every predicate, function and fact it reaches)
+ * and every option that affects the translation; it records the CNF, the number of primary variables, and the lower bound,
+ * upper bound, and first primary variable of every relation (including the skolem relations and their Alloy types).
+ *
+ * <p> Damaged or stale entries are simply ignored, and failing to write an entry is never an error.
+ */
+
+final class TranslationCache {
+
+    /** The magic number at the start of every cache entry (this must change whenever the format changes). */
+    private static final int MAGIC = 0x41344331;
+
+    /** This class cannot be instantiated. */
+    private TranslationCache() { }
+
+    //===================================================================================================//
+
+    /** Returns the cache entry file for the given command, or null if the command should not be cached.
+     * <p> Commands are not cached if opt.cacheDirectory is empty, if the solver writes its input to a file or computes unsat cores,
+     * or if we are asked to try the book examples first.
+     * <p> Chained commands and commands with growable sigs are not cached either, since each step is bounded by the
+     * solution of the step before it, which is not part of the digest.
+     */
+    static File file(Iterable<Sig> sigs, Command cmd, A4Options opt, boolean tryBookExamples) {
+        if (cmd==null || tryBookExamples || opt.cacheDirectory==null || opt.cacheDirectory.length()==0) return null;
+        if (cmd.parent!=null || !cmd.getGrowableSigs().isEmpty()) return null;
+        if (opt.solver.equals(SatSolver.CNF) || opt.solver.equals(SatSolver.KK) || opt.solver.equals(SatSolver.MiniSatProverJNI)) return null;
+        try {
+            Digest d = new Digest();
+            d.add(MAGIC);
+            d.add(opt.solver.id()); d.add(opt.symmetry); d.add(opt.skolemDepth); d.add(opt.unrolls);
+            d.add(opt.noOverflow ? 1 : 0); d.add(opt.inferPartialInstance ? 1 : 0);
+            if (opt.hashCons) d.add("hashCons"); // (added only when enabled, so that existing entries remain valid)
+            d.add(cmd.check ? 1 : 0); d.add(cmd.overall); d.add(cmd.bitwidth); d.add(cmd.maxseq); d.add(cmd.maxstring); d.add(cmd.expects);
+            for(CommandScope s: cmd.scope) {
+                d.add("scope"); d.add(s.sig.label); d.add(s.isExact ? 1 : 0); d.add(s.startingScope); d.add(s.endingScope); d.add(s.increment);
+            }
+            for(Sig s: cmd.additionalExactScopes) { d.add("exact"); d.add(s.label); }
+            for(Sig s: sigs) d.add(s);
+            d.add("formula");
+            d.add(cmd.formula);
+            return new File(opt.cacheDirectory, d.hex() + ".a4c");
+        } catch(Throwable ex) {
+            return null; // If we cannot compute the digest for any reason, we simply don't cache this command
+        }
+    }
+
+    /** This computes the SHA-1 digest of sigs, expressions, and every predicate and function they call. */
+    private static final class Digest extends VisitQuery<Object> {
+        /** The digest. */
+        private final MessageDigest md;
+        /** This assigns a number to every predicate and function, in the order we first encounter them. */
+        private final Map<Func,Integer> funs = new IdentityHashMap<Func,Integer>();
+        /** Constructs an empty digest. */
+        private Digest() throws Exception { md = MessageDigest.getInstance("SHA-1"); }
+        /** Adds an integer. */
+        private void add(int x) { md.update((byte)(x>>24)); md.update((byte)(x>>16)); md.update((byte)(x>>8)); md.update((byte)x); }
+        /** Adds a string (null is allowed). */
+        private void add(String x) throws Exception {
+            if (x==null) { add(-1); return; }
+            byte[] bytes = x.getBytes("UTF-8");
+            add(bytes.length);
+            md.update(bytes);
+        }
+        /** Adds a flag that says whether the given attribute is present. */
+        private void add(Pos x) { add(x!=null ? 1 : 0); }
+        /** Adds an expression (null is allowed). */
+        private void add(Expr x) throws Exception {
+            if (x==null) add("null"); else x.accept(this);
+        }
+        /** Adds a declaration. */
+        private void add(Decl x) throws Exception {
+            add("decl"); add(x.isPrivate); add(x.disjoint); add(x.disjoint2); add(x.names.size());
+            for(ExprHasName n: x.names) add(n.label);
+            add(x.expr);
+        }
+        /** Adds the declaration of a sig, together with its fields and its appended facts. */
+        private void add(Sig x) throws Exception {
+            add("sig"); add(x.label); add(x.builtin ? 1 : 0);
+            add(x.isAbstract); add(x.isLone); add(x.isOne); add(x.isSome); add(x.isPrivate); add(x.isMeta); add(x.isEnum);
+            if (x instanceof PrimSig) { add("extends"); add(((PrimSig)x).parent==null ? null : ((PrimSig)x).parent.label); }
+            if (x instanceof SubsetSig) {
+                add("in"); add(((SubsetSig)x).exact ? 1 : 0);
+                for(Sig p: ((SubsetSig)x).parents) add(p.label);
+            }
+            for(Field f: x.getFields()) {
+                add("field"); add(f.label); add(f.isPrivate); add(f.isMeta); add(f.defined ? 1 : 0);
+                add(f.decl());
+            }
+            for(Expr f: x.getFacts()) { add("fact"); add(f); }
+            add("end");
+        }
+        /** Returns the digest as a hexadecimal string. */
+        private String hex() {
+            StringBuilder sb = new StringBuilder();
+            for(byte b: md.digest()) { sb.append(Character.forDigit((b>>4)&15, 16)).append(Character.forDigit(b&15, 16)); }
+            return sb.toString();
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprBinary x) throws Err {
+            try { add("binary"); add(x.op.toString()); add(x.left); add(x.right); return null; } catch(Exception ex) { throw fail(ex); }
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprList x) throws Err {
+            try { add("list"); add(x.op.toString()); add(x.args.size()); for(Expr y: x.args) add(y); return null; } catch(Exception ex) { throw fail(ex); }
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprCall x) throws Err {
+            try {
+                add("call"); add(x.fun.label);
+                Integer i = funs.get(x.fun);
+                if (i!=null) { add(i); } else {
+                    // The first time we see a predicate or function, we add its definition
+                    funs.put(x.fun, funs.size());
+                    add(-1); add(x.fun.isPred ? 1 : 0); add(x.fun.decls.size());
+                    for(Decl d: x.fun.decls) add(d);
+                    add(x.fun.returnDecl); add(x.fun.getBody());
+                }
+                add(x.args.size());
+                for(Expr y: x.args) add(y);
+                return null;
+            } catch(Exception ex) { throw fail(ex); }
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprConstant x) throws Err {
+            try { add("constant"); add(x.op.toString()); add(x.num); add(x.string); return null; } catch(Exception ex) { throw fail(ex); }
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprITE x) throws Err {
+            try { add("ite"); add(x.cond); add(x.left); add(x.right); return null; } catch(Exception ex) { throw fail(ex); }
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprLet x) throws Err {
+            try { add("let"); add(x.var.label); add(x.expr); add(x.sub); return null; } catch(Exception ex) { throw fail(ex); }
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprQt x) throws Err {
+            try { add("qt"); add(x.op.toString()); add(x.decls.size()); for(Decl d: x.decls) add(d); add(x.sub); return null; } catch(Exception ex) { throw fail(ex); }
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprUnary x) throws Err {
+            try { add("unary"); add(x.op.toString()); add(x.sub); return null; } catch(Exception ex) { throw fail(ex); }
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(ExprVar x) throws Err {
+            try { add("var"); add(x.label); return null; } catch(Exception ex) { throw fail(ex); }
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(Sig x) throws Err {
+            try { add("sigref"); add(x.label); return null; } catch(Exception ex) { throw fail(ex); }
+        }
+        /** {@inheritDoc} */
+        @Override public Object visit(Field x) throws Err {
+            try { add("fieldref"); add(x.sig.label); add(x.label); return null; } catch(Exception ex) { throw fail(ex); }
+        }
+        /** Wraps an unexpected exception. */
+        private static RuntimeException fail(Exception ex) {
+            return (ex instanceof RuntimeException) ? (RuntimeException)ex : new RuntimeException(ex);
+        }
+    }
+
+    //===================================================================================================//
+
+    /** This is a translated problem (either freshly translated, or loaded from the cache) that can be solved repeatedly. */
+    static final class Entry {
+        /** The SAT solver that contains the CNF. */
+        private final SATSolver cnf;
+        /** The number of primary variables (they are numbered 1..primaryVars). */
+        private final int primaryVars;
+        /** True if the SAT solver can accept more clauses after solve() has been called. */
+        private final boolean incremental;
+        /** The universe. */
+        private final Universe universe;
+        /** The exact bound of each integer. */
+        private final List<IndexedEntry<TupleSet>> ints = new ArrayList<IndexedEntry<TupleSet>>();
+        /** The relations. */
+        private final List<Relation> relations = new ArrayList<Relation>();
+        /** The lower bound of each relation. */
+        private final List<TupleSet> lowers = new ArrayList<TupleSet>();
+        /** The upper bound of each relation. */
+        private final List<TupleSet> uppers = new ArrayList<TupleSet>();
+        /** The first primary variable of each relation (0 if the relation has no primary variables). */
+        private final List<Integer> firsts = new ArrayList<Integer>();
+        /** If this entry was loaded from the cache, this maps each skolem relation to its Alloy type; otherwise this is empty. */
+        final Map<Relation,Type> skolems = new LinkedHashMap<Relation,Type>();
+        /** True if we have found the last solution. */
+        private boolean done = false;
+        /** The literals that every call to next() assumes to be true (see solve()). */
+        private int[] assumptions = new int[0];
+        /** If nonnull, this clause excludes the instance returned by solve(), and must be added before the next call to next()
+         * (an empty clause means that instance was the only one).
+         */
+        private int[] pending = null;
+        /** Constructs an entry with the given SAT solver and integer bounds; the caller must then add the relations. */
+        private Entry(SATSolver cnf, int primaryVars, boolean incremental, Bounds bounds) {
+            this.cnf = cnf;
+            this.primaryVars = primaryVars;
+            this.incremental = incremental;
+            this.universe = bounds.universe();
+            for(IndexedEntry<TupleSet> e: bounds.intBounds()) ints.add(e);
+        }
+        /** Adds a relation with the given bounds and first primary variable. */
+        private void add(Relation r, TupleSet lower, TupleSet upper, int first) {
+            relations.add(r); lowers.add(lower); uppers.add(upper); firsts.add(first);
+        }
+        /** Returns the number of primary variables. */
+        int primaryVariables() { return primaryVars; }
+        /** Returns the number of variables. */
+        int variables() { return cnf.numberOfVariables(); }
+        /** Returns the number of clauses. */
+        int clauses() { return cnf.numberOfClauses(); }
+        /** Returns the next instance, or null if there are no more instances.
+         * <p> Like Kodkod's solution enumeration, each instance found is excluded by adding a clause over the primary variables.
+         */
+        Instance next() {
+            if (done) return null;
+            if (pending!=null) {
+                if (pending.length==0) { done=true; return null; }
+                cnf.addClause(pending);
+                pending = null;
+            }
+            if (!sat()) { done=true; cnf.free(); return null; }
+            Instance inst = instance();
+            if (primaryVars==0 || !incremental) {
+                done = true;
+                cnf.free();
+            } else {
+                cnf.addClause(notModel());
+            }
+            return inst;
+        }
+        /** Returns an instance that makes every given literal true, or null if there is no such instance.
+         * <p> Unlike next(), this does not exclude the instance it finds, so it can be called again with different assumptions;
+         * but the following calls to next() will use the same assumptions, and will start from the instance after this one.
+         * <p> This requires the SAT solver to be a CancellableSAT4J.
+         */
+        Instance solve(int[] assumptions) {
+            if (done) return null;
+            this.assumptions = assumptions.clone();
+            pending = null;
+            if (!sat()) return null;
+            Instance inst = instance();
+            pending = (primaryVars==0) ? new int[0] : notModel();
+            return inst;
+        }
+        /** Solves the CNF under the current assumptions. */
+        private boolean sat() {
+            if (assumptions.length==0) return cnf.solve();
+            SATSolver solver = cnf;
+            if (solver instanceof Recorder) { ((Recorder)solver).buffer = null; solver = ((Recorder)solver).solver; }
+            return ((CancellableSAT4J)solver).solve(assumptions);
+        }
+        /** Returns the instance found by the latest successful call to the SAT solver. */
+        private Instance instance() {
+            Instance inst = new Instance(universe);
+            for(IndexedEntry<TupleSet> e: ints) inst.add(e.index(), e.value());
+            TupleFactory factory = universe.factory();
+            for(int i=0; i<relations.size(); i++) {
+                TupleSet lower = lowers.get(i);
+                IntSet indices = Ints.bestSet(lower.capacity());
+                indices.addAll(lower.indexView());
+                int lit = firsts.get(i);
+                if (lit>0) for(IntIterator it=uppers.get(i).indexView().iterator(); it.hasNext();) {
+                    int index = it.next();
+                    if (!indices.contains(index) && cnf.valueOf(lit++)) indices.add(index);
+                }
+                inst.add(relations.get(i), factory.setOf(lower.arity(), indices));
+            }
+            return inst;
+        }
+        /** Returns the clause that excludes the instance found by the latest successful call to the SAT solver. */
+        private int[] notModel() {
+            int[] notModel = new int[primaryVars];
+            for(int i=1; i<=primaryVars; i++) notModel[i-1] = cnf.valueOf(i) ? -i : i;
+            return notModel;
+        }
+        /** Returns the lower bound of the given relation, or null if the relation is not in this translation. */
+        TupleSet lower(Relation r) {
+            int i = relations.indexOf(r);
+            return i<0 ? null : lowers.get(i);
+        }
+        /** Returns the map from each tuple index that the given relation may (but does not have to) contain, to its primary variable
+         * (so the relation contains every tuple in its lower bound, and the tuples in this map whose variables are true).
+         */
+        Map<Integer,Integer> variables(Relation r) {
+            Map<Integer,Integer> ans = new LinkedHashMap<Integer,Integer>();
+            int i = relations.indexOf(r), lit = (i<0 ? 0 : firsts.get(i));
+            if (lit>0) for(IntIterator it=uppers.get(i).indexView().iterator(); it.hasNext();) {
+                int index = it.next();
+                if (!lowers.get(i).indexView().contains(index)) ans.put(index, lit++);
+            }
+            return ans;
+        }
+        /** Adds the given number of new variables, and returns the first one. */
+        int addVariables(int n) {
+            int first = cnf.numberOfVariables() + 1;
+            cnf.addVariables(n);
+            return first;
+        }
+        /** Adds a clause. */
+        void addClause(int... lits) { cnf.addClause(lits); }
+    }
+
+    //===================================================================================================//
+
+    /** Translates the given formula and bounds using Kodkod, while recording the CNF so that it can be written into the cache. */
+    static Entry translate(Formula formula, Bounds bounds, Options options) { return translate(formula, bounds, options, true); }
+
+    /** Translates the given formula and bounds using Kodkod (if record==true, the CNF is also recorded so that it can be written into the cache). */
+    static Entry translate(Formula formula, Bounds bounds, Options options, boolean record) {
+        final SATFactory old = options.solver();
+        Translation t;
+        if (!record) {
+            t = Translator.translate(formula, bounds, options);
+        } else {
+            options.setSolver(new SATFactory() {
+                /** {@inheritDoc} */
+                @Override public SATSolver instance() { return new Recorder(old.instance()); }
+                /** {@inheritDoc} */
+                @Override public boolean incremental() { return old.incremental(); }
+            });
+            try {
+                t = Translator.translate(formula, bounds, options);
+            } finally {
+                options.setSolver(old);
+            }
+        }
+        Entry ans = new Entry(t.cnf(), t.numPrimaryVariables(), old.incremental(), t.bounds());
+        for(Relation r: t.bounds().relations()) {
+            IntSet vars = t.primaryVariables(r);
+            ans.add(r, t.bounds().lowerBound(r), t.bounds().upperBound(r), vars.isEmpty() ? 0 : vars.min());
+        }
+        return ans;
+    }
+
+    /** Writes the given freshly translated entry into the cache (failures are reported as debug messages and otherwise ignored).
+     * @param frame - the list of relations in the original bounds (every other relation is a skolem)
+     * @param types - the known Alloy type of each relation
+     */
+    static void save(A4Reporter rep, File file, Entry entry, List<Relation> frame, Map<Relation,Type> types) {
+        if (!(entry.cnf instanceof Recorder)) return;
+        Recorder rec = (Recorder) (entry.cnf);
+        int[] buffer = rec.buffer;
+        rec.buffer = null; // From now on, clauses are no longer recorded
+        if (buffer==null) return;
+        File tmp = null;
+        DataOutputStream out = null;
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            dir.mkdirs();
+            tmp = File.createTempFile("tmp", ".a4c", dir);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(entry.universe.size());
+            out.writeInt(entry.primaryVars);
+            out.writeInt(rec.numberOfVariables());
+            out.writeInt(rec.size);
+            for(int i=0; i<rec.size; i++) out.writeInt(buffer[i]);
+            out.writeInt(entry.relations.size());
+            for(int i=0; i<entry.relations.size(); i++) {
+                Relation r = entry.relations.get(i);
+                out.writeInt(frame.indexOf(r));
+                out.writeUTF(r.name());
+                out.writeInt(r.arity());
+                write(out, entry.lowers.get(i));
+                write(out, entry.uppers.get(i));
+                out.writeInt(entry.firsts.get(i));
+                Type t = frame.contains(r) ? null : types.get(r);
+                List<List<PrimSig>> fold = (t==null ? null : t.fold());
+                out.writeInt(fold==null ? -1 : fold.size());
+                if (fold!=null) for(List<PrimSig> list: fold) {
+                    out.writeInt(list.size());
+                    for(PrimSig s: list) out.writeUTF(s.label);
+                }
+            }
+            out.close();
+            out = null;
+            file.delete();
+            if (!tmp.renameTo(file)) throw new java.io.IOException("Cannot rename " + tmp + " to " + file);
+            tmp = null;
+        } catch(Throwable ex) {
+            rep.debug("Cannot write the translation cache entry "+file+": "+ex+"\n");
+        } finally {
+            Util.close(out);
+            if (tmp!=null) tmp.delete();
+        }
+    }
+
+    /** Writes the size and the indices of a tupleset. */
+    private static void write(DataOutputStream out, TupleSet set) throws java.io.IOException {
+        out.writeInt(set.size());
+        for(IntIterator it=set.indexView().iterator(); it.hasNext();) out.writeInt(it.next());
+    }
+
+    /** Reads a tupleset written by write(). */
+    private static TupleSet read(DataInputStream in, TupleFactory factory, int arity) throws java.io.IOException {
+        int n = in.readInt();
+        IntSet indices = Ints.bestSet(factory.noneOf(arity).capacity());
+        for(int i=0; i<n; i++) indices.add(in.readInt());
+        return factory.setOf(arity, indices);
+    }
+
+    /** Loads the given cache entry, or returns null if it does not exist or does not match the given bounds.
+     * @param bounds - the bounds before simplification and translation
+     * @param sigs - the list of all sigs (used to compute the type of each skolem)
+     * @param options - the options (the CNF is loaded into a new instance of options.solver())
+     */
+    static Entry load(File file, Bounds bounds, Iterable<Sig> sigs, Options options) {
+        if (file==null || !file.isFile()) return null;
+        Map<String,PrimSig> labels = new LinkedHashMap<String,PrimSig>();
+        for(Sig s: sigs) if (s instanceof PrimSig) labels.put(s.label, (PrimSig)s);
+        List<Relation> frame = new ArrayList<Relation>(bounds.relations());
+        TupleFactory factory = bounds.universe().factory();
+        DataInputStream in = null;
+        SATSolver cnf = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt()!=MAGIC || in.readInt()!=bounds.universe().size()) return null;
+            int primaryVars = in.readInt(), vars = in.readInt(), size = in.readInt();
+            cnf = options.solver().instance();
+            cnf.addVariables(vars);
+            for(int i=0; i<size;) {
+                int[] clause = new int[in.readInt()];
+                for(int j=0; j<clause.length; j++) clause[j] = in.readInt();
+                cnf.addClause(clause);
+                i = i + 1 + clause.length;
+            }
+            Entry ans = new Entry(cnf, primaryVars, options.solver().incremental(), bounds);
+            for(int i=0, n=in.readInt(); i<n; i++) {
+                int index = in.readInt();
+                String name = in.readUTF();
+                int arity = in.readInt();
+                Relation r;
+                if (index<0) {
+                    r = Relation.nary(name, arity);
+                } else {
+                    if (index>=frame.size()) return null;
+                    r = frame.get(index);
+                    if (!r.name().equals(name) || r.arity()!=arity) return null;
+                }
+                TupleSet lower = read(in, factory, arity), upper = read(in, factory, arity);
+                ans.add(r, lower, upper, in.readInt());
+                Type t = null;
+                for(int j=0, m=in.readInt(); j<m; j++) {
+                    List<PrimSig> list = new ArrayList<PrimSig>();
+                    for(int k=0, w=in.readInt(); k<w; k++) {
+                        PrimSig s = labels.get(in.readUTF());
+                        if (s==null) return null;
+                        list.add(s);
+                    }
+                    t = (t==null ? Type.EMPTY : t).merge(list);
+                }
+                if (t!=null) ans.skolems.put(r, t);
+            }
+            cnf = null;
+            return ans;
+        } catch(Throwable ex) {
+            return null; // A damaged cache entry is treated the same as a missing one
+        } finally {
+            Util.close(in);
+            if (cnf!=null) cnf.free();
+        }
+    }
+
+    //===================================================================================================//
+
+    /** This SATSolver forwards every call to another SATSolver, while recording the clauses it receives. */
+    private static final class Recorder implements SATSolver {
+        /** The SAT solver that does the actual work. */
+        private final SATSolver solver;
+        /** The recorded clauses (each clause is stored as its length followed by its literals); null if we are no longer recording. */
+        private int[] buffer = new int[1024];
+        /** The number of ints in the buffer. */
+        private int size = 0;
+        /** Constructs a Recorder that forwards to the given SATSolver. */
+        private Recorder(SATSolver solver) { this.solver = solver; }
+        /** Appends an int to the buffer. */
+        private void record(int x) {
+            if (size==buffer.length) { int[] newbuffer = new int[size*2]; System.arraycopy(buffer, 0, newbuffer, 0, size); buffer = newbuffer; }
+            buffer[size++] = x;
+        }
+        /** {@inheritDoc} */
+        public int numberOfVariables() { return solver.numberOfVariables(); }
+        /** {@inheritDoc} */
+        public int numberOfClauses() { return solver.numberOfClauses(); }
+        /** {@inheritDoc} */
+        public void addVariables(int numVars) { solver.addVariables(numVars); }
+        /** {@inheritDoc} */
+        public boolean addClause(int[] lits) {
+            if (buffer!=null) { record(lits.length); for(int x: lits) record(x); }
+            return solver.addClause(lits);
+        }
+        /** {@inheritDoc} */
+        public boolean solve() { buffer = null; return solver.solve(); }
+        /** {@inheritDoc} */
+        public boolean valueOf(int variable) { return solver.valueOf(variable); }
+        /** {@inheritDoc} */
+        public void free() { buffer = null; solver.free(); }
+    }
+}
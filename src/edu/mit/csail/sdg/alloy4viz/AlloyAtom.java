@@ -65,6 +65,9 @@ public final class AlloyAtom implements Comparable<AlloyAtom> {
    /** Return the type of the AlloyAtom. */
    public AlloyType getType() { return type; }
 
+   /** Return the original name of the AlloyAtom. */
+   String getOriginalName() { return originalName; }
+
    /** Provides a human-readable label for debugging purpose. */
    @Override public String toString() { return getVizName(null,true); }
 
@@ -17,12 +17,14 @@ package edu.mit.csail.sdg.alloy4viz;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import edu.mit.csail.sdg.alloy4.CanonicalHash;
 import edu.mit.csail.sdg.alloy4.ConstList;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
 
@@ -199,6 +201,39 @@ public final class AlloyInstance {
       return answer!=null ? answer : noTuple;
    }
 
+   /** This caches the canonicalFingerprint() output; 0 if it has not been computed yet. */
+   private long canonicalCache = 0;
+
+   /** Returns a 64-bit hash of this instance that stays the same if the atoms of each type are permuted among themselves
+    * (integers and strings are identified by their names, since they cannot be renamed).
+    * <p> So isomorphic instances always have the same canonical fingerprint;
+    * but the converse does not always hold, since partition refinement cannot tell apart some regular structures that are not isomorphic
+    * (for example, a relation forming one 6-cycle and a relation forming two 3-cycles; see CanonicalHash).
+    */
+   public long canonicalFingerprint() {
+      if (canonicalCache != 0) return canonicalCache;
+      CanonicalHash hash = new CanonicalHash();
+      Map<AlloyAtom,Integer> atoms = new HashMap<AlloyAtom,Integer>();
+      for(AlloyAtom a: atom2sets.keySet()) {
+         AlloyType t = a.getType();
+         atoms.put(a, hash.atom(t.isBuiltin ? CanonicalHash.mix(t.getName().hashCode(), a.getOriginalName().hashCode()) : t.getName().hashCode()));
+      }
+      for(Map.Entry<AlloySet,List<AlloyAtom>> e: set2atoms.entrySet()) {
+         hash.relation(e.getKey().toString(), 1);
+         for(AlloyAtom a: e.getValue()) hash.tuple(atoms.get(a));
+      }
+      for(Map.Entry<AlloyRelation,Set<AlloyTuple>> e: rel2tuples.entrySet()) {
+         hash.relation(e.getKey().toString(), e.getKey().getArity());
+         for(AlloyTuple tuple: e.getValue()) {
+            int[] array = new int[tuple.getArity()];
+            for(int i=0; i<array.length; i++) array[i] = atoms.get(tuple.getAtoms().get(i));
+            hash.tuple(array);
+         }
+      }
+      long ans = hash.hash();
+      return canonicalCache = (ans==0 ? 1 : ans);
+   }
+
    /** Two instances are equal if they have the same filename, same commands,
     * same model, and same atoms and tuples relationships.
     */
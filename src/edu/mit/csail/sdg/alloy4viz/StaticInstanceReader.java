@@ -27,9 +27,8 @@ import java.util.Map;
 import java.util.Set;
 import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.ErrorFatal;
-import edu.mit.csail.sdg.alloy4.ErrorSyntax;
 import edu.mit.csail.sdg.alloy4.Util;
-import edu.mit.csail.sdg.alloy4.XMLNode;
+import edu.mit.csail.sdg.alloy4.XMLPullParser;
 import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
 import edu.mit.csail.sdg.alloy4compiler.ast.ExprVar;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
@@ -211,12 +210,10 @@ public final class StaticInstanceReader {
    }
 
    /** Parse the file into an AlloyInstance if possible. */
-   private StaticInstanceReader(XMLNode root) throws Err {
-      XMLNode inst = null;
-      for(XMLNode sub: root) if (sub.is("instance")) { inst=sub; break; }
-      if (inst==null) throw new ErrorSyntax("The XML file must contain an <instance> element.");
-      boolean isMeta = "yes".equals(inst.getAttribute("metamodel"));
-      A4Solution sol = A4SolutionReader.read(new ArrayList<Sig>(), root);
+   private StaticInstanceReader(XMLPullParser root) throws Err {
+      Map<String,String> inst = new LinkedHashMap<String,String>();
+      A4Solution sol = A4SolutionReader.read(new ArrayList<Sig>(), root, inst);
+      boolean isMeta = "yes".equals(inst.get("metamodel"));
       for (Sig s:sol.getAllReachableSigs()) if (s instanceof PrimSig && ((PrimSig)s).parent==Sig.UNIV) toplevels.add((PrimSig)s);
       if (!isMeta) {
          sig2type.put(Sig.UNIV, AlloyType.UNIV);
@@ -290,7 +287,7 @@ public final class StaticInstanceReader {
    /** Parse the file into an AlloyInstance if possible. */
    public static AlloyInstance parseInstance(File file) throws Err {
       try {
-         return (new StaticInstanceReader(new XMLNode(file))).ans;
+         return (new StaticInstanceReader(new XMLPullParser(file))).ans;
       } catch(IOException ex) {
          throw new ErrorFatal("Error reading the XML file: " + ex, ex);
       }
@@ -298,10 +295,6 @@ public final class StaticInstanceReader {
 
    /** Parse the file into an AlloyInstance if possible, then close the Reader afterwards. */
    public static AlloyInstance parseInstance(Reader reader) throws Err {
-      try {
-         return (new StaticInstanceReader(new XMLNode(reader))).ans;
-      } catch(IOException ex) {
-         throw new ErrorFatal("Error reading the XML file: " + ex, ex);
-      }
+      return (new StaticInstanceReader(new XMLPullParser(reader))).ans;
    }
 }
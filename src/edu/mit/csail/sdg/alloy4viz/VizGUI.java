@@ -30,6 +30,7 @@ import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
@@ -56,8 +57,10 @@ import javax.swing.plaf.basic.BasicSplitPaneUI;
 
 import edu.mit.csail.sdg.alloy4.A4Preferences.IntPref;
 import edu.mit.csail.sdg.alloy4.A4Preferences.StringPref;
+import edu.mit.csail.sdg.alloy4.BinaryXMLWriter;
 import edu.mit.csail.sdg.alloy4.Computer;
 import edu.mit.csail.sdg.alloy4.ConstList;
+import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.OurBorder;
 import edu.mit.csail.sdg.alloy4.OurCheckbox;
 import edu.mit.csail.sdg.alloy4.OurConsole;
@@ -192,6 +195,46 @@ public final class VizGUI implements ComponentListener {
    /** This maps each XML filename to a descriptive title. */
    private Map<String,String> xml2title = new LinkedHashMap<String,String>();
 
+   /** The maximum number of parsed instances to remember. */
+   private static final int MAX_PARSED = 64;
+
+   /** This is one parsed instance, together with the length and timestamp of its file at the time it was parsed. */
+   private static final class Parsed {
+      /** The length of the file. */
+      private final long length;
+      /** The timestamp of the file. */
+      private final long lastModified;
+      /** The parsed instance; it is softly referenced, so the garbage collector can reclaim it when memory is low. */
+      private final SoftReference<AlloyInstance> instance;
+      /** Constructs a new Parsed. */
+      private Parsed(File file, AlloyInstance instance) {
+         this.length = file.length();
+         this.lastModified = file.lastModified();
+         this.instance = new SoftReference<AlloyInstance>(instance);
+      }
+   }
+
+   /** This maps each XML filename to its latest parsed instance, in least-recently-used order. */
+   private final Map<String,Parsed> xml2instance = new LinkedHashMap<String,Parsed>(16, 0.75f, true) {
+      /** This ensures the class can be serialized reliably. */
+      private static final long serialVersionUID = 0;
+      /** {@inheritDoc} */
+      @Override protected boolean removeEldestEntry(Map.Entry<String,Parsed> eldest) { return size() > MAX_PARSED; }
+   };
+
+   /** Returns the instance in the given file, reusing the previous parse if the file has not changed since then
+    * (so switching back and forth between the instances in the solution list does not read them again).
+    */
+   private AlloyInstance parseInstance(File file) throws Err {
+      Parsed old = xml2instance.get(file.getPath());
+      AlloyInstance ans = (old!=null && old.length==file.length() && old.lastModified==file.lastModified()) ? old.instance.get() : null;
+      if (ans==null) {
+         ans = StaticInstanceReader.parseInstance(file);
+         xml2instance.put(file.getPath(), new Parsed(file, ans));
+      }
+      return ans;
+   }
+
    /** Returns a short descriptive title associated with an XML file. */
    public String getInstanceTitle(String xmlFileName) {
       String answer = xml2title.get(Util.canon(xmlFileName));
@@ -668,7 +711,7 @@ public final class VizGUI implements ComponentListener {
          AlloyInstance myInstance;
          try {
             if (!f.exists()) throw new IOException("File " + xmlFileName + " does not exist.");
-            myInstance = StaticInstanceReader.parseInstance(f);
+            myInstance = parseInstance(f);
          } catch (Throwable e) {
             xmlLoaded.remove(fileName);
             xmlLoaded.remove(xmlFileName);
@@ -780,6 +823,7 @@ public final class VizGUI implements ComponentListener {
    private Runner doCloseAll() {
       if (wrap) return wrapMe();
       xmlLoaded.clear();
+      xml2instance.clear();
       xmlFileName="";
       if (standalone) System.exit(0); else if (frame!=null) frame.setVisible(false);
       return null;
@@ -876,7 +920,8 @@ public final class VizGUI implements ComponentListener {
        Util.setCurrentDirectory(file.getParentFile());
        String filename = Util.canon(file.getPath());
        try {
-          Util.writeAll(filename, Util.readAll(xmlFileName));
+          if (BinaryXMLWriter.isBinary(new File(xmlFileName))) BinaryXMLWriter.toXML(new File(xmlFileName), new File(filename));
+          else Util.writeAll(filename, Util.readAll(xmlFileName));
        } catch (Throwable er) {
           OurDialog.alert("Error saving XML instance.\n\nError: " + er.getMessage());
        }
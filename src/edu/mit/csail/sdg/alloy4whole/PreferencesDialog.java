@@ -15,6 +15,8 @@ import static edu.mit.csail.sdg.alloy4.A4Preferences.SkolemDepth;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.Solver;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.SubMemory;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.SubStack;
+import static edu.mit.csail.sdg.alloy4.A4Preferences.SubThreads;
+import static edu.mit.csail.sdg.alloy4.A4Preferences.SubWorkers;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.SyntaxDisabled;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.TabSize;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.Unrolls;
@@ -283,8 +285,8 @@ public class PreferencesDialog extends JFrame {
 
    protected Component initMiscPane() {
       JPanel p = OurUtil.makeGrid(2, gbc().make(), mkCombo(SubMemory), mkCombo(SubStack),
-            mkCombo(VerbosityPref), mkCombo(LAF));
-      int r = 4;
+            mkCombo(SubThreads), mkCombo(SubWorkers), mkCombo(VerbosityPref), mkCombo(LAF));
+      int r = 6;
       addToGrid(p, mkCheckBox(Welcome),         gbc().pos(0, r++).gridwidth(2));
       addToGrid(p, mkCheckBox(WarningNonfatal), gbc().pos(0, r++).gridwidth(2));
       addToGrid(p, mkCheckBox(AutoVisualize),   gbc().pos(0, r++).gridwidth(2));
@@ -27,7 +27,7 @@ import edu.mit.csail.sdg.alloy4.ErrorWarning;
 import edu.mit.csail.sdg.alloy4.Pair;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.Version;
-import edu.mit.csail.sdg.alloy4.XMLNode;
+import edu.mit.csail.sdg.alloy4.XMLPullParser;
 import edu.mit.csail.sdg.alloy4compiler.ast.Command;
 import edu.mit.csail.sdg.alloy4compiler.ast.Decl;
 import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
@@ -135,7 +135,7 @@ public final class SimpleCLI {
         pw.flush();
         sw.flush();
         String txt = sw.toString();
-        A4SolutionReader.read(new ArrayList<Sig>(), new XMLNode(new StringReader(txt))).toString();
+        A4SolutionReader.read(new ArrayList<Sig>(), new XMLPullParser(new StringReader(txt)), null).toString();
         StaticInstanceReader.parseInstance(new StringReader(txt));
     }
 
@@ -198,7 +198,7 @@ public final class SimpleCLI {
                 meta.flush();
                 metasb.flush();
                 String metaxml = metasb.toString();
-                A4SolutionReader.read(new ArrayList<Sig>(), new XMLNode(new StringReader(metaxml)));
+                A4SolutionReader.read(new ArrayList<Sig>(), new XMLPullParser(new StringReader(metaxml)), null);
                 StaticInstanceReader.parseInstance(new StringReader(metaxml));
                 // Okay, now solve the commands
                 A4Options options = new A4Options();
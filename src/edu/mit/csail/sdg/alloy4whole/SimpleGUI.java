@@ -38,6 +38,8 @@ import static edu.mit.csail.sdg.alloy4.A4Preferences.SkolemDepth;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.Solver;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.SubMemory;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.SubStack;
+import static edu.mit.csail.sdg.alloy4.A4Preferences.SubThreads;
+import static edu.mit.csail.sdg.alloy4.A4Preferences.SubWorkers;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.SyntaxDisabled;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.TabSize;
 import static edu.mit.csail.sdg.alloy4.A4Preferences.Unrolls;
@@ -124,6 +126,7 @@ import edu.mit.csail.sdg.alloy4.A4Preferences.Pref;
 import edu.mit.csail.sdg.alloy4.A4Preferences.StringPref;
 import edu.mit.csail.sdg.alloy4.A4Preferences.Verbosity;
 import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.BinaryXMLWriter;
 import edu.mit.csail.sdg.alloy4.Computer;
 import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.ErrorFatal;
@@ -145,7 +148,7 @@ import edu.mit.csail.sdg.alloy4.Runner;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.Version;
 import edu.mit.csail.sdg.alloy4.WorkerEngine;
-import edu.mit.csail.sdg.alloy4.XMLNode;
+import edu.mit.csail.sdg.alloy4.XMLPullParser;
 import edu.mit.csail.sdg.alloy4compiler.ast.Browsable;
 import edu.mit.csail.sdg.alloy4compiler.ast.Command;
 import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
@@ -167,6 +170,7 @@ import edu.mit.csail.sdg.alloy4viz.VizGUI;
 import edu.mit.csail.sdg.alloy4whole.SimpleReporter.SimpleCallback1;
 import edu.mit.csail.sdg.alloy4whole.SimpleReporter.SimpleTask1;
 import edu.mit.csail.sdg.alloy4whole.SimpleReporter.SimpleTask2;
+import edu.mit.csail.sdg.alloy4whole.SimpleReporter.SimpleTask3;
 
 /** Simple graphical interface for accessing various features of the analyzer.
  *
@@ -254,12 +258,6 @@ public final class SimpleGUI implements ComponentListener, Listener {
     /** If subrunning==true: 0 means SAT solving; 1 means metamodel; 2 means enumeration. */
     private int subrunningTask = 0;
 
-    /** The amount of memory (in MB) currently allocated for this.subprocess */
-    private int subMemoryNow = 0;
-
-    /** The amount of stack (in KB) currently allocated for this.subprocess */
-    private int subStackNow = 0;
-
     /** The list of commands (this field will be cleared to null when the text buffer is edited). */
     private List<Command> commands = null;
 
@@ -329,7 +327,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
             i=name.lastIndexOf('\\');
             if (i>=0) name=name.substring(i+1);
             return name.substring(0, name.length()-4);
-        } else if (name.toLowerCase(Locale.US).endsWith(".xml")) {
+        } else if (name.toLowerCase(Locale.US).endsWith(".xml") || name.toLowerCase(Locale.US).endsWith(BinaryXMLWriter.EXTENSION)) {
             int i=name.lastIndexOf('/');
             if (i>0) i=name.lastIndexOf('/', i-1);
             if (i>=0) name=name.substring(i+1);
@@ -974,19 +972,18 @@ public final class SimpleGUI implements ComponentListener, Listener {
         task.options = opt.dup();
         task.resolutionMode = (Version.experimental && ImplicitThis.get()) ? 2 : 1;
         task.tempdir = maketemp();
+        task.threads = SubThreads.get();
         try {
             runmenu.setEnabled(false);
             runbutton.setVisible(false);
             showbutton.setEnabled(false);
             stopbutton.setVisible(true);
-            int newmem = SubMemory.get(), newstack = SubStack.get();
-            if (newmem != subMemoryNow || newstack != subStackNow) WorkerEngine.stop();
-            if ("yes".equals(System.getProperty("debug")) && VerbosityPref.get()==Verbosity.FULLDEBUG)
+            if ("yes".equals(System.getProperty("debug")) && VerbosityPref.get()==Verbosity.FULLDEBUG) {
                 WorkerEngine.runLocally(task, cb);
-            else
-                WorkerEngine.run(task, newmem, newstack, alloyHome() + fs + "binary", "", cb);
-            subMemoryNow = newmem;
-            subStackNow = newstack;
+            } else {
+                WorkerEngine.setPool(SubWorkers.get(), warmupTask());
+                WorkerEngine.run(task, SubMemory.get(), SubStack.get(), alloyHome() + fs + "binary", "", cb);
+            }
         } catch(Throwable ex) {
             WorkerEngine.stop();
             log.logBold("Fatal Error: Solver failed due to unknown reason.\n" +
@@ -1000,6 +997,19 @@ public final class SimpleGUI implements ComponentListener, Listener {
         return null;
     }
 
+    /** Returns the task that warms up each solver process launched ahead of time. */
+    private static SimpleTask3 warmupTask() {
+        SimpleTask3 task = new SimpleTask3();
+        task.filename = alloyHome() + fs + "models" + fs + "warmup.als";
+        return task;
+    }
+
+    /** This launches and warms up the solver processes ahead of time, according to the current preferences. */
+    private static void warmWorkers() {
+        WorkerEngine.setPool(SubWorkers.get(), warmupTask());
+        try { WorkerEngine.warm(SubMemory.get(), SubStack.get(), alloyHome() + fs + "binary", ""); } catch(IOException ex) { } // We only intend to make a best effort.
+    }
+
     /** This method stops the current run or check (how==0 means DONE, how==1 means FAIL, how==2 means STOP). */
     Runner doStop(Integer how) {
         if (wrap) return wrapMe(how);
@@ -1007,6 +1017,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
         if (h!=0) {
            if (h==2 && WorkerEngine.isBusy()) { WorkerEngine.stop(); log.logBold("\nSolving Stopped.\n"); log.logDivider(); }
            WorkerEngine.stop();
+           warmWorkers();
         }
         runmenu.setEnabled(true);
         runbutton.setVisible(true);
@@ -1153,7 +1164,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
             optmenu.addSeparator();
 
             addToMenu(optmenu, WarningNonfatal);
-            addToMenu(optmenu, SubMemory, SubStack, VerbosityPref);
+            addToMenu(optmenu, SubMemory, SubStack, SubThreads, SubWorkers, VerbosityPref);
 
             optmenu.addSeparator();
 
@@ -1417,7 +1428,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
             SimpleTask2 task = new SimpleTask2();
             task.filename = arg;
             try {
-                WorkerEngine.run(task, SubMemory.get(), SubStack.get(), alloyHome() + fs + "binary", "", cb);
+                WorkerEngine.runOnLatest(task, SubMemory.get(), SubStack.get(), alloyHome() + fs + "binary", "", cb);
 //                task.run(cb);
             } catch(Throwable ex) {
                 WorkerEngine.stop();
@@ -1457,6 +1468,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
     /** Converts an A4Solution into a SimInstance object. */
     private static SimInstance convert(Module root, A4Solution ans) throws Err {
        SimInstance ct = new SimInstance(root, ans.getBitwidth(), ans.getMaxSeq());
+       ct.setThreads(Runtime.getRuntime().availableProcessors());
         for(Sig s: ans.getAllReachableSigs()) {
             if (!s.builtin) ct.init(s, convert(ans.eval(s)));
             for(Field f: s.getFields())  if (!f.defined)  ct.init(f, convert(ans.eval(f)));
@@ -1478,21 +1490,27 @@ public final class SimpleGUI implements ComponentListener, Listener {
             A4Solution ans = null;
             try {
                 Map<String,String> fc = new LinkedHashMap<String,String>();
-                XMLNode x = new XMLNode(new File(filename));
-                if (!x.is("alloy")) throw new Exception();
+                // First pass: find the main filename and the source files; second pass: read the instance
+                XMLPullParser x = new XMLPullParser(new File(filename));
                 String mainname=null;
-                for(XMLNode sub: x) if (sub.is("instance")) {
-                   mainname=sub.getAttribute("filename");
-                   break;
+                try {
+                   if (x.next()!=XMLPullParser.START || !x.is("alloy")) throw new Exception();
+                   while(x.next()==XMLPullParser.START) {
+                      if (x.is("instance") && mainname==null) mainname=x.getAttribute("filename");
+                      if (x.is("source")) {
+                         String name = x.getAttribute("filename");
+                         String content = x.getAttribute("content");
+                         fc.put(name, content);
+                      }
+                      x.skip();
+                   }
+                   x.next();
+                } finally {
+                   x.close();
                 }
                 if (mainname==null) throw new Exception();
-                for(XMLNode sub: x) if (sub.is("source")) {
-                   String name = sub.getAttribute("filename");
-                   String content = sub.getAttribute("content");
-                   fc.put(name, content);
-                }
                 root = CompUtil.parseEverything_fromFile(A4Reporter.NOP, fc, mainname, (Version.experimental && ImplicitThis.get()) ? 2 : 1);
-                ans = A4SolutionReader.read(root.getAllReachableSigs(), x);
+                ans = A4SolutionReader.read(root.getAllReachableSigs(), new XMLPullParser(new File(filename)), null);
                 for(ExprVar a:ans.getAllAtoms())   { root.addGlobal(a.label, a); }
                 for(ExprVar a:ans.getAllSkolems()) { root.addGlobal(a.label, a); }
             } catch(Throwable ex) {
@@ -1655,6 +1673,9 @@ public final class SimpleGUI implements ComponentListener, Listener {
         copyFromJAR();
         final String binary = alloyHome() + fs + "binary";
 
+        // Launch the solver processes ahead of time
+        warmWorkers();
+
         // Create the menu bar
         JMenuBar bar = new JMenuBar();
         try {
@@ -23,12 +23,15 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.BinaryXMLWriter;
 import edu.mit.csail.sdg.alloy4.ConstList;
 import edu.mit.csail.sdg.alloy4.ConstMap;
 import edu.mit.csail.sdg.alloy4.Err;
@@ -41,7 +44,7 @@ import edu.mit.csail.sdg.alloy4.Pair;
 import edu.mit.csail.sdg.alloy4.Pos;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.Version;
-import edu.mit.csail.sdg.alloy4.XMLNode;
+import edu.mit.csail.sdg.alloy4.XMLPullParser;
 import edu.mit.csail.sdg.alloy4.WorkerEngine.WorkerCallback;
 import edu.mit.csail.sdg.alloy4.WorkerEngine.WorkerTask;
 import edu.mit.csail.sdg.alloy4compiler.ast.Command;
@@ -52,6 +55,7 @@ import edu.mit.csail.sdg.alloy4compiler.translator.A4Options;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4SolutionReader;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4SolutionWriter;
+import edu.mit.csail.sdg.alloy4compiler.translator.CommandPipeline;
 import edu.mit.csail.sdg.alloy4compiler.translator.TranslateAlloyToKodkod;
 import edu.mit.csail.sdg.alloy4viz.StaticInstanceReader;
 import edu.mit.csail.sdg.alloy4viz.VizGUI;
@@ -248,19 +252,17 @@ final class SimpleReporter extends A4Reporter {
         A4Solution sol = (A4Solution)solution;
         Command cmd = (Command)command;
         String formula = recordKodkod ? sol.debugExtractKInput() : "";
-        String filename = tempfile+".xml";
+        String filename = tempfile+BinaryXMLWriter.EXTENSION;
         synchronized(SimpleReporter.class) {
             try {
-                cb("R3", "   Writing the XML file...");
-                if (latestModule!=null) writeXML(this, latestModule, filename, sol, latestKodkodSRC);
+                cb("R3", "   Writing the instance file...");
+                if (latestModule!=null) writeInstance(this, latestModule, filename, sol, latestKodkodSRC);
             } catch(Throwable ex) {
                 cb("bold", "\n" + (ex.toString().trim()) + "\nStackTrace:\n" + (MailBug.dump(ex).trim()) + "\n");
                 return;
             }
-            latestKodkods.clear();
-            latestKodkods.add(sol.toString());
-            latestKodkod=sol;
-            latestKodkodXML=filename;
+            // When several commands run in parallel, the latest solution is published once every earlier command has finished
+            if (cb instanceof BufferedCallback) ((BufferedCallback)cb).latest(sol, filename); else setLatest(sol, filename);
         }
         String formulafilename = "";
         if (formula.length()>0 && tempfile!=null) {
@@ -338,8 +340,11 @@ final class SimpleReporter extends A4Reporter {
 
     //========== These fields may be altered as each successful command generates a Kodkod or Metamodel instance
 
-    /** The set of Strings already enumerated for this current solution. */
-    private static final Set<String> latestKodkods=new LinkedHashSet<String>();
+    /** The set of fingerprints (see A4Solution.fingerprint) already enumerated for this current solution; only the most recent 2^20 are kept. */
+    private static final Set<Long> latestKodkods=Collections.newSetFromMap(new LinkedHashMap<Long,Boolean>() {
+        private static final long serialVersionUID = 0;
+        @Override protected boolean removeEldestEntry(Map.Entry<Long,Boolean> eldest) { return size() > (1 << 20); }
+    });
 
     /** The A4Solution corresponding to the latest solution generated by Kodkod; this field must be synchronized. */
     private static A4Solution latestKodkod=null;
@@ -347,6 +352,9 @@ final class SimpleReporter extends A4Reporter {
     /** The root Module corresponding to this.latestKodkod; this field must be synchronized. */
     private static Module latestModule=null;
 
+    /** The root Module of the latest parse, which the next parse may update in place; this field must be synchronized. */
+    private static Module latestWorld=null;
+
     /** The source code corresponding to the latest solution generated by Kodkod; this field must be synchronized. */
     private static ConstMap<String,String> latestKodkodSRC = null;
 
@@ -359,14 +367,50 @@ final class SimpleReporter extends A4Reporter {
     /** Constructor is private. */
     private SimpleReporter(WorkerCallback cb, boolean recordKodkod) { this.cb=cb; this.recordKodkod=recordKodkod; }
 
-    /** Helper method to write out a full XML file. */
-    private static void writeXML(A4Reporter rep, Module mod, String filename, A4Solution sol, Map<String,String> sources) throws Exception {
-        sol.writeXML(rep, filename, mod.getAllFunc(), sources);
+    /** Helper method to write out a full instance file for the GUI; it uses the binary encoding (see BinaryXMLWriter),
+     * which the visualizer and the evaluator read just like XML, and which "Export to XML" converts back to XML text.
+     */
+    private static void writeInstance(A4Reporter rep, Module mod, String filename, A4Solution sol, Map<String,String> sources) throws Exception {
+        sol.writeBinary(rep, filename, mod.getAllFunc(), sources);
         if ("yes".equals(System.getProperty("debug"))) validate(filename);
     }
 
+    /** Helper method that makes the given solution (and its instance file) the latest one, which can be enumerated. */
+    private static void setLatest(A4Solution sol, String filename) {
+        synchronized(SimpleReporter.class) {
+            latestKodkods.clear();
+            latestKodkods.add(sol.fingerprint());
+            latestKodkod=sol;
+            latestKodkodXML=filename;
+        }
+    }
+
     private int warn=0;
 
+    /** This callback stores every message it receives, so that they can be sent to another callback later (by calling run()). */
+    private static final class BufferedCallback implements WorkerCallback, Runnable {
+        private final List<Object> messages = new ArrayList<Object>();
+        /** The callback that receives the stored messages. */
+        private final WorkerCallback out;
+        /** If nonnull, this is the solution to make the latest one once the stored messages are sent. */
+        private A4Solution sol=null;
+        /** The instance file corresponding to sol. */
+        private String filename=null;
+        /** Constructs a buffer whose messages will be sent to the given callback. */
+        public BufferedCallback(WorkerCallback out) { this.out=out; }
+        public synchronized void callback(Object msg) { messages.add(msg); }
+        public void done() { }
+        public void fail() { }
+        /** Remember the given solution, so that it becomes the latest one when run() is called. */
+        public synchronized void latest(A4Solution sol, String filename) { this.sol=sol; this.filename=filename; }
+        /** Send every stored message to the callback, then clear the buffer (and publish the remembered solution, if any). */
+        public synchronized void run() {
+            for(Object msg: messages) out.callback(msg);
+            messages.clear();
+            if (sol!=null) { setLatest(sol, filename); sol=null; }
+        }
+    }
+
     /** Task that performs solution enumeration. */
     static final class SimpleTask2 implements WorkerTask {
         private static final long serialVersionUID = 0;
@@ -400,11 +444,11 @@ final class SimpleReporter extends A4Reporter {
                    {cb("pop", "There are no more satisfying instances.\n\n" +
                    "Note: due to symmetry breaking and other optimizations,\n" +
                    "some equivalent solutions may have been omitted."); return;}
-                String toString = sol.toString();
+                long fingerprint = sol.fingerprint();
                 synchronized(SimpleReporter.class) {
-                    if (!latestKodkods.add(toString)) if (tries<100) { tries++; continue; }
+                    if (!latestKodkods.add(fingerprint)) if (tries<100) { tries++; continue; }
                     // The counter is needed to avoid a Kodkod bug where sometimes we might repeat the same solution infinitely number of times; this at least allows the user to keep going
-                    writeXML(null, mod, filename, sol, latestKodkodSRC); latestKodkod=sol;
+                    writeInstance(null, mod, filename, sol, latestKodkodSRC); latestKodkod=sol;
                 }
                 cb("declare", filename);
                 return;
@@ -412,9 +456,28 @@ final class SimpleReporter extends A4Reporter {
         }
     }
 
+    /** Task that warms up a new solver process, by parsing the util modules and solving a tiny command,
+     * so that the classes are loaded and the JIT compiler is warm by the time the process receives a real command.
+     */
+    static final class SimpleTask3 implements WorkerTask {
+        private static final long serialVersionUID = 0;
+        /** The filename to pretend the warm-up model has; it should be in the directory that contains the util modules. */
+        public String filename = "";
+        public void run(WorkerCallback out) throws Exception {
+            Map<String,String> map = new HashMap<String,String>();
+            map.put(filename,
+               "open util/ordering[A]\nopen util/integer\nopen util/relation\nopen util/boolean\nopen util/graph[A]\n"
+               + "open util/natural\nopen util/sequniv\nopen util/seqrel[A]\nopen util/sequence[A]\nopen util/ternary\n"
+               + "sig A { r: set A }\nrun { some r and acyclic[r, A] } for 3\n");
+            Module world = CompUtil.parseEverything_fromFile(null, map, filename);
+            A4Options options = new A4Options();
+            TranslateAlloyToKodkod.execute_command(null, world.getAllReachableSigs(), world.getAllCommands().get(0), options);
+        }
+    }
+
     /** Validate the given filename to see if it is a valid Alloy XML instance file. */
     private static void validate(String filename) throws Exception {
-        A4SolutionReader.read(new ArrayList<Sig>(), new XMLNode(new File(filename))).toString();
+        A4SolutionReader.read(new ArrayList<Sig>(), new XMLPullParser(new File(filename)), null).toString();
         StaticInstanceReader.parseInstance(new File(filename));
     }
 
@@ -427,16 +490,25 @@ final class SimpleReporter extends A4Reporter {
         public int bundleIndex;
         public int resolutionMode;
         public Map<String,String> map;
+        public int threads = 1;
         public SimpleTask1() { }
         public void cb(WorkerCallback out, Object... objs) throws IOException { out.callback(objs); }
         public void run(WorkerCallback out) throws Exception {
             cb(out, "S2", "Starting the solver...\n\n");
             final SimpleReporter rep = new SimpleReporter(out, options.recordKodkod);
-            final Module world = CompUtil.parseEverything_fromFile(rep, map, options.originalFilename, resolutionMode);
+            final Module previous;
+            synchronized(SimpleReporter.class) {
+                previous=latestWorld; latestWorld=null;
+                // The previous world may be updated in place, so the latest solution can no longer be enumerated
+                if (previous!=null && previous==latestModule) { latestModule=null; latestKodkod=null; }
+            }
+            final Module world = CompUtil.parseEverything_fromFile(rep, map, options.originalFilename, resolutionMode, previous);
             final List<Sig> sigs = world.getAllReachableSigs();
             final ConstList<Command> cmds = world.getAllCommands();
             cb(out, "warnings", bundleWarningNonFatal);
             if (rep.warn>0 && !bundleWarningNonFatal) return;
+            // Only a world whose warnings did not stop the execution may be updated incrementally by the next execution
+            synchronized(SimpleReporter.class) { latestWorld=world; }
             List<String> result = new ArrayList<String>(cmds.size());
             if (bundleIndex==-2) {
                 final String outf=tempdir+File.separatorChar+"m.xml";
@@ -449,18 +521,53 @@ final class SimpleReporter extends A4Reporter {
                 if ("yes".equals(System.getProperty("debug"))) validate(outf);
                 cb(out, "metamodel", outf);
                 synchronized(SimpleReporter.class) { latestMetamodelXML=outf; }
-            } else for(int i=0; i<cmds.size(); i++) if (bundleIndex<0 || i==bundleIndex) {
+            } else if (bundleIndex<0 && threads>1 && cmds.size()>1) {
                 synchronized(SimpleReporter.class) { latestModule=world; latestKodkodSRC=ConstMap.make(map); }
-                final String tempXML=tempdir+File.separatorChar+i+".cnf.xml";
-                final String tempCNF=tempdir+File.separatorChar+i+".cnf";
-                final Command cmd=cmds.get(i);
-                rep.tempfile=tempCNF;
-                cb(out, "bold", "Executing \""+cmd+"\"\n");
-                A4Solution ai=TranslateAlloyToKodkod.execute_commandFromBook(rep, world.getAllReachableSigs(), cmd, options);
-                if (ai==null) result.add(null);
-                else if (ai.satisfiable()) result.add(tempXML);
-                else if (ai.highLevelCore().a.size()>0) result.add(tempCNF+".core");
-                else result.add("");
+                // Each command reports to its own buffer, and each buffer is sent out as soon as its command and every earlier command have finished
+                final List<BufferedCallback> buffers = new ArrayList<BufferedCallback>(cmds.size());
+                final List<SimpleReporter> reps = new ArrayList<SimpleReporter>(cmds.size());
+                for(int i=0; i<cmds.size(); i++) {
+                    BufferedCallback buffer = new BufferedCallback(out);
+                    SimpleReporter r = new SimpleReporter(buffer, options.recordKodkod);
+                    r.tempfile = tempdir+File.separatorChar+i+".cnf";
+                    buffer.callback(new Object[]{"bold", "Executing \""+cmds.get(i)+"\"\n"});
+                    buffers.add(buffer);
+                    reps.add(r);
+                }
+                cb(out, "S2", "Executing "+cmds.size()+" commands using "+threads+" threads...\n\n");
+                List<A4Solution> ans;
+                try {
+                    ans = TranslateAlloyToKodkod.execute_commands(reps, world.getAllReachableSigs(), cmds, options, threads, true, buffers);
+                } finally {
+                    for(BufferedCallback buffer: buffers) buffer.run();
+                }
+                for(int i=0; i<cmds.size(); i++) {
+                    A4Solution ai = ans.get(i);
+                    if (ai==null) result.add(null);
+                    else if (ai.satisfiable()) result.add(tempdir+File.separatorChar+i+".cnf"+BinaryXMLWriter.EXTENSION);
+                    else if (ai.highLevelCore().a.size()>0) result.add(tempdir+File.separatorChar+i+".cnf.core");
+                    else result.add("");
+                }
+            } else {
+                // When executing every command, the next command is translated while the SAT solver works on the current one
+                final CommandPipeline pipeline = (bundleIndex<0 && cmds.size()>1) ? new CommandPipeline(sigs, cmds, options, 1, true) : null;
+                try {
+                    for(int i=0; i<cmds.size(); i++) if (bundleIndex<0 || i==bundleIndex) {
+                        synchronized(SimpleReporter.class) { latestModule=world; latestKodkodSRC=ConstMap.make(map); }
+                        final String tempXML=tempdir+File.separatorChar+i+".cnf"+BinaryXMLWriter.EXTENSION;
+                        final String tempCNF=tempdir+File.separatorChar+i+".cnf";
+                        final Command cmd=cmds.get(i);
+                        rep.tempfile=tempCNF;
+                        cb(out, "bold", "Executing \""+cmd+"\"\n");
+                        A4Solution ai = (pipeline!=null) ? pipeline.execute(rep, i) : TranslateAlloyToKodkod.execute_commandFromBook(rep, world.getAllReachableSigs(), cmd, options);
+                        if (ai==null) result.add(null);
+                        else if (ai.satisfiable()) result.add(tempXML);
+                        else if (ai.highLevelCore().a.size()>0) result.add(tempCNF+".core");
+                        else result.add("");
+                    }
+                } finally {
+                    if (pipeline!=null) pipeline.close();
+                }
             }
             (new File(tempdir)).delete(); // In case it was UNSAT, or canceled...
             if (result.size()>1) {
@@ -468,7 +575,7 @@ final class SimpleReporter extends A4Reporter {
                 for(int i=0; i<result.size(); i++) {
                     Command r=world.getAllCommands().get(i);
                     if (result.get(i)==null) { rep.cb("", "   #"+(i+1)+": Unknown.\n"); continue; }
-                    if (result.get(i).endsWith(".xml")) {
+                    if (result.get(i).endsWith(BinaryXMLWriter.EXTENSION)) {
                         rep.cb("", "   #"+(i+1)+": ");
                         rep.cb("link", r.check?"Counterexample found. ":"Instance found. ", "XML: "+result.get(i));
                         rep.cb("", r.label+(r.check?" is invalid":" is consistent"));